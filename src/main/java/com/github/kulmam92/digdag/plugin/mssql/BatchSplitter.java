@@ -0,0 +1,250 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.Locale.ENGLISH;
+
+// Splits a sqlcmd-style script into batches at GO lines.
+//
+// The script is read in fixed-size chunks straight into the current batch, and only
+// the current batch is kept in memory. Its length is checked while it's read, so a
+// long line without a line break can't grow the memory past the limit either. A GO
+// line is a line with GO and an optional repeat count, like sqlcmd. GO in strings,
+// quoted or bracketed identifiers and comments doesn't end a batch. Block comments
+// nest as they do on the server.
+class BatchSplitter
+        implements Closeable
+{
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private static final Pattern GO_LINE = Pattern.compile("^\\s*(?i:GO)(?:\\s+(\\d+))?\\s*(?:--.*)?$");
+
+    static class Batch
+    {
+        private final String sql;
+        private final int count;
+        private final int line;
+
+        Batch(String sql, int count, int line)
+        {
+            this.sql = sql;
+            this.count = count;
+            this.line = line;
+        }
+
+        String sql()
+        {
+            return sql;
+        }
+
+        // Number of times to run the batch (GO n)
+        int count()
+        {
+            return count;
+        }
+
+        // 1-based line number where the batch starts
+        int line()
+        {
+            return line;
+        }
+    }
+
+    private final Reader reader;
+    private final int maxBatchLength;
+    private final char[] buffer = new char[READ_BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    private final StringBuilder batch = new StringBuilder();
+    private int lineNumber = 0;
+    private int batchLine = 1;
+
+    // Quote character of the string or identifier that continues to the next line, or
+    // 0 if none.
+    private char quote = 0;
+    private int commentDepth = 0;
+
+    BatchSplitter(Reader reader)
+    {
+        this(reader, 0);
+    }
+
+    // A batch longer than maxBatchLength characters fails instead of growing the
+    // memory. 0 means no limit.
+    BatchSplitter(Reader reader, int maxBatchLength)
+    {
+        this.reader = reader;
+        this.maxBatchLength = maxBatchLength;
+    }
+
+    // Returns the next batch that has something other than whitespace, or null at the
+    // end of the script.
+    Batch next()
+            throws IOException
+    {
+        while (true) {
+            int lineStart = batch.length();
+            if (!readLine()) {
+                return takeBatch(1);
+            }
+            lineNumber++;
+
+            if (quote == 0 && commentDepth == 0) {
+                // the line without its line break, without copying it
+                Matcher m = GO_LINE.matcher(CharBuffer.wrap(batch, lineStart, batch.length() - 1));
+                if (m.matches()) {
+                    int count = m.group(1) == null ? 1 : Integer.parseInt(m.group(1));
+                    batch.setLength(lineStart);
+                    Batch taken = takeBatch(count);
+                    batchLine = lineNumber + 1;
+                    if (taken != null) {
+                        return taken;
+                    }
+                    continue;
+                }
+            }
+
+            scan(batch, lineStart, batch.length());
+            if (maxBatchLength > 0 && batch.length() > maxBatchLength) {
+                throw tooLong();
+            }
+        }
+    }
+
+    // Appends the next line to the batch, ending with a line break even if the script
+    // doesn't. Returns false if no lines are left. The line alone may not be longer
+    // than maxBatchLength, which lets a GO line end a batch that is just below the
+    // limit while the memory stays under twice the limit.
+    private boolean readLine()
+            throws IOException
+    {
+        int lineStart = batch.length();
+        while (true) {
+            if (position == limit) {
+                int n = reader.read(buffer);
+                if (n < 0) {
+                    if (batch.length() == lineStart) {
+                        return false;
+                    }
+                    batch.append('\n');
+                    return true;
+                }
+                position = 0;
+                limit = n;
+            }
+            int end = position;
+            while (end < limit && buffer[end] != '\n') {
+                end++;
+            }
+            boolean lineBreak = end < limit;
+            if (lineBreak) {
+                end++;
+            }
+            if (maxBatchLength > 0 && batch.length() - lineStart + end - position > maxBatchLength) {
+                throw tooLong();
+            }
+            batch.append(buffer, position, end - position);
+            position = end;
+            if (lineBreak) {
+                return true;
+            }
+        }
+    }
+
+    private IOException tooLong()
+    {
+        return new IOException(String.format(ENGLISH,
+                    "Batch at line %d is longer than %d characters. Add GO lines to split it",
+                    batchLine, maxBatchLength));
+    }
+
+    private Batch takeBatch(int count)
+    {
+        Batch taken = null;
+        if (hasStatement()) {
+            taken = new Batch(batch.toString(), count, batchLine);
+        }
+        batch.setLength(0);
+        return taken;
+    }
+
+    private boolean hasStatement()
+    {
+        for (int i = 0; i < batch.length(); i++) {
+            if (!Character.isWhitespace(batch.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Updates the state of strings and comments that continue over lines
+    private void scan(CharSequence chars, int start, int end)
+    {
+        int i = start;
+        while (i < end) {
+            char c = chars.charAt(i);
+            char n = i + 1 < end ? chars.charAt(i + 1) : 0;
+            if (commentDepth > 0) {
+                if (c == '/' && n == '*') {
+                    commentDepth++;
+                    i += 2;
+                }
+                else if (c == '*' && n == '/') {
+                    commentDepth--;
+                    i += 2;
+                }
+                else {
+                    i++;
+                }
+            }
+            else if (quote != 0) {
+                if (c == quote) {
+                    if (n == quote) {
+                        // doubled quote is an escaped quote
+                        i += 2;
+                    }
+                    else {
+                        quote = 0;
+                        i++;
+                    }
+                }
+                else {
+                    i++;
+                }
+            }
+            else if (c == '\'' || c == '"') {
+                quote = c;
+                i++;
+            }
+            else if (c == '[') {
+                quote = ']';
+                i++;
+            }
+            else if (c == '-' && n == '-') {
+                // rest of the line is a comment
+                return;
+            }
+            else if (c == '/' && n == '*') {
+                commentDepth++;
+                i += 2;
+            }
+            else {
+                i++;
+            }
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        reader.close();
+    }
+}
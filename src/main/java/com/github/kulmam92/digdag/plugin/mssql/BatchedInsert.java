@@ -0,0 +1,186 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigElement;
+import io.digdag.client.config.ConfigException;
+import io.digdag.spi.TaskExecutionException;
+import io.digdag.standards.operator.jdbc.LockConflictException;
+import io.digdag.standards.operator.jdbc.NotReadOnlyException;
+import io.digdag.standards.operator.jdbc.TableReference;
+import io.digdag.standards.operator.jdbc.TransactionHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Locale.ENGLISH;
+
+// insert_into with insert_batch option.
+//
+// The query is inserted in slices of a key column, each committed by its own
+// transaction so that the transaction log can be truncated and locks are released
+// between slices. A slice is (last key, upper key] where the upper key is MAX of the
+// first `size` keys above the last key. After the last range, rows with NULL keys are
+// inserted by a final slice.
+//
+// The keys of the next slice are saved in the task state before the slice runs, and
+// the task is polled again after each slice. Each slice has its own status row named
+// by the query id and the slice number, so a retry after a slice is committed skips
+// it even if the state wasn't saved yet. Keys are saved as text with the SQL type of
+// the key column, and bound as values of that type like download_chunk.
+class BatchedInsert
+{
+    private static final String STATE_KEY = "insertBatch";
+
+    private static Logger logger = LoggerFactory.getLogger(BatchedInsert.class);
+
+    private final String key;
+    private final int size;
+
+    private BatchedInsert(String key, int size)
+    {
+        this.key = key;
+        this.size = size;
+    }
+
+    static BatchedInsert configure(Config insertBatch)
+    {
+        String key = insertBatch.get("key", String.class);
+        int size = insertBatch.get("size", int.class, 100000);
+        if (size < 1) {
+            throw new ConfigException("insert_batch.size must be a positive number: " + size);
+        }
+        return new BatchedInsert(key, size);
+    }
+
+    // Inserts the next slice. Throws TaskExecutionException to poll the task again if
+    // more slices remain, and returns when all slices are inserted.
+    void insert(MssqlConnection connection, TransactionHelper txHelper, UUID queryId, String query, TableReference table, Config state)
+            throws NotReadOnlyException, LockConflictException
+    {
+        String escapedKey = connection.escapeIdent(key);
+
+        if (!state.has(STATE_KEY)) {
+            // save the keys of the first slice before running it
+            Config progress = state.getNestedOrSetEmpty(STATE_KEY).set("slice", 0L);
+            setUpperBound(progress, findBound(connection, query, escapedKey, Optional.absent()));
+            throw TaskExecutionException.ofNextPolling(0, ConfigElement.copyOf(state));
+        }
+
+        Config progress = state.getNested(STATE_KEY);
+        long slice = progress.get("slice", long.class);
+        Optional<String> lowerKey = progress.getOptional("last_key", String.class);
+        Optional<String> upperKey = progress.getOptional("upper_key", String.class);
+        Optional<String> keyType = progress.getOptional("key_type", String.class);
+
+        String predicate;
+        List<Object> parameters;
+        if (!upperKey.isPresent()) {
+            // rows with NULL keys aren't in any range
+            predicate = String.format(ENGLISH, "%s IS NULL", escapedKey);
+            parameters = ImmutableList.of();
+        }
+        else if (lowerKey.isPresent()) {
+            String keyParameter = ChunkedDownload.keyParameter(keyType.get());
+            predicate = String.format(ENGLISH, "%s > %s AND %s <= %s", escapedKey, keyParameter, escapedKey, keyParameter);
+            parameters = ImmutableList.of(lowerKey.get(), upperKey.get());
+        }
+        else {
+            predicate = String.format(ENGLISH, "%s <= %s", escapedKey, ChunkedDownload.keyParameter(keyType.get()));
+            parameters = ImmutableList.of(upperKey.get());
+        }
+        String statement = connection.buildInsertStatement(buildSliceQuery(query, predicate), table);
+
+        UUID sliceId = UUID.nameUUIDFromBytes((queryId + ":" + slice).getBytes(UTF_8));
+        int[] inserted = new int[] {-1};
+        boolean executed = txHelper.lockedTransaction(sliceId, () -> {
+            inserted[0] = connection.executeUpdate(statement, parameters);
+        });
+        if (!executed) {
+            logger.info("Slice {} is already completed according to status table. Skipping", slice);
+        }
+        else if (upperKey.isPresent()) {
+            logger.info("Inserted slice {} up to {} = {}: {} rows", slice, key, upperKey.get(), inserted[0]);
+        }
+        else {
+            logger.info("Inserted slice {} of NULL {}: {} rows", slice, key, inserted[0]);
+        }
+
+        if (!upperKey.isPresent()) {
+            state.remove(STATE_KEY);
+            logger.info("Inserted all {} slices", slice + 1);
+            return;
+        }
+        // A slice with fewer keys than size isn't taken as the end because rows may
+        // have been committed above it since its bound was found.
+        Optional<Bound> next = findBound(connection, query, escapedKey, Optional.of(new Bound(upperKey.get(), keyType.get())));
+        progress
+            .set("slice", slice + 1)
+            .set("last_key", upperKey.get());
+        setUpperBound(progress, next);
+        throw TaskExecutionException.ofNextPolling(0, ConfigElement.copyOf(state));
+    }
+
+    // Saves the upper key of the next slice, or makes the next slice the one of NULL
+    // keys if there are no more keys.
+    private static void setUpperBound(Config progress, Optional<Bound> bound)
+    {
+        if (bound.isPresent()) {
+            progress
+                .set("upper_key", bound.get().key)
+                .set("key_type", bound.get().type);
+        }
+        else {
+            progress.remove("upper_key");
+        }
+    }
+
+    private static class Bound
+    {
+        private final String key;
+        private final String type;
+
+        Bound(String key, String type)
+        {
+            this.key = key;
+            this.type = type;
+        }
+    }
+
+    // Upper key of the slice after lower. The keys are read at READ COMMITTED because
+    // a slice never goes back below its lower key, so a key of a row that is rolled
+    // back later must not be used, and rows that aren't committed yet must not be
+    // taken as the end.
+    private Optional<Bound> findBound(MssqlConnection connection, String query, String escapedKey, Optional<Bound> lower)
+            throws NotReadOnlyException
+    {
+        List<Object> values = new ArrayList<>();
+        String[] type = new String[1];
+        connection.executeCommittedQuery(
+                ChunkedDownload.buildBoundQuery(query, escapedKey, size, lower.transform((bound) -> ChunkedDownload.keyParameter(bound.type))),
+                lower.isPresent() ? ImmutableList.of(lower.get().key) : ImmutableList.of(),
+                (results) -> {
+                    type[0] = ChunkedDownload.keyType(((MssqlResultSet) results).getMetaData(), 1, "insert_batch.key " + key);
+                    values.addAll(results.next());
+                });
+        if (values.get(0) == null) {
+            return Optional.absent();
+        }
+        return Optional.of(new Bound(ChunkedDownload.keyText(values.get(0)), type[0]));
+    }
+
+    static String buildSliceQuery(String query, String predicate)
+    {
+        return String.format(ENGLISH,
+                "SELECT * FROM ( \n" +
+                "%s \n" +
+                ") digdag_slice WHERE %s",
+                query, predicate);
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+import com.microsoft.sqlserver.jdbc.SQLServerException;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.standards.operator.jdbc.TableReference;
+import io.digdag.util.Workspace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Locale.ENGLISH;
+
+// insert_into with upload_file option.
+//
+// Rows of a CSV file in the workspace are streamed into the table with the bulk copy
+// API of the driver instead of INSERT statements. The file needs a header, and files
+// whose name ends with .gz are decompressed while they are read.
+class BulkUpload
+{
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private static Logger logger = LoggerFactory.getLogger(BulkUpload.class);
+
+    private final String fileName;
+    private final int batchSize;
+    private final boolean tableLock;
+    private final Map<String, String> columnMapping;
+
+    private BulkUpload(String fileName, int batchSize, boolean tableLock, Map<String, String> columnMapping)
+    {
+        this.fileName = fileName;
+        this.batchSize = batchSize;
+        this.tableLock = tableLock;
+        this.columnMapping = columnMapping;
+    }
+
+    static BulkUpload configure(Config params)
+    {
+        String fileName = params.get("upload_file", String.class);
+        int batchSize = params.get("upload_batch_size", int.class, 10000);
+        if (batchSize < 0) {
+            throw new ConfigException("upload_batch_size must not be negative: " + batchSize);
+        }
+        boolean tableLock = params.get("upload_table_lock", boolean.class, false);
+        Map<String, String> columnMapping = new LinkedHashMap<>();
+        Config mapping = params.getNestedOrGetEmpty("upload_column_mapping");
+        for (String key : mapping.getKeys()) {
+            columnMapping.put(key, mapping.get(key, String.class));
+        }
+        return new BulkUpload(fileName, batchSize, tableLock, columnMapping);
+    }
+
+    // Returns {rows, seconds} of the upload. In a transaction of the task, all rows are
+    // committed or rolled back together. With auto-commit, each batch is committed.
+    Map<String, Object> upload(MssqlConnection connection, Workspace workspace, TableReference table)
+    {
+        long startTime = System.nanoTime();
+        CsvBulkRecord record;
+        try (CsvReader reader = new CsvReader(new InputStreamReader(openFile(workspace), UTF_8))) {
+            record = new CsvBulkRecord(reader, columnMapping);
+            connection.executeBulkCopy(table, record, bulkCopyOptions());
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+
+        long rows = record.rows();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        logger.info("Uploaded {} rows from {} in {} seconds ({} rows/sec)",
+                rows, fileName, String.format(ENGLISH, "%.3f", seconds), seconds > 0 ? Math.round(rows / seconds) : rows);
+        return ImmutableMap.of("rows", rows, "seconds", seconds);
+    }
+
+    private InputStream openFile(Workspace workspace)
+            throws IOException
+    {
+        InputStream in = Files.newInputStream(workspace.getPath(fileName));
+        if (!fileName.endsWith(".gz")) {
+            return in;
+        }
+        try {
+            return new GZIPInputStream(in, READ_BUFFER_SIZE);
+        }
+        catch (IOException | RuntimeException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    @VisibleForTesting
+    SQLServerBulkCopyOptions bulkCopyOptions()
+    {
+        SQLServerBulkCopyOptions options = new SQLServerBulkCopyOptions();
+        try {
+            // 0 sends all rows in one batch
+            options.setBatchSize(batchSize);
+            // no timeout. the task itself can be timed out by digdag.
+            options.setBulkCopyTimeout(0);
+        }
+        catch (SQLServerException ex) {
+            throw new ConfigException("Invalid upload options", ex);
+        }
+        options.setTableLock(tableLock);
+        options.setKeepNulls(true);
+        // no internal transaction. the driver rejects it on a connection it doesn't own.
+        return options;
+    }
+}
@@ -0,0 +1,295 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigElement;
+import io.digdag.client.config.ConfigException;
+import io.digdag.spi.TaskExecutionException;
+import io.digdag.standards.operator.jdbc.NotReadOnlyException;
+import io.digdag.util.Workspace;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.Locale.ENGLISH;
+
+// download_file with download_chunk option.
+//
+// Results are read in chunks of a key column with keyset predicates:
+//   1. the upper bound of the next chunk is MAX of the first `rows` keys above the
+//      last key, found by an index seek if the key is indexed.
+//   2. rows with keys in (last key, upper bound] are appended to the file.
+//   3. the upper bound and the size of the file are stored in the task state, and
+//      the task is polled again immediately to read the next chunk.
+// A retry of the task truncates the file to the stored size and resumes from the
+// last completed chunk. Duplicated keys are fine because a chunk always includes all
+// rows of its upper bound. Rows with NULL keys aren't in any range, so they are
+// appended by the same poll as the last chunk, like the last slice of insert_batch.
+//
+// Keys are kept in the state as text with the SQL type of the key column, and bound
+// as CAST(? AS type) so that the predicates compare values of the column type and can
+// seek an index. The type is checked at the first chunk.
+class ChunkedDownload
+{
+    private static final String STATE_KEY = "downloadChunk";
+
+    private static Logger logger = LoggerFactory.getLogger(ChunkedDownload.class);
+
+    private final String key;
+    private final int rows;
+
+    private ChunkedDownload(String key, int rows)
+    {
+        this.key = key;
+        this.rows = rows;
+    }
+
+    static ChunkedDownload configure(Config chunk)
+    {
+        String key = chunk.get("key", String.class);
+        int rows = chunk.get("rows", int.class, 100000);
+        if (rows < 1) {
+            throw new ConfigException("download_chunk.rows must be a positive number: " + rows);
+        }
+        return new ChunkedDownload(key, rows);
+    }
+
+    // Downloads the next chunk. Throws TaskExecutionException to poll the task again
+    // if more chunks remain, and returns when the file is complete.
+    void download(MssqlConnection connection, MssqlQueryOptions queryOptions, CsvDownload csvDownload,
+            Workspace workspace, String query, String fileName, Config state)
+            throws NotReadOnlyException
+    {
+        if (!csvDownload.isConcatenable()) {
+            throw new ConfigException("download_chunk can't be used with download_compression: deflate. Use gzip instead");
+        }
+
+        String escapedKey = connection.escapeIdent(key);
+
+        Optional<String> lastKey = Optional.absent();
+        Optional<String> lastKeyType = Optional.absent();
+        long chunks = 0;
+        if (state.has(STATE_KEY)) {
+            Config progress = state.getNested(STATE_KEY);
+            lastKey = Optional.of(progress.get("last_key", String.class));
+            lastKeyType = Optional.of(progress.get("key_type", String.class));
+            chunks = progress.get("chunks", long.class);
+            if (!truncate(workspace.getPath(fileName), progress.get("bytes", long.class))) {
+                // Starting over would lose the file again at the next poll if the
+                // workspace isn't kept between polls, and repeat forever.
+                throw new TaskExecutionException(String.format(ENGLISH,
+                            "%s doesn't have the %d chunks downloaded before. download_chunk needs the workspace to be kept while the task is polled",
+                            fileName, chunks));
+            }
+        }
+
+        // default options so that binary keys are hex, which CONVERT reads back
+        List<Object> bound = new ArrayList<>();
+        String[] keyType = new String[1];
+        connection.executeReadOnlyQuery(buildBoundQuery(query, escapedKey, rows, lastKeyType.transform(ChunkedDownload::keyParameter)),
+                parameters(lastKey), MssqlQueryOptions.defaults(), (results) -> {
+                    keyType[0] = keyType(((MssqlResultSet) results).getMetaData(), 1, "download_chunk.key " + key);
+                    bound.addAll(results.next());
+                });
+        Object upperBound = bound.get(0);
+        long count = ((Number) bound.get(1)).longValue();
+        String keyParameter = keyParameter(keyType[0]);
+
+        boolean first = !lastKey.isPresent();
+        if (upperBound == null) {
+            // no keys left. the first chunk writes the header even if there are no rows
+            writeNullKeys(connection, queryOptions, csvDownload, workspace, fileName, query, escapedKey, first);
+            state.remove(STATE_KEY);
+            logger.info("Downloaded {} chunks to {}", chunks, fileName);
+            return;
+        }
+
+        String predicate;
+        List<Object> parameters;
+        if (first) {
+            predicate = String.format(ENGLISH, "%s <= %s", escapedKey, keyParameter);
+            parameters = ImmutableList.of(keyText(upperBound));
+        }
+        else {
+            predicate = String.format(ENGLISH, "%s > %s AND %s <= %s", escapedKey, keyParameter, escapedKey, keyParameter);
+            parameters = ImmutableList.of(lastKey.get(), keyText(upperBound));
+        }
+        write(connection, queryOptions, csvDownload, workspace, fileName,
+                buildChunkQuery(query, predicate), parameters, first);
+        chunks++;
+
+        if (count < rows) {
+            // this was the last chunk
+            writeNullKeys(connection, queryOptions, csvDownload, workspace, fileName, query, escapedKey, false);
+            state.remove(STATE_KEY);
+            logger.info("Downloaded {} chunks to {}", chunks, fileName);
+            return;
+        }
+
+        long bytes;
+        try {
+            bytes = Files.size(workspace.getPath(fileName));
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+        logger.info("Downloaded chunk {} of {} up to {} = {}", chunks, fileName, key, upperBound);
+        state.getNestedOrSetEmpty(STATE_KEY)
+            .set("last_key", keyText(upperBound))
+            .set("key_type", keyType[0])
+            .set("bytes", bytes)
+            .set("chunks", chunks);
+        throw TaskExecutionException.ofNextPolling(0, ConfigElement.copyOf(state));
+    }
+
+    private static void write(MssqlConnection connection, MssqlQueryOptions queryOptions, CsvDownload csvDownload,
+            Workspace workspace, String fileName, String sql, List<Object> parameters, boolean first)
+            throws NotReadOnlyException
+    {
+        connection.executeReadOnlyQuery(sql, parameters, queryOptions, (results) -> {
+            try {
+                // the first chunk creates the file with the header
+                csvDownload.writeResults(results, workspace, fileName, first, !first);
+            }
+            catch (IOException ex) {
+                throw Throwables.propagate(ex);
+            }
+        });
+    }
+
+    // A failure here retries from the state of the previous poll, which writes the last
+    // chunk again too
+    private static void writeNullKeys(MssqlConnection connection, MssqlQueryOptions queryOptions, CsvDownload csvDownload,
+            Workspace workspace, String fileName, String query, String escapedKey, boolean first)
+            throws NotReadOnlyException
+    {
+        write(connection, queryOptions, csvDownload, workspace, fileName,
+                buildChunkQuery(query, escapedKey + " IS NULL"), ImmutableList.of(), first);
+    }
+
+    // Discards bytes written after the last completed chunk. Returns false if the file
+    // is shorter than that, such as when the workspace was recreated.
+    private static boolean truncate(Path file, long bytes)
+    {
+        try {
+            if (!Files.exists(file) || Files.size(file) < bytes) {
+                return false;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(bytes);
+            }
+            return true;
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    private static List<Object> parameters(Optional<String> lastKey)
+    {
+        return lastKey.isPresent() ? ImmutableList.of(lastKey.get()) : ImmutableList.of();
+    }
+
+    // SQL type of a key column that the text of its values is converted back to. Types
+    // whose text doesn't convert back to the same value, and LOBs, are rejected.
+    static String keyType(ResultSetMetaData metaData, int column, String option)
+    {
+        try {
+            String typeName = metaData.getColumnTypeName(column).toLowerCase(ENGLISH);
+            int precision = metaData.getPrecision(column);
+            int scale = metaData.getScale(column);
+            switch (typeName) {
+            case "tinyint":
+            case "smallint":
+            case "int":
+            case "bigint":
+            case "money":
+            case "smallmoney":
+            case "date":
+            case "datetime":
+            case "smalldatetime":
+            case "uniqueidentifier":
+                return typeName;
+            case "decimal":
+            case "numeric":
+                return String.format(ENGLISH, "%s(%d, %d)", typeName, precision, scale);
+            case "time":
+            case "datetime2":
+            case "datetimeoffset":
+                return String.format(ENGLISH, "%s(%d)", typeName, scale);
+            case "char":
+            case "varchar":
+            case "binary":
+            case "varbinary":
+                if (precision <= 8000) {
+                    return String.format(ENGLISH, "%s(%d)", typeName, precision);
+                }
+                break;
+            case "nchar":
+            case "nvarchar":
+                if (precision <= 4000) {
+                    return String.format(ENGLISH, "%s(%d)", typeName, precision);
+                }
+                break;
+            case "timestamp":
+            case "rowversion":
+                return "binary(8)";
+            default:
+                break;
+            }
+            throw new ConfigException(String.format(ENGLISH,
+                        "%s must be an integer, decimal, date/time, string, binary or uniqueidentifier column that isn't max: %s", option, typeName));
+        }
+        catch (SQLException ex) {
+            throw new ConfigException("Failed to get the type of " + option, ex);
+        }
+    }
+
+    // Placeholder that converts the text of a key to keyType. Binary keys are hex.
+    static String keyParameter(String keyType)
+    {
+        if (keyType.startsWith("binary(") || keyType.startsWith("varbinary(")) {
+            return String.format(ENGLISH, "CONVERT(%s, ?, 2)", keyType);
+        }
+        return String.format(ENGLISH, "CAST(? AS %s)", keyType);
+    }
+
+    static String keyText(Object value)
+    {
+        return IncrementalDownload.markText(value);
+    }
+
+    static String buildBoundQuery(String query, String escapedKey, int rows, Optional<String> lowerKeyParameter)
+    {
+        return String.format(ENGLISH,
+                "SELECT MAX(%s), COUNT_BIG(*) FROM ( \n" +
+                "SELECT TOP (%d) %s FROM ( \n" +
+                "%s \n" +
+                ") digdag_chunk WHERE %s ORDER BY %s \n" +
+                ") digdag_chunk_keys",
+                escapedKey, rows, escapedKey, query,
+                lowerKeyParameter.isPresent() ? escapedKey + " > " + lowerKeyParameter.get() : escapedKey + " IS NOT NULL",
+                escapedKey);
+    }
+
+    static String buildChunkQuery(String query, String predicate)
+    {
+        return String.format(ENGLISH,
+                "SELECT * FROM ( \n" +
+                "%s \n" +
+                ") digdag_chunk WHERE %s",
+                query, predicate);
+    }
+}
@@ -0,0 +1,312 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.io.BaseEncoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+// Reads a column of results in the form used by both download_file and
+// store_last_results. A codec is chosen once per column from ResultSetMetaData so that
+// values are read by a typed getter instead of getObject() and converted per cell.
+//
+//   tinyint, smallint, int, bigint:  getInt / getLong. Written to CSV without boxing.
+//   decimal, numeric, money:         BigDecimal written without exponent
+//   date, time, datetime, datetime2,
+//   smalldatetime, datetimeoffset:   ISO-8601 string such as 2019-01-02T03:04:05.1234567+09:00.
+//                                    Formatted by the driver from the wire value, so
+//                                    the JVM time zone doesn't shift values.
+//   binary, varbinary, etc.:         hex (default) or base64 string
+//   char, varchar, uniqueidentifier: getString
+//   varchar(max), nvarchar(max),
+//   varbinary(max), xml, text, image: streamed to CSV chunk by chunk
+abstract class ColumnCodec
+{
+    static final String HEX_BINARY = "hex";
+    static final String BASE64_BINARY = "base64";
+
+    // varchar(max), nvarchar(max) and varbinary(max) report the max size of LOBs
+    private static final int MAX_NON_LOB_PRECISION = 8000;
+
+    static ColumnCodec forColumn(ResultSetMetaData metaData, int column, String binaryFormat)
+            throws SQLException
+    {
+        int type = metaData.getColumnType(column);
+        switch (type) {
+        case Types.LONGVARCHAR:
+        case Types.LONGNVARCHAR:
+        case Types.CLOB:
+        case Types.NCLOB:
+        case Types.SQLXML:
+            return CHARACTER_LOB;
+        case Types.LONGVARBINARY:
+        case Types.BLOB:
+            return binaryFormat.equals(BASE64_BINARY) ? BASE64_LOB : HEX_LOB;
+        case Types.VARCHAR:
+        case Types.NVARCHAR:
+            if (metaData.getPrecision(column) > MAX_NON_LOB_PRECISION) {
+                return CHARACTER_LOB;
+            }
+            break;
+        case Types.VARBINARY:
+            if (metaData.getPrecision(column) > MAX_NON_LOB_PRECISION) {
+                return binaryFormat.equals(BASE64_BINARY) ? BASE64_LOB : HEX_LOB;
+            }
+            break;
+        default:
+            break;
+        }
+
+        switch (type) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+            return INT;
+        case Types.BIGINT:
+            return LONG;
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+        case microsoft.sql.Types.MONEY:
+        case microsoft.sql.Types.SMALLMONEY:
+            return DECIMAL;
+        case Types.DATE:
+        case Types.TIME:
+        case Types.TIMESTAMP:
+        case Types.TIMESTAMP_WITH_TIMEZONE:
+        case microsoft.sql.Types.DATETIME:
+        case microsoft.sql.Types.SMALLDATETIME:
+        case microsoft.sql.Types.DATETIMEOFFSET:
+            return TEMPORAL;
+        case Types.BINARY:
+        case Types.VARBINARY:
+        case microsoft.sql.Types.GEOMETRY:
+        case microsoft.sql.Types.GEOGRAPHY:
+            return binaryFormat.equals(BASE64_BINARY) ? BASE64 : HEX;
+        case Types.CHAR:
+        case Types.VARCHAR:
+        case Types.NCHAR:
+        case Types.NVARCHAR:
+        case microsoft.sql.Types.GUID:
+        case microsoft.sql.Types.SQL_VARIANT:
+            return STRING;
+        default:
+            return OBJECT;
+        }
+    }
+
+    // Value for store_last_results and download_pipeline. null if the value is NULL.
+    abstract Object read(ResultSet resultSet, int column)
+            throws SQLException;
+
+    void write(ResultSet resultSet, int column, CsvWriter out)
+            throws SQLException, IOException
+    {
+        out.addObject(read(resultSet, column));
+    }
+
+    private static final ColumnCodec INT = new ColumnCodec()
+    {
+        @Override
+        Object read(ResultSet resultSet, int column)
+                throws SQLException
+        {
+            int value = resultSet.getInt(column);
+            return resultSet.wasNull() ? null : value;
+        }
+
+        @Override
+        void write(ResultSet resultSet, int column, CsvWriter out)
+                throws SQLException, IOException
+        {
+            int value = resultSet.getInt(column);
+            if (resultSet.wasNull()) {
+                out.addNull();
+            }
+            else {
+                out.addLong(value);
+            }
+        }
+    };
+
+    private static final ColumnCodec LONG = new ColumnCodec()
+    {
+        @Override
+        Object read(ResultSet resultSet, int column)
+                throws SQLException
+        {
+            long value = resultSet.getLong(column);
+            return resultSet.wasNull() ? null : value;
+        }
+
+        @Override
+        void write(ResultSet resultSet, int column, CsvWriter out)
+                throws SQLException, IOException
+        {
+            long value = resultSet.getLong(column);
+            if (resultSet.wasNull()) {
+                out.addNull();
+            }
+            else {
+                out.addLong(value);
+            }
+        }
+    };
+
+    private static final ColumnCodec DECIMAL = new ColumnCodec()
+    {
+        @Override
+        Object read(ResultSet resultSet, int column)
+                throws SQLException
+        {
+            return resultSet.getBigDecimal(column);
+        }
+
+        @Override
+        void write(ResultSet resultSet, int column, CsvWriter out)
+                throws SQLException, IOException
+        {
+            BigDecimal value = resultSet.getBigDecimal(column);
+            out.addValue(value == null ? null : value.toPlainString());
+        }
+    };
+
+    private static final ColumnCodec TEMPORAL = new ColumnCodec()
+    {
+        @Override
+        Object read(ResultSet resultSet, int column)
+                throws SQLException
+        {
+            String value = resultSet.getString(column);
+            return value == null ? null : isoTemporal(value);
+        }
+    };
+
+    private static final ColumnCodec HEX = new ColumnCodec()
+    {
+        @Override
+        Object read(ResultSet resultSet, int column)
+                throws SQLException
+        {
+            byte[] value = resultSet.getBytes(column);
+            return value == null ? null : BaseEncoding.base16().encode(value);
+        }
+    };
+
+    private static final ColumnCodec BASE64 = new ColumnCodec()
+    {
+        @Override
+        Object read(ResultSet resultSet, int column)
+                throws SQLException
+        {
+            byte[] value = resultSet.getBytes(column);
+            return value == null ? null : BaseEncoding.base64().encode(value);
+        }
+    };
+
+    private static final ColumnCodec STRING = new ColumnCodec()
+    {
+        @Override
+        Object read(ResultSet resultSet, int column)
+                throws SQLException
+        {
+            return resultSet.getString(column);
+        }
+
+        @Override
+        void write(ResultSet resultSet, int column, CsvWriter out)
+                throws SQLException, IOException
+        {
+            out.addValue(resultSet.getString(column));
+        }
+    };
+
+    // LOBs are written to CSV through a stream so that a large value doesn't need to
+    // fit in memory. With adaptive response buffering, the driver streams the value
+    // from the network too. read() still materializes the value.
+    private static final ColumnCodec CHARACTER_LOB = new ColumnCodec()
+    {
+        @Override
+        Object read(ResultSet resultSet, int column)
+                throws SQLException
+        {
+            return resultSet.getString(column);
+        }
+
+        @Override
+        void write(ResultSet resultSet, int column, CsvWriter out)
+                throws SQLException, IOException
+        {
+            try (Reader reader = resultSet.getCharacterStream(column)) {
+                out.addValue(reader);
+            }
+        }
+    };
+
+    private static final ColumnCodec HEX_LOB = new BinaryLobCodec(BaseEncoding.base16());
+
+    private static final ColumnCodec BASE64_LOB = new BinaryLobCodec(BaseEncoding.base64());
+
+    private static class BinaryLobCodec
+            extends ColumnCodec
+    {
+        private final BaseEncoding encoding;
+
+        BinaryLobCodec(BaseEncoding encoding)
+        {
+            this.encoding = encoding;
+        }
+
+        @Override
+        Object read(ResultSet resultSet, int column)
+                throws SQLException
+        {
+            byte[] value = resultSet.getBytes(column);
+            return value == null ? null : encoding.encode(value);
+        }
+
+        @Override
+        void write(ResultSet resultSet, int column, CsvWriter out)
+                throws SQLException, IOException
+        {
+            try (InputStream in = resultSet.getBinaryStream(column)) {
+                out.addBinary(in, encoding);
+            }
+        }
+    }
+
+    // Types without a dedicated codec (bit, float, real, user types, ...)
+    private static final ColumnCodec OBJECT = new ColumnCodec()
+    {
+        @Override
+        Object read(ResultSet resultSet, int column)
+                throws SQLException
+        {
+            return resultSet.getObject(column);
+        }
+    };
+
+    // The driver formats temporal values as "2019-01-02 03:04:05.1234567 +09:00".
+    // Changes it to "2019-01-02T03:04:05.1234567+09:00".
+    static String isoTemporal(String value)
+    {
+        int length = value.length();
+        if (length <= 10 || value.charAt(10) != ' ') {
+            // date or time
+            return value;
+        }
+        char[] chars = new char[length];
+        value.getChars(0, length, chars, 0);
+        chars[10] = 'T';
+        int offsetSpace = value.lastIndexOf(' ');
+        if (offsetSpace > 10 && offsetSpace + 1 < length && (chars[offsetSpace + 1] == '+' || chars[offsetSpace + 1] == '-')) {
+            System.arraycopy(chars, offsetSpace + 1, chars, offsetSpace, length - offsetSpace - 1);
+            return new String(chars, 0, length - 1);
+        }
+        return new String(chars);
+    }
+}
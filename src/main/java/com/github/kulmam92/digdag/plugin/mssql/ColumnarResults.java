@@ -0,0 +1,219 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import io.digdag.spi.TaskExecutionException;
+
+import java.math.BigDecimal;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Rows of store_last_results: all, kept by column.
+//
+// Column names are stored once instead of as keys of a map per row, and integer columns
+// are kept in long arrays. The estimated heap usage is checked against maxBytes while
+// rows are added. toRows() returns a view that builds a map per row only when the
+// row is read, so the rows are materialized once while they are converted to Config.
+class ColumnarResults
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final List<String> columnNames;
+    private final Column[] columns;
+    private final long maxBytes;
+    private int rows;
+    private long bytes;
+
+    ColumnarResults(List<String> columnNames, long maxBytes)
+    {
+        this.columnNames = columnNames;
+        this.columns = new Column[columnNames.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new LongColumn();
+            bytes += columns[i].estimatedBytes();
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    void add(List<Object> values)
+    {
+        for (int i = 0; i < columns.length; i++) {
+            Object value = values.get(i);
+            if (!columns[i].accepts(value)) {
+                ObjectColumn widened = new ObjectColumn(columns[i], rows);
+                bytes += widened.estimatedBytes() - columns[i].estimatedBytes();
+                columns[i] = widened;
+            }
+            bytes += columns[i].add(rows, value);
+        }
+        rows++;
+        if (bytes > maxBytes) {
+            throw new TaskExecutionException("The size of results exceeded the limit: " + bytes + " > " + maxBytes + " bytes");
+        }
+    }
+
+    int size()
+    {
+        return rows;
+    }
+
+    long estimatedBytes()
+    {
+        return bytes;
+    }
+
+    List<Map<String, Object>> toRows()
+    {
+        return new AbstractList<Map<String, Object>>()
+        {
+            @Override
+            public Map<String, Object> get(int index)
+            {
+                if (index < 0 || index >= rows) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + rows);
+                }
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < columns.length; i++) {
+                    map.put(columnNames.get(i), columns[i].get(index));
+                }
+                return map;
+            }
+
+            @Override
+            public int size()
+            {
+                return rows;
+            }
+        };
+    }
+
+    private static int grow(int capacity, int required)
+    {
+        return Math.max(capacity * 2, required);
+    }
+
+    private interface Column
+    {
+        boolean accepts(Object value);
+
+        // Returns the estimated number of bytes added
+        long add(int row, Object value);
+
+        Object get(int row);
+
+        long estimatedBytes();
+    }
+
+    private static class LongColumn
+            implements Column
+    {
+        private long[] values = new long[INITIAL_CAPACITY];
+        private final BitSet nulls = new BitSet();
+
+        @Override
+        public boolean accepts(Object value)
+        {
+            return value == null || value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+        }
+
+        @Override
+        public long add(int row, Object value)
+        {
+            long added = 0;
+            if (row >= values.length) {
+                int capacity = grow(values.length, row + 1);
+                added = 8L * (capacity - values.length);
+                values = Arrays.copyOf(values, capacity);
+            }
+            if (value == null) {
+                nulls.set(row);
+            }
+            else {
+                values[row] = ((Number) value).longValue();
+            }
+            return added;
+        }
+
+        @Override
+        public Object get(int row)
+        {
+            return nulls.get(row) ? null : values[row];
+        }
+
+        @Override
+        public long estimatedBytes()
+        {
+            return 8L * values.length;
+        }
+    }
+
+    private static class ObjectColumn
+            implements Column
+    {
+        private Object[] values;
+        private long valueBytes;
+
+        ObjectColumn(Column column, int rows)
+        {
+            this.values = new Object[Math.max(INITIAL_CAPACITY, rows)];
+            for (int row = 0; row < rows; row++) {
+                Object value = column.get(row);
+                values[row] = value;
+                valueBytes += estimateValueBytes(value);
+            }
+        }
+
+        @Override
+        public boolean accepts(Object value)
+        {
+            return true;
+        }
+
+        @Override
+        public long add(int row, Object value)
+        {
+            long valueSize = estimateValueBytes(value);
+            long added = valueSize;
+            if (row >= values.length) {
+                int capacity = grow(values.length, row + 1);
+                added += 8L * (capacity - values.length);
+                values = Arrays.copyOf(values, capacity);
+            }
+            values[row] = value;
+            valueBytes += valueSize;
+            return added;
+        }
+
+        @Override
+        public Object get(int row)
+        {
+            return values[row];
+        }
+
+        @Override
+        public long estimatedBytes()
+        {
+            return 8L * values.length + valueBytes;
+        }
+    }
+
+    // Rough heap usage of a value excluding the reference to it
+    static long estimateValueBytes(Object value)
+    {
+        if (value == null || value instanceof Boolean) {
+            return 0;
+        }
+        else if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        }
+        else if (value instanceof Number) {
+            // boxed primitives are 16 bytes and BigDecimal is larger
+            return value instanceof BigDecimal ? 64 : 16;
+        }
+        else {
+            return 64;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Throwables;
+import com.google.common.io.BaseEncoding;
+import com.microsoft.sqlserver.jdbc.ISQLServerBulkRecord;
+import com.microsoft.sqlserver.jdbc.SQLServerException;
+import io.digdag.client.config.ConfigException;
+import io.digdag.spi.TaskExecutionException;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Locale.ENGLISH;
+
+// Rows of a CSV file with a header for SQLServerBulkCopy (upload_file option).
+//
+// Each CSV column is declared with the type of the table column it's copied to, and
+// values are converted to the Java types that the bulk copy writes for those types.
+// Date and time values are passed as text and parsed by the driver, so ISO-8601 text
+// written by download_file is normalized to the driver's format first.
+class CsvBulkRecord
+        implements ISQLServerBulkRecord
+{
+    private final CsvReader reader;
+    private final List<String> csvColumnNames;
+    private final Map<String, String> columnMapping;
+
+    // by 1-based ordinal of CSV columns that are copied
+    private final Map<Integer, ColumnType> columnTypes = new LinkedHashMap<>();
+    private final Map<Integer, String> destinationNames = new LinkedHashMap<>();
+
+    private List<String> row;
+    private long rows;
+
+    // columnMapping maps CSV column names to table column names. If it's empty, columns
+    // are copied to the table columns of the same names.
+    CsvBulkRecord(CsvReader reader, Map<String, String> columnMapping)
+            throws IOException
+    {
+        this.reader = reader;
+        this.csvColumnNames = reader.readRow();
+        if (csvColumnNames == null) {
+            throw new ConfigException("upload_file is empty. It needs a header row");
+        }
+        this.columnMapping = columnMapping;
+        for (String name : columnMapping.keySet()) {
+            if (!csvColumnNames.contains(name)) {
+                throw new ConfigException("upload_column_mapping has a column that isn't in the header of upload_file: " + name);
+            }
+        }
+    }
+
+    // Declares types of the CSV columns from the columns of the destination table.
+    // Returns table column names by CSV ordinal to map the columns with.
+    Map<Integer, String> bindDestination(ResultSetMetaData table)
+            throws SQLException
+    {
+        Map<String, Integer> tableColumns = new LinkedHashMap<>();
+        for (int i = 1; i <= table.getColumnCount(); i++) {
+            tableColumns.put(table.getColumnName(i).toLowerCase(Locale.ROOT), i);
+        }
+        for (int i = 0; i < csvColumnNames.size(); i++) {
+            String csvName = csvColumnNames.get(i);
+            String destination;
+            if (columnMapping.isEmpty()) {
+                destination = csvName;
+            }
+            else if (columnMapping.containsKey(csvName)) {
+                destination = columnMapping.get(csvName);
+            }
+            else {
+                // not mapped. skip the column
+                continue;
+            }
+            Integer tableColumn = tableColumns.get(destination == null ? null : destination.toLowerCase(Locale.ROOT));
+            if (tableColumn == null) {
+                throw new ConfigException(String.format(ENGLISH,
+                            "Column %s of upload_file doesn't exist in the table. Use upload_column_mapping to map or skip it", destination));
+            }
+            columnTypes.put(i + 1, ColumnType.of(table, tableColumn));
+            destinationNames.put(i + 1, table.getColumnName(tableColumn));
+        }
+        if (columnTypes.isEmpty()) {
+            throw new ConfigException("No columns of upload_file are mapped to the table");
+        }
+        return destinationNames;
+    }
+
+    long rows()
+    {
+        return rows;
+    }
+
+    @Override
+    public Set<Integer> getColumnOrdinals()
+    {
+        return new LinkedHashSet<>(columnTypes.keySet());
+    }
+
+    @Override
+    public String getColumnName(int column)
+    {
+        return csvColumnNames.get(column - 1);
+    }
+
+    @Override
+    public int getColumnType(int column)
+    {
+        return columnTypes.get(column).jdbcType;
+    }
+
+    @Override
+    public int getPrecision(int column)
+    {
+        return columnTypes.get(column).precision;
+    }
+
+    @Override
+    public int getScale(int column)
+    {
+        return columnTypes.get(column).scale;
+    }
+
+    @Override
+    public boolean isAutoIncrement(int column)
+    {
+        return false;
+    }
+
+    @Override
+    public boolean next()
+            throws SQLServerException
+    {
+        // the driver can't construct SQLServerException out of its package. errors are
+        // thrown as unchecked exceptions through writeToServer.
+        try {
+            row = reader.readRow();
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+        if (row == null) {
+            return false;
+        }
+        if (row.size() != csvColumnNames.size()) {
+            throw new TaskExecutionException(String.format(ENGLISH,
+                        "Row %d of upload_file has %d columns but the header has %d",
+                        reader.rowNumber() - 1, row.size(), csvColumnNames.size()));
+        }
+        rows++;
+        return true;
+    }
+
+    @Override
+    public Object[] getRowData()
+            throws SQLServerException
+    {
+        Object[] data = new Object[csvColumnNames.size()];
+        for (Map.Entry<Integer, ColumnType> column : columnTypes.entrySet()) {
+            int index = column.getKey() - 1;
+            String value = row.get(index);
+            try {
+                data[index] = value == null ? null : column.getValue().convert(value);
+            }
+            catch (IllegalArgumentException ex) {
+                throw new TaskExecutionException(String.format(ENGLISH,
+                            "Invalid value of column %s at row %d of upload_file: %s",
+                            csvColumnNames.get(index), reader.rowNumber() - 1, value), ex);
+            }
+        }
+        return data;
+    }
+
+    // Metadata is declared by bindDestination, and date and time values are passed as
+    // text in the driver's format. These are setters for callers that build the record,
+    // which SQLServerBulkCopy never calls, so they are ignored.
+    @Override
+    public void addColumnMetadata(int positionInFile, String name, int jdbcType, int precision, int scale, DateTimeFormatter dateTimeFormatter)
+    { }
+
+    @Override
+    public void addColumnMetadata(int positionInFile, String name, int jdbcType, int precision, int scale)
+    { }
+
+    @Override
+    public void setTimestampWithTimezoneFormat(String dateTimeFormat)
+    { }
+
+    @Override
+    public void setTimestampWithTimezoneFormat(DateTimeFormatter dateTimeFormatter)
+    { }
+
+    @Override
+    public void setTimeWithTimezoneFormat(String timeFormat)
+    { }
+
+    @Override
+    public void setTimeWithTimezoneFormat(DateTimeFormatter dateTimeFormatter)
+    { }
+
+    @Override
+    public DateTimeFormatter getColumnDateTimeFormatter(int column)
+    {
+        return null;
+    }
+
+    // 2019-01-02T03:04:05.1234567+09:00 -> 2019-01-02 03:04:05.1234567 +09:00
+    static String driverTemporal(String value)
+    {
+        StringBuilder sb = new StringBuilder(value.length() + 1);
+        sb.append(value);
+        if (sb.length() > 10 && sb.charAt(10) == 'T') {
+            sb.setCharAt(10, ' ');
+        }
+        int last = sb.length() - 1;
+        if (last > 10 && sb.charAt(last) == 'Z') {
+            sb.setLength(last);
+            sb.append(" +00:00");
+        }
+        else if (last > 16 && sb.charAt(last - 2) == ':' && (sb.charAt(last - 5) == '+' || sb.charAt(last - 5) == '-') && sb.charAt(last - 6) != ' ') {
+            sb.insert(last - 5, ' ');
+        }
+        return sb.toString();
+    }
+
+    private static class ColumnType
+    {
+        private final int jdbcType;
+        private final int precision;
+        private final int scale;
+
+        private ColumnType(int jdbcType, int precision, int scale)
+        {
+            this.jdbcType = jdbcType;
+            this.precision = precision;
+            this.scale = scale;
+        }
+
+        static ColumnType of(ResultSetMetaData table, int column)
+                throws SQLException
+        {
+            int precision = table.getPrecision(column);
+            int scale = table.getScale(column);
+            int type = table.getColumnType(column);
+            switch (type) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return new ColumnType(Types.BIT, precision, scale);
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.DATE:
+            case Types.TIME:
+            case Types.TIMESTAMP:
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+                return new ColumnType(type, precision, scale);
+            case microsoft.sql.Types.MONEY:
+            case microsoft.sql.Types.SMALLMONEY:
+                return new ColumnType(Types.DECIMAL, precision, scale);
+            case microsoft.sql.Types.DATETIME:
+            case microsoft.sql.Types.SMALLDATETIME:
+                return new ColumnType(Types.TIMESTAMP, precision, scale);
+            case microsoft.sql.Types.DATETIMEOFFSET:
+                return new ColumnType(microsoft.sql.Types.DATETIMEOFFSET, precision, scale);
+            case Types.BLOB:
+                return new ColumnType(Types.LONGVARBINARY, precision, scale);
+            default:
+                // character, uniqueidentifier, xml and others are sent as text and
+                // converted by the server
+                return new ColumnType(Types.NVARCHAR, precision, scale);
+            }
+        }
+
+        Object convert(String value)
+        {
+            switch (jdbcType) {
+            case Types.BIT:
+                if (value.equals("1") || value.equalsIgnoreCase("true")) {
+                    return Boolean.TRUE;
+                }
+                else if (value.equals("0") || value.equalsIgnoreCase("false")) {
+                    return Boolean.FALSE;
+                }
+                throw new IllegalArgumentException("Not a boolean: " + value);
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return Integer.valueOf(value);
+            case Types.BIGINT:
+                return Long.valueOf(value);
+            case Types.REAL:
+                return Float.valueOf(value);
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return Double.valueOf(value);
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return new BigDecimal(value);
+            case Types.DATE:
+            case Types.TIME:
+            case Types.TIMESTAMP:
+            case microsoft.sql.Types.DATETIMEOFFSET:
+                return driverTemporal(value);
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+                // binary_format: hex of download_file
+                return BaseEncoding.base16().decode(value.toUpperCase(ENGLISH));
+            default:
+                return value;
+            }
+        }
+    }
+}
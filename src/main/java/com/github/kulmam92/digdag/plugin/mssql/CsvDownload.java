@@ -0,0 +1,220 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.standards.operator.jdbc.JdbcResultSet;
+import io.digdag.util.Workspace;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.util.Locale.ENGLISH;
+
+// Writes results of a read-only query to a CSV file
+class CsvDownload
+{
+    static final String GZIP_COMPRESSION = "gzip";
+    static final String DEFLATE_COMPRESSION = "deflate";
+
+    private static final int COMPRESSION_BUFFER_SIZE = 256 * 1024;
+
+    private final Optional<CsvPipeline> pipeline;
+    private final Optional<String> compression;
+
+    CsvDownload(Optional<CsvPipeline> pipeline, Optional<String> compression)
+    {
+        this.pipeline = pipeline;
+        this.compression = compression;
+    }
+
+    static CsvDownload configure(Config params)
+    {
+        Optional<String> compression = params.getOptional("download_compression", String.class);
+        if (compression.isPresent() && !compression.get().equals(GZIP_COMPRESSION) && !compression.get().equals(DEFLATE_COMPRESSION)) {
+            throw new ConfigException("download_compression must be either gzip or deflate: " + compression.get());
+        }
+        return new CsvDownload(
+                params.getOptional("download_pipeline", Config.class).transform(CsvPipeline::configure),
+                compression);
+    }
+
+    // Whether files written by this download can be concatenated byte by byte.
+    // Concatenated gzip members are a valid gzip file but zlib streams aren't.
+    boolean isConcatenable()
+    {
+        return !compression.isPresent() || compression.get().equals(GZIP_COMPRESSION);
+    }
+
+    // Extension of files named by this download
+    String fileExtension()
+    {
+        return ".csv" + compressionSuffix();
+    }
+
+    boolean isPipelined()
+    {
+        return pipeline.isPresent();
+    }
+
+    void writeResults(JdbcResultSet results, Workspace workspace, String fileName, boolean header)
+            throws IOException
+    {
+        writeResults(results, workspace, fileName, header, false);
+    }
+
+    // Same as writeResults but appends to the file if append is true. Appended
+    // gzip output becomes another member of the file.
+    void writeResults(JdbcResultSet results, Workspace workspace, String fileName, boolean header, boolean append)
+            throws IOException
+    {
+        if (append && !isConcatenable()) {
+            throw new IllegalStateException("Can't append to a file of download_compression: " + compression.get());
+        }
+
+        if (pipeline.isPresent() && compression.isPresent() && compression.get().equals(GZIP_COMPRESSION)) {
+            // format workers compress batches in parallel
+            try (FileChannel out = openFile(workspace, fileName, append)) {
+                pipeline.get().writeResults(results, out, header, true);
+            }
+            return;
+        }
+
+        WritableByteChannel out = openChannel(workspace, fileName, append);
+
+        if (pipeline.isPresent()) {
+            try (WritableByteChannel closing = out) {
+                pipeline.get().writeResults(results, closing, header, false);
+            }
+            return;
+        }
+
+        // UTF-8 encoded straight into large FileChannel writes
+        try (CsvWriter csvWriter = new CsvWriter(new Utf8ChannelWriter(out))) {
+            if (header) {
+                List<String> columnNames = results.getColumnNames();
+                csvWriter.addCsvHeader(columnNames);
+            }
+            if (results instanceof MssqlResultSet) {
+                // typed getters straight into the CSV buffer without boxing values
+                MssqlResultSet mssqlResults = (MssqlResultSet) results;
+                while (mssqlResults.writeNextRow(csvWriter))
+                    ;
+                return;
+            }
+            while (true) {
+                List<Object> values = results.next();
+                if (values == null) {
+                    break;
+                }
+                csvWriter.addCsvRow(values);
+            }
+        }
+    }
+
+    private static FileChannel openFile(Workspace workspace, String fileName, boolean append)
+            throws IOException
+    {
+        return FileChannel.open(workspace.getPath(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // Opens a file to write uncompressed CSV bytes to. The bytes are compressed if
+    // download_compression is set.
+    WritableByteChannel openChannel(Workspace workspace, String fileName)
+            throws IOException
+    {
+        return openChannel(workspace, fileName, false);
+    }
+
+    private WritableByteChannel openChannel(Workspace workspace, String fileName, boolean append)
+            throws IOException
+    {
+        FileChannel channel = openFile(workspace, fileName, append);
+        if (!compression.isPresent()) {
+            return channel;
+        }
+        try {
+            return Channels.newChannel(compressingStream(Channels.newOutputStream(channel)));
+        }
+        catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private OutputStream compressingStream(OutputStream out)
+            throws IOException
+    {
+        if (compression.get().equals(GZIP_COMPRESSION)) {
+            return new GZIPOutputStream(out, COMPRESSION_BUFFER_SIZE);
+        }
+        else {
+            return new DeflaterOutputStream(out, new Deflater(), COMPRESSION_BUFFER_SIZE) {
+                @Override
+                public void close()
+                        throws IOException
+                {
+                    try {
+                        super.close();
+                    }
+                    finally {
+                        // a Deflater given to the constructor isn't released by close()
+                        def.end();
+                    }
+                }
+            };
+        }
+    }
+
+    // test.csv -> test-00001.csv. With download_compression, the suffix of the
+    // compression stays at the end and is added if the name doesn't have it:
+    // test.csv.gz -> test-00001.csv.gz and test.csv -> test-00001.csv.gz
+    String numberedFileName(String fileName, int number)
+    {
+        String suffix = compressionSuffix();
+        String name = fileName;
+        if (name.endsWith(suffix)) {
+            name = name.substring(0, name.length() - suffix.length());
+        }
+        int dot = name.lastIndexOf('.');
+        int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+        if (dot <= slash + 1) {
+            return String.format(ENGLISH, "%s-%05d%s", name, number, suffix);
+        }
+        return String.format(ENGLISH, "%s-%05d%s%s", name.substring(0, dot), number, name.substring(dot), suffix);
+    }
+
+    // Deletes numbered files of an earlier run, which may have written more files
+    // than this one
+    void deleteNumberedFiles(Workspace workspace, String fileName)
+            throws IOException
+    {
+        int number = 1;
+        while (Files.deleteIfExists(workspace.getPath(numberedFileName(fileName, number++))))
+            ;
+    }
+
+    private String compressionSuffix()
+    {
+        if (!compression.isPresent()) {
+            return "";
+        }
+        else if (compression.get().equals(GZIP_COMPRESSION)) {
+            return ".gz";
+        }
+        else {
+            return ".deflate";
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.standards.operator.jdbc.JdbcResultSet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// download_pipeline option.
+//
+// Fetching rows, formatting CSV and writing to disk run concurrently:
+//   * the calling thread fetches rows from the result set into batches
+//   * format workers encode batches into bytes
+//   * a writer thread appends encoded batches to the channel in fetch order
+// At most queueBatches batches are in flight, so memory stays bounded even if the disk
+// or the formatters are slower than the network.
+//
+// With gzip, each batch is compressed by its format worker as an independent gzip
+// member. Concatenated members are a valid gzip file (RFC 1952), so compression scales
+// with the number of workers.
+class CsvPipeline
+{
+    private static final int DEFAULT_BATCH_ROWS = 10000;
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final int workers;
+    private final int batchRows;
+    private final int queueBatches;
+
+    CsvPipeline(int workers, int batchRows, int queueBatches)
+    {
+        this.workers = workers;
+        this.batchRows = batchRows;
+        this.queueBatches = queueBatches;
+    }
+
+    static CsvPipeline configure(Config pipeline)
+    {
+        int workers = pipeline.get("workers", int.class, 2);
+        int batchRows = pipeline.get("batch_rows", int.class, DEFAULT_BATCH_ROWS);
+        int queueBatches = pipeline.get("queue_batches", int.class, workers * 2);
+        if (workers < 1 || batchRows < 1 || queueBatches < 1) {
+            throw new ConfigException("download_pipeline.workers, batch_rows and queue_batches must be positive numbers");
+        }
+        return new CsvPipeline(workers, batchRows, queueBatches);
+    }
+
+    void writeResults(JdbcResultSet results, WritableByteChannel out, boolean header, boolean gzip)
+            throws IOException
+    {
+        ExecutorService formatters = Executors.newFixedThreadPool(workers,
+                new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("mssql-download-format-%d")
+                    .build());
+        ExecutorService writer = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("mssql-download-write-%d")
+                    .build());
+        ConcurrentLinkedQueue<BatchFormatter> allFormatters = new ConcurrentLinkedQueue<>();
+        ThreadLocal<BatchFormatter> formatterOfThread = ThreadLocal.withInitial(() -> {
+            BatchFormatter formatter = new BatchFormatter(gzip);
+            allFormatters.add(formatter);
+            return formatter;
+        });
+        // encoded batches in fetch order
+        BlockingQueue<Future<byte[]>> writeQueue = new ArrayBlockingQueue<>(queueBatches);
+        Future<byte[]> end = CompletableFuture.completedFuture(null);
+
+        try {
+            Future<?> writing = writer.submit(() -> {
+                while (true) {
+                    Future<byte[]> batch = writeQueue.take();
+                    if (batch == end) {
+                        return null;
+                    }
+                    ByteBuffer bytes = ByteBuffer.wrap(batch.get());
+                    while (bytes.hasRemaining()) {
+                        out.write(bytes);
+                    }
+                }
+            });
+
+            if (header) {
+                List<List<Object>> headerRow = new ArrayList<>();
+                headerRow.add(new ArrayList<Object>(results.getColumnNames()));
+                enqueue(writeQueue, formatters.submit(() -> formatterOfThread.get().format(headerRow)), writing);
+            }
+
+            while (true) {
+                List<List<Object>> rows = new ArrayList<>(batchRows);
+                while (rows.size() < batchRows) {
+                    List<Object> values = results.next();
+                    if (values == null) {
+                        break;
+                    }
+                    rows.add(values);
+                }
+                if (!rows.isEmpty()) {
+                    enqueue(writeQueue, formatters.submit(() -> formatterOfThread.get().format(rows)), writing);
+                }
+                if (rows.size() < batchRows) {
+                    break;
+                }
+            }
+            enqueue(writeQueue, end, writing);
+
+            waitFor(writing);
+        }
+        finally {
+            formatters.shutdownNow();
+            writer.shutdownNow();
+            // after a failure, a worker may still be deflating a batch and the writer may
+            // still be writing to out. end the deflaters and return only after they stop.
+            if (awaitTermination(formatters) && awaitTermination(writer)) {
+                for (BatchFormatter formatter : allFormatters) {
+                    formatter.close();
+                }
+            }
+        }
+    }
+
+    // Returns false if interrupted before the executor terminates. The deflaters are
+    // left to the garbage collector then rather than ending one that is in use.
+    private static boolean awaitTermination(ExecutorService executor)
+    {
+        try {
+            while (!executor.awaitTermination(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS))
+                ;
+            return true;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Blocks while the queue is full so that the fetcher can't run ahead of the writer
+    private static void enqueue(BlockingQueue<Future<byte[]>> writeQueue, Future<byte[]> batch, Future<?> writing)
+            throws IOException
+    {
+        try {
+            while (!writeQueue.offer(batch, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (writing.isDone()) {
+                    // the writer failed and won't take any more batches
+                    waitFor(writing);
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    private static void waitFor(Future<?> future)
+            throws IOException
+    {
+        try {
+            future.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(ex);
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof ExecutionException) {
+                // failure of a format worker passed through the writer
+                cause = cause.getCause();
+            }
+            Throwables.propagateIfInstanceOf(cause, IOException.class);
+            throw Throwables.propagate(cause);
+        }
+    }
+
+    // CSV formatting state reused by batches on the same worker thread
+    private static class BatchFormatter
+    {
+        private static final byte[] GZIP_HEADER = new byte[] {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+        };
+
+        private final ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream();
+        private final CsvWriter csvWriter = new CsvWriter(new Utf8ChannelWriter(Channels.newChannel(bytes), 64 * 1024));
+        private final Deflater deflater;
+        private final CRC32 crc;
+        private final byte[] deflated;
+        private final ByteArrayOutputStream member;
+
+        BatchFormatter(boolean gzip)
+        {
+            if (gzip) {
+                this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                this.crc = new CRC32();
+                this.deflated = new byte[64 * 1024];
+                this.member = new ByteArrayOutputStream(256 * 1024);
+            }
+            else {
+                this.deflater = null;
+                this.crc = null;
+                this.deflated = null;
+                this.member = null;
+            }
+        }
+
+        byte[] format(List<List<Object>> rows)
+                throws IOException
+        {
+            bytes.reset();
+            for (List<Object> row : rows) {
+                csvWriter.addCsvRow(row);
+            }
+            csvWriter.flush();
+            if (deflater == null) {
+                return bytes.toByteArray();
+            }
+            return gzipMember(bytes.buffer(), bytes.size());
+        }
+
+        private byte[] gzipMember(byte[] data, int length)
+        {
+            member.reset();
+            member.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+
+            deflater.reset();
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(deflated);
+                member.write(deflated, 0, n);
+            }
+
+            crc.reset();
+            crc.update(data, 0, length);
+            writeIntLE(member, (int) crc.getValue());
+            writeIntLE(member, length);
+            return member.toByteArray();
+        }
+
+        private static void writeIntLE(ByteArrayOutputStream out, int value)
+        {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+
+        void close()
+        {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    private static class ExposedByteArrayOutputStream
+            extends ByteArrayOutputStream
+    {
+        ExposedByteArrayOutputStream()
+        {
+            super(1024 * 1024);
+        }
+
+        byte[] buffer()
+        {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads CSV written by CsvWriter or other RFC 4180 writers.
+//
+// Chars are read into a reusable buffer and values are cut out of it, so nothing is
+// allocated per char. An unquoted empty value is read as NULL and a quoted empty
+// value ("") as an empty string, which is how CsvWriter distinguishes them.
+class CsvReader
+    implements Closeable
+{
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final char DELIMITER_CHAR = ',';
+    private static final char QUOTE_CHAR = '"';
+
+    private final Reader in;
+    private final char[] buffer;
+    private int position;
+    private int limit;
+    private boolean eof;
+
+    private final StringBuilder value = new StringBuilder();
+    private long rowNumber = 1;
+
+    CsvReader(Reader in)
+    {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    CsvReader(Reader in, int bufferSize)
+    {
+        this.in = in;
+        this.buffer = new char[bufferSize];
+    }
+
+    // Returns values of the next row, or null at the end of the input
+    List<String> readRow()
+            throws IOException
+    {
+        if (!fill()) {
+            return null;
+        }
+        List<String> row = new ArrayList<>();
+        while (true) {
+            int end = readValue(row);
+            if (end != DELIMITER_CHAR) {
+                // end of line or input
+                rowNumber++;
+                return row;
+            }
+        }
+    }
+
+    // 1-based number of the next row including the header, for error messages
+    long rowNumber()
+    {
+        return rowNumber;
+    }
+
+    // Adds a value to the row and returns the char that ended it, or -1 at the end of the input
+    private int readValue(List<String> row)
+            throws IOException
+    {
+        value.setLength(0);
+        if (!fill()) {
+            row.add(null);
+            return -1;
+        }
+        if (buffer[position] != QUOTE_CHAR) {
+            // plain value. copy it in bulk up to the delimiter or end of line.
+            while (true) {
+                int start = position;
+                while (position < limit) {
+                    char c = buffer[position];
+                    if (c == DELIMITER_CHAR || c == '\r' || c == '\n') {
+                        break;
+                    }
+                    position++;
+                }
+                value.append(buffer, start, position - start);
+                if (position < limit) {
+                    row.add(value.length() == 0 ? null : value.toString());
+                    return endOfValue();
+                }
+                if (!fill()) {
+                    row.add(value.length() == 0 ? null : value.toString());
+                    return -1;
+                }
+            }
+        }
+
+        long startRow = rowNumber;
+        position++;
+        while (true) {
+            if (!fill()) {
+                throw new IOException("Unterminated quoted value at row " + startRow);
+            }
+            char c = buffer[position++];
+            if (c == QUOTE_CHAR) {
+                if (fill() && buffer[position] == QUOTE_CHAR) {
+                    // escaped quote
+                    value.append(QUOTE_CHAR);
+                    position++;
+                    continue;
+                }
+                row.add(value.toString());
+                if (!fill()) {
+                    return -1;
+                }
+                char next = buffer[position];
+                if (next != DELIMITER_CHAR && next != '\r' && next != '\n') {
+                    throw new IOException("Unexpected character after a quoted value at row " + rowNumber);
+                }
+                return endOfValue();
+            }
+            value.append(c);
+        }
+    }
+
+    // Consumes the delimiter or the line break at the current position
+    private int endOfValue()
+            throws IOException
+    {
+        char c = buffer[position++];
+        if (c == '\r' && fill() && buffer[position] == '\n') {
+            position++;
+        }
+        return c == DELIMITER_CHAR ? DELIMITER_CHAR : '\n';
+    }
+
+    // Returns false if there are no more chars
+    private boolean fill()
+            throws IOException
+    {
+        if (position < limit) {
+            return true;
+        }
+        if (eof) {
+            return false;
+        }
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            eof = true;
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        in.close();
+    }
+}
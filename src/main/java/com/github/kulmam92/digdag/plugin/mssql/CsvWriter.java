@@ -1,117 +1,364 @@
 package com.github.kulmam92.digdag.plugin.mssql;
 
+import com.google.common.io.BaseEncoding;
+
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.Writer;
 import java.io.Closeable;
+import java.math.BigDecimal;
 import java.util.List;
-import java.util.concurrent.Exchanger;
 
+// Values are escaped directly into a reusable char buffer that is flushed to the
+// underlying Writer only when it's full. Nothing is allocated per row or per value
+// unless a value needs toString().
 class CsvWriter
     implements Closeable
 {
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int READ_CHUNK_SIZE = 8 * 1024;
+
     private final Writer out;
+    private final char[] buffer;
+    private int position;
+    private boolean firstColumn = true;
+
+    // used only by large values
+    private char[] readChunk;
+    private byte[] readBytes;
+    private boolean encodedAnyChars;
+    private final Writer rawWriter = new Writer()
+    {
+        @Override
+        public void write(char[] chars, int offset, int length)
+                throws IOException
+        {
+            if (length > 0) {
+                encodedAnyChars = true;
+            }
+            for (int i = 0; i < length; i++) {
+                writeChar(chars[offset + i]);
+            }
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    };
 
     CsvWriter(Writer out)
+    {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    CsvWriter(Writer out, int bufferSize)
     {
         this.out = out;
+        // a long value needs up to 20 chars and it's written without checking space for each digit
+        this.buffer = new char[Math.max(bufferSize, 32)];
     }
 
     void addCsvHeader(List<String> columnNames)
             throws IOException
     {
-        boolean first = true;
         for (String columnName : columnNames) {
-            if (first) { first = false; }
-            else { out.write(DELIMITER_CHAR); }
-            addCsvText(columnName);
+            addValue(columnName);
         }
-        out.write("\r\n");
+        endRow();
     }
 
-    void addCsvRow(List<String> row)
+    void addCsvRow(List<?> row)
             throws IOException
     {
         for (int i = 0; i < row.size(); i++) {
-            if (i > 0) {
-                out.write(DELIMITER_CHAR);
-            }
-            String v = row.get(i);
-            addCsvText(v);
+            addObject(row.get(i));
         }
-        out.write("\r\n");
+        endRow();
     }
 
-    private void addCsvText(String value)
+    void addObject(Object value)
             throws IOException
     {
-        if (value != null) {
-            out.write(escapeAndQuoteCsvValue(value));
+        if (value == null) {
+            addNull();
+        }
+        else if (value instanceof String) {
+            addValue((String) value);
+        }
+        else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            addLong(((Number) value).longValue());
+        }
+        else if (value instanceof BigDecimal) {
+            // toString() may use an exponent
+            addValue(((BigDecimal) value).toPlainString());
+        }
+        else {
+            addValue(value.toString());
         }
     }
 
-    private static final char DELIMITER_CHAR = ',';
-    private static final char ESCAPE_CHAR = '"';
-    private static final char QUOTE_CHAR = '"';
+    void addNull()
+            throws IOException
+    {
+        startColumn();
+    }
 
-    private String escapeAndQuoteCsvValue(String v)
+    void addLong(long value)
+            throws IOException
     {
-        if (v.isEmpty()) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(QUOTE_CHAR);
-            sb.append(QUOTE_CHAR);
-            return sb.toString();
+        startColumn();
+        ensureSpace(20);
+        if (value == Long.MIN_VALUE) {
+            writeRaw("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            digits++;
         }
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (char) ('0' + (value % 10));
+            value /= 10;
+        }
+        position = end;
+    }
 
-        StringBuilder escapedValue = new StringBuilder();
-        char previousChar = ' ';
+    void addValue(String value)
+            throws IOException
+    {
+        startColumn();
+        if (value == null) {
+            return;
+        }
+        int length = value.length();
+        if (length == 0) {
+            // distinguish an empty string from NULL
+            ensureSpace(2);
+            buffer[position++] = QUOTE_CHAR;
+            buffer[position++] = QUOTE_CHAR;
+            return;
+        }
 
-        boolean isRequireQuote = false;
+        // most values don't need quoting. find the first special char and copy the
+        // plain prefix in bulk.
+        int special = 0;
+        while (special < length && !isSpecial(value.charAt(special))) {
+            special++;
+        }
+        if (special == length) {
+            writeRaw(value);
+            return;
+        }
 
-        for (int i = 0; i < v.length(); i++) {
-            char c = v.charAt(i);
+        writeChar(QUOTE_CHAR);
+        writeRaw(value, 0, special);
+        char previousChar = special > 0 ? value.charAt(special - 1) : ' ';
+        for (int i = special; i < length; i++) {
+            char c = value.charAt(i);
+            writeEscapedChar(c, previousChar);
+            previousChar = c;
+        }
+        writeChar(QUOTE_CHAR);
+    }
 
-            if (c == QUOTE_CHAR) {
-                escapedValue.append(ESCAPE_CHAR);
-                escapedValue.append(c);
-                isRequireQuote = true;
+    // Writes a large value chunk by chunk. It's always quoted because it's not known
+    // whether a special char comes later.
+    void addValue(Reader value)
+            throws IOException
+    {
+        startColumn();
+        if (value == null) {
+            return;
+        }
+        if (readChunk == null) {
+            readChunk = new char[READ_CHUNK_SIZE];
+        }
+        writeChar(QUOTE_CHAR);
+        char previousChar = ' ';
+        while (true) {
+            int n = value.read(readChunk);
+            if (n < 0) {
+                break;
             }
-            else if (c == '\r') {
-                escapedValue.append('\n');
-                isRequireQuote = true;
+            for (int i = 0; i < n; i++) {
+                char c = readChunk[i];
+                writeEscapedChar(c, previousChar);
+                previousChar = c;
             }
-            else if (c == '\n') {
-                if (previousChar != '\r') {
-                    escapedValue.append('\n');
-                    isRequireQuote = true;
+        }
+        writeChar(QUOTE_CHAR);
+    }
+
+    // Writes a large binary value encoded by the given encoding chunk by chunk
+    void addBinary(InputStream value, BaseEncoding encoding)
+            throws IOException
+    {
+        startColumn();
+        if (value == null) {
+            return;
+        }
+        if (readBytes == null) {
+            readBytes = new byte[READ_CHUNK_SIZE];
+        }
+        encodedAnyChars = false;
+        // hex and base64 chars don't need escaping. closing the stream writes padding
+        // but doesn't close this writer.
+        try (OutputStream encoder = encoding.encodingStream(rawWriter)) {
+            while (true) {
+                int n = value.read(readBytes);
+                if (n < 0) {
+                    break;
                 }
+                encoder.write(readBytes, 0, n);
             }
-            else if (c == DELIMITER_CHAR) {
-                escapedValue.append(c);
-                isRequireQuote = true;
-            }
-            else {
-                escapedValue.append(c);
+        }
+        if (!encodedAnyChars) {
+            // distinguish an empty value from NULL
+            ensureSpace(2);
+            buffer[position++] = QUOTE_CHAR;
+            buffer[position++] = QUOTE_CHAR;
+        }
+    }
+
+    private void writeEscapedChar(char c, char previousChar)
+            throws IOException
+    {
+        if (c == QUOTE_CHAR) {
+            writeChar(ESCAPE_CHAR);
+            writeChar(c);
+        }
+        else if (c == '\r') {
+            writeChar('\n');
+        }
+        else if (c == '\n') {
+            if (previousChar != '\r') {
+                writeChar('\n');
             }
-            previousChar = c;
         }
+        else {
+            writeChar(c);
+        }
+    }
+
+    void endRow()
+            throws IOException
+    {
+        ensureSpace(2);
+        buffer[position++] = '\r';
+        buffer[position++] = '\n';
+        firstColumn = true;
+    }
+
+    private static boolean isSpecial(char c)
+    {
+        return c == QUOTE_CHAR || c == DELIMITER_CHAR || c == '\r' || c == '\n';
+    }
 
-        if (isRequireQuote) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(QUOTE_CHAR);
-            sb.append(escapedValue);
-            sb.append(QUOTE_CHAR);
-            return sb.toString();
+    private void startColumn()
+            throws IOException
+    {
+        if (firstColumn) {
+            firstColumn = false;
         }
         else {
-            return escapedValue.toString();
+            writeChar(DELIMITER_CHAR);
+        }
+    }
+
+    private void writeChar(char c)
+            throws IOException
+    {
+        if (position == buffer.length) {
+            flushBuffer();
         }
+        buffer[position++] = c;
+    }
+
+    private void writeRaw(String s)
+            throws IOException
+    {
+        writeRaw(s, 0, s.length());
+    }
+
+    private void writeRaw(String s, int start, int end)
+            throws IOException
+    {
+        while (start < end) {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            int n = Math.min(end - start, buffer.length - position);
+            s.getChars(start, start + n, buffer, position);
+            position += n;
+            start += n;
+        }
+    }
+
+    private void ensureSpace(int size)
+            throws IOException
+    {
+        if (buffer.length - position < size) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer()
+            throws IOException
+    {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private static final char DELIMITER_CHAR = ',';
+    private static final char ESCAPE_CHAR = '"';
+    private static final char QUOTE_CHAR = '"';
+
+    // Number of chars not passed to the underlying Writer yet
+    int bufferedChars()
+    {
+        return position;
+    }
+
+    // Passes buffered chars to the underlying Writer without flushing it
+    void flushChars()
+            throws IOException
+    {
+        flushBuffer();
+    }
+
+    void flush()
+            throws IOException
+    {
+        flushBuffer();
+        out.flush();
     }
 
     @Override
     public void close()
             throws IOException
     {
-        out.close();
+        try {
+            flushBuffer();
+        }
+        finally {
+            out.close();
+        }
     }
 
     @Override
@@ -121,4 +368,4 @@ class CsvWriter
                 "out=" + out +
                 '}';
     }
-}
\ No newline at end of file
+}
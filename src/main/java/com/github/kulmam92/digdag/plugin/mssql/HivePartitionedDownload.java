@@ -0,0 +1,256 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.collect.ImmutableMap;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.standards.operator.jdbc.JdbcResultSet;
+import io.digdag.util.Workspace;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.Locale.ENGLISH;
+
+// download_file with download_partition_by option.
+//
+// download_file is a directory and each row goes to dir/column=value/part-00001.csv as
+// rows stream, so the results are read only once. The column itself isn't written to
+// the files because its value is in the path. At most maxOpenFiles files are open at
+// once. When another value needs a file, the least recently used file is closed, and
+// if its value shows up again the rows go to the next part file.
+class HivePartitionedDownload
+{
+    static final int DEFAULT_MAX_OPEN_FILES = 32;
+
+    // same as Hive
+    private static final String NULL_PARTITION = "__HIVE_DEFAULT_PARTITION__";
+
+    // smaller than a single download file because many files are open at once
+    private static final int CHAR_BUFFER_SIZE = 16 * 1024;
+    private static final int BYTE_BUFFER_SIZE = 256 * 1024;
+
+    private static Logger logger = LoggerFactory.getLogger(HivePartitionedDownload.class);
+
+    private final String column;
+    private final int maxOpenFiles;
+
+    HivePartitionedDownload(String column, int maxOpenFiles)
+    {
+        this.column = column;
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    static HivePartitionedDownload configure(Config params)
+    {
+        String column = params.get("download_partition_by", String.class);
+        int maxOpenFiles = params.get("download_partition_max_open_files", int.class, DEFAULT_MAX_OPEN_FILES);
+        if (maxOpenFiles < 1) {
+            throw new ConfigException("download_partition_max_open_files must be a positive number: " + maxOpenFiles);
+        }
+        return new HivePartitionedDownload(column, maxOpenFiles);
+    }
+
+    // Returns {file, rows, bytes} of the written files
+    List<Map<String, Object>> writeResults(JdbcResultSet results, CsvDownload csvDownload, Workspace workspace, String directory)
+            throws IOException
+    {
+        List<String> columnNames = results.getColumnNames();
+        int columnIndex = findColumn(columnNames);
+        List<String> fileColumnNames = new ArrayList<>(columnNames);
+        fileColumnNames.remove(columnIndex);
+
+        deleteOldParts(workspace.getPath(directory));
+
+        List<Map<String, Object>> files = new ArrayList<>();
+        // access order makes the first entry the least recently used one
+        LinkedHashMap<String, PartFile> openFiles = new LinkedHashMap<>(16, 0.75f, true);
+        Map<String, Integer> partCounts = new HashMap<>();
+        List<Object> fileValues = new ArrayList<>(fileColumnNames.size());
+        try {
+            while (true) {
+                List<Object> values = results.next();
+                if (values == null) {
+                    break;
+                }
+
+                String partition = partitionName(values.get(columnIndex));
+                PartFile file = openFiles.get(partition);
+                if (file == null) {
+                    if (openFiles.size() >= maxOpenFiles) {
+                        Iterator<PartFile> eldest = openFiles.values().iterator();
+                        PartFile closing = eldest.next();
+                        eldest.remove();
+                        files.add(closing.finish());
+                    }
+                    int part = partCounts.merge(partition, 1, Integer::sum);
+                    String fileName = String.format(ENGLISH, "%s/%s/part-%05d%s", directory, partition, part, csvDownload.fileExtension());
+                    file = new PartFile(csvDownload, workspace, fileName, fileColumnNames);
+                    openFiles.put(partition, file);
+                }
+
+                fileValues.clear();
+                for (int i = 0; i < values.size(); i++) {
+                    if (i != columnIndex) {
+                        fileValues.add(values.get(i));
+                    }
+                }
+                file.addRow(fileValues);
+            }
+
+            Iterator<PartFile> remaining = openFiles.values().iterator();
+            while (remaining.hasNext()) {
+                PartFile file = remaining.next();
+                remaining.remove();
+                files.add(file.finish());
+            }
+        }
+        finally {
+            for (PartFile file : openFiles.values()) {
+                file.abort();
+            }
+        }
+        logger.info("Downloaded {} files to {}", files.size(), directory);
+        return files;
+    }
+
+    private int findColumn(List<String> columnNames)
+    {
+        int index = columnNames.indexOf(column);
+        if (index < 0) {
+            for (int i = 0; i < columnNames.size(); i++) {
+                if (columnNames.get(i).equalsIgnoreCase(column)) {
+                    index = i;
+                    break;
+                }
+            }
+        }
+        if (index < 0) {
+            throw new ConfigException(String.format(ENGLISH,
+                        "download_partition_by column %s is not in the results: %s", column, columnNames));
+        }
+        if (columnNames.size() == 1) {
+            throw new ConfigException("download_partition_by needs at least one column other than " + column);
+        }
+        return index;
+    }
+
+    private String partitionName(Object value)
+    {
+        String string = value == null ? "" : value.toString();
+        if (string.isEmpty()) {
+            return escapePathName(column) + "=" + NULL_PARTITION;
+        }
+        return escapePathName(column) + "=" + escapePathName(string);
+    }
+
+    // Escapes chars that can't be in a directory name or have a meaning in Hive
+    // partition paths as %XX, like Hive's FileUtils.escapePathName.
+    static String escapePathName(String name)
+    {
+        StringBuilder sb = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (needsEscape(c)) {
+                if (sb == null) {
+                    sb = new StringBuilder(name.length() + 8);
+                    sb.append(name, 0, i);
+                }
+                sb.append(String.format(ENGLISH, "%%%02X", (int) c));
+            }
+            else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? name : sb.toString();
+    }
+
+    private static boolean needsEscape(char c)
+    {
+        if (c < 0x20 || c == 0x7f) {
+            return true;
+        }
+        switch (c) {
+        case '"': case '#': case '%': case '\'': case '*': case '/': case ':': case '=':
+        case '?': case '\\': case '{': case '[': case ']': case '^':
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    // Part files of an earlier attempt would be mixed up with the new ones
+    private void deleteOldParts(Path directory)
+            throws IOException
+    {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        String prefix = escapePathName(column) + "=";
+        try (DirectoryStream<Path> partitions = Files.newDirectoryStream(directory, (path) ->
+                    Files.isDirectory(path) && path.getFileName().toString().startsWith(prefix))) {
+            for (Path partition : partitions) {
+                try (DirectoryStream<Path> parts = Files.newDirectoryStream(partition, "part-*")) {
+                    for (Path part : parts) {
+                        Files.delete(part);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class PartFile
+    {
+        private final Workspace workspace;
+        private final String fileName;
+        private final CsvWriter csvWriter;
+        private long rows;
+
+        PartFile(CsvDownload csvDownload, Workspace workspace, String fileName, List<String> columnNames)
+                throws IOException
+        {
+            this.workspace = workspace;
+            this.fileName = fileName;
+            Files.createDirectories(workspace.getPath(fileName).getParent());
+            this.csvWriter = new CsvWriter(
+                    new Utf8ChannelWriter(csvDownload.openChannel(workspace, fileName), BYTE_BUFFER_SIZE),
+                    CHAR_BUFFER_SIZE);
+            csvWriter.addCsvHeader(columnNames);
+        }
+
+        void addRow(List<Object> values)
+                throws IOException
+        {
+            csvWriter.addCsvRow(values);
+            rows++;
+        }
+
+        Map<String, Object> finish()
+                throws IOException
+        {
+            csvWriter.close();
+            long bytes = Files.size(workspace.getPath(fileName));
+            return ImmutableMap.of("file", fileName, "rows", rows, "bytes", bytes);
+        }
+
+        void abort()
+        {
+            try {
+                csvWriter.close();
+            }
+            catch (IOException ex) {
+                logger.debug("Failed to close {}. Ignoring.", fileName, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.standards.operator.jdbc.NotReadOnlyException;
+
+import java.math.BigDecimal;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.Locale.ENGLISH;
+
+// download_file with incremental option.
+//
+// A run downloads rows in (last mark, new mark] of a column where the new mark is MAX
+// of the column when the run starts, so rows written during the download are left for
+// the next run. The new mark is stored in ${mssql.last_watermark} only after the file
+// is fully written. The range is read at READ COMMITTED like the mark itself, because
+// rows that are rolled back after being downloaded would be in the file.
+//
+// By default, the last mark is start given by the workflow, and nothing is written to
+// the server, so the download works with read-only logins and replicas. Task state
+// doesn't outlive a session, so a workflow that wants the server to remember marks
+// sets table, and the mark is kept in the watermark table. If the run fails, the mark
+// isn't recorded and the next run downloads the same range again.
+//
+// For rowversion columns, the new mark is below MIN_ACTIVE_ROWVERSION() so that rows
+// of transactions that are still open aren't skipped when they commit later.
+class IncrementalDownload
+{
+    static final String ROWVERSION_TYPE = "rowversion";
+    static final String BINARY_TYPE = "varbinary(8000)";
+
+    private static Logger logger = LoggerFactory.getLogger(IncrementalDownload.class);
+
+    private final String column;
+    private final Optional<String> name;
+    private final Optional<String> schema;
+    private final Optional<String> table;
+    private final Optional<String> start;
+
+    private Optional<Watermark> lastWatermark = Optional.absent();
+    private Optional<Watermark> newWatermark = Optional.absent();
+
+    private IncrementalDownload(String column, Optional<String> name, Optional<String> schema, Optional<String> table, Optional<String> start)
+    {
+        this.column = column;
+        this.name = name;
+        this.schema = schema;
+        this.table = table;
+        this.start = start;
+    }
+
+    // name is required with table because a mark is shared by every task that uses the
+    // same name. A default such as the file name would make unrelated workflows
+    // overwrite each other's mark, and a default from the task name would start over
+    // when the task is renamed.
+    static IncrementalDownload configure(Config incremental, String statusTableSchema)
+    {
+        Optional<String> name = incremental.getOptional("name", String.class);
+        Optional<String> table = incremental.getOptional("table", String.class);
+        if (table.isPresent() && !name.isPresent()) {
+            throw new ConfigException("incremental.name is required to record marks in incremental.table");
+        }
+        return new IncrementalDownload(
+                incremental.get("column", String.class),
+                name,
+                incremental.getOptional("schema", String.class).or(Optional.fromNullable(statusTableSchema)),
+                table,
+                incremental.getOptional("start", String.class));
+    }
+
+    // Returns the query limited to rows above the last mark and up to the new mark
+    String prepare(MssqlConnection connection, String query)
+            throws NotReadOnlyException
+    {
+        String escapedColumn = connection.escapeIdent(column);
+
+        if (table.isPresent()) {
+            readLastWatermark(connection);
+        }
+
+        String[] maxType = new String[1];
+        Object[] maxValue = new Object[1];
+        String maxQuery = String.format(ENGLISH,
+                "SELECT MAX(%s) FROM ( \n" +
+                "%s \n" +
+                ") digdag_incremental",
+                escapedColumn, query);
+        // rows that aren't committed yet may be rolled back, and rows above a recorded mark
+        // are never downloaded again, so the mark comes only from committed rows
+        connection.executeCommittedQuery(maxQuery, ImmutableList.of(), (results) -> {
+            maxType[0] = castType(((MssqlResultSet) results).getMetaData(), 1);
+            maxValue[0] = results.next().get(0);
+        });
+        if (maxType[0].equals(ROWVERSION_TYPE)) {
+            // rows of open transactions may commit with lower rowversions later
+            connection.executeCommittedQuery(maxQuery + String.format(ENGLISH, " WHERE %s < MIN_ACTIVE_ROWVERSION()", escapedColumn),
+                    ImmutableList.of(), (results) -> maxValue[0] = results.next().get(0));
+        }
+
+        Optional<Watermark> lowerBound = lastWatermark.or(start.transform((value) -> new Watermark(value, maxType[0])));
+        if (maxValue[0] == null) {
+            // no rows. keep the last mark
+            newWatermark = lowerBound;
+            logger.info("No rows to download by {}. The watermark stays at {}", column, lowerBound.transform(Watermark::value).or("(none)"));
+            return buildQuery(query, "1 = 0");
+        }
+        newWatermark = Optional.of(new Watermark(markText(maxValue[0]), maxType[0]));
+
+        String upper = String.format(ENGLISH, "%s <= %s", escapedColumn, newWatermark.get().literal());
+        if (!lowerBound.isPresent()) {
+            logger.info("Downloading rows up to {} = {}", column, newWatermark.get().value());
+            return buildQuery(query, upper);
+        }
+        logger.info("Downloading rows of {} in ({}, {}]", column, lowerBound.get().value(), newWatermark.get().value());
+        return buildQuery(query, String.format(ENGLISH, "%s > %s AND %s", escapedColumn, lowerBound.get().literal(), upper));
+    }
+
+    private void readLastWatermark(MssqlConnection connection)
+            throws NotReadOnlyException
+    {
+        String escapedTable = escapedTable(connection);
+        connection.executeUpdate(String.format(ENGLISH,
+                    "IF OBJECT_ID(N'%s', N'U') IS NULL \n" +
+                    "CREATE TABLE %s \n" +
+                    "(name nvarchar(450) NOT NULL PRIMARY KEY, watermark nvarchar(200) NOT NULL, sql_type nvarchar(64) NOT NULL, updated_at datetime2 NOT NULL)",
+                    escapedTable.replace("'", "''"), escapedTable),
+                ImmutableList.of());
+
+        connection.executeCommittedQuery(
+                String.format(ENGLISH, "SELECT watermark, sql_type FROM %s WHERE name = ?", escapedTable),
+                ImmutableList.of(name.get()), (results) -> {
+                    List<Object> values = results.next();
+                    if (values != null) {
+                        lastWatermark = Optional.of(new Watermark((String) values.get(0), (String) values.get(1)));
+                    }
+                });
+    }
+
+    // Records the new mark in the watermark table if table is set. Call this after the
+    // file is fully written.
+    void commit(MssqlConnection connection)
+    {
+        if (!table.isPresent() || !newWatermark.isPresent() || newWatermark.equals(lastWatermark)) {
+            return;
+        }
+        Watermark mark = newWatermark.get();
+        connection.executeUpdate(String.format(ENGLISH,
+                    "MERGE %s WITH (HOLDLOCK) AS t \n" +
+                    "USING (SELECT ? AS name, ? AS watermark, ? AS sql_type) AS s ON t.name = s.name \n" +
+                    "WHEN MATCHED THEN UPDATE SET watermark = s.watermark, sql_type = s.sql_type, updated_at = SYSUTCDATETIME() \n" +
+                    "WHEN NOT MATCHED THEN INSERT (name, watermark, sql_type, updated_at) VALUES (s.name, s.watermark, s.sql_type, SYSUTCDATETIME());",
+                    escapedTable(connection)),
+                ImmutableList.of(name.get(), mark.value(), mark.sqlType()));
+        logger.info("Recorded watermark of {}: {}", name.get(), mark.value());
+    }
+
+    Optional<String> newWatermarkValue()
+    {
+        return newWatermark.transform(Watermark::value);
+    }
+
+    private String escapedTable(MssqlConnection connection)
+    {
+        if (schema.isPresent()) {
+            return connection.escapeIdent(schema.get()) + "." + connection.escapeIdent(table.get());
+        }
+        return connection.escapeIdent(table.get());
+    }
+
+    // SQL expression of a mark. Marks are hex, digits or ISO-8601 text, but they are
+    // escaped anyway because start is given by users.
+    static String literal(String value, String sqlType)
+    {
+        String quoted = "N'" + value.replace("'", "''") + "'";
+        if (sqlType.equals(ROWVERSION_TYPE)) {
+            return String.format(ENGLISH, "CONVERT(binary(8), %s, 2)", quoted);
+        }
+        else if (sqlType.equals(BINARY_TYPE)) {
+            return String.format(ENGLISH, "CONVERT(%s, %s, 2)", sqlType, quoted);
+        }
+        return String.format(ENGLISH, "CAST(%s AS %s)", quoted, sqlType);
+    }
+
+    // Text of a mark that CAST accepts. BigDecimal.toString() may use an exponent.
+    static String markText(Object value)
+    {
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        }
+        return value.toString();
+    }
+
+    static String buildQuery(String query, String predicate)
+    {
+        return String.format(ENGLISH,
+                "SELECT * FROM ( \n" +
+                "%s \n" +
+                ") digdag_incremental WHERE %s",
+                query, predicate);
+    }
+
+    // SQL type that the text of a mark (ColumnCodec's format) is converted back to
+    private String castType(ResultSetMetaData metaData, int index)
+    {
+        try {
+            String typeName = metaData.getColumnTypeName(index).toLowerCase(ENGLISH);
+            switch (typeName) {
+            case "tinyint":
+            case "smallint":
+            case "int":
+            case "bigint":
+                return "bigint";
+            case "decimal":
+            case "numeric":
+                return String.format(ENGLISH, "decimal(38, %d)", metaData.getScale(index));
+            case "money":
+            case "smallmoney":
+                return "money";
+            case "date":
+                return "date";
+            case "datetime":
+            case "smalldatetime":
+            case "datetime2":
+                return "datetime2(7)";
+            case "datetimeoffset":
+                return "datetimeoffset(7)";
+            case "timestamp":
+            case "rowversion":
+                return ROWVERSION_TYPE;
+            case "binary":
+            case "varbinary":
+                return BINARY_TYPE;
+            default:
+                throw new ConfigException(String.format(ENGLISH,
+                            "incremental.column %s must be an integer, decimal, date/time or rowversion column: %s", column, typeName));
+            }
+        }
+        catch (SQLException ex) {
+            throw new ConfigException("Failed to get the type of incremental.column " + column, ex);
+        }
+    }
+
+    private static class Watermark
+    {
+        private final String value;
+        private final String sqlType;
+
+        Watermark(String value, String sqlType)
+        {
+            this.value = value;
+            this.sqlType = sqlType;
+        }
+
+        String value()
+        {
+            return value;
+        }
+
+        String sqlType()
+        {
+            return sqlType;
+        }
+
+        String literal()
+        {
+            return IncrementalDownload.literal(value, sqlType);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Watermark)) {
+                return false;
+            }
+            Watermark other = (Watermark) o;
+            return value.equals(other.value) && sqlType.equals(other.sqlType);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return value.hashCode() * 31 + sqlType.hashCode();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigElement;
+import io.digdag.client.config.ConfigException;
+import io.digdag.spi.TaskExecutionException;
+import io.digdag.standards.operator.jdbc.DatabaseException;
+import io.digdag.standards.operator.jdbc.NotReadOnlyException;
+import io.digdag.standards.operator.jdbc.TableReference;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.Locale.ENGLISH;
+
+// insert_into with index_management option.
+//
+// Nonclustered indexes of the table are disabled before the load so that rows are
+// written only to the heap or the clustered index, and they are rebuilt from the
+// loaded rows afterwards. Unique indexes and constraints stay enabled because the load
+// would skip their checks.
+//
+// Names of the disabled indexes are saved in the task state and the task is polled
+// before the load starts, so the state is persisted. If the load fails, the indexes
+// are rebuilt before the error is thrown, and if the agent stops during the load, the
+// next run of the task rebuilds them from the saved names.
+class IndexManagement
+{
+    private static final String STATE_KEY = "indexManagement";
+
+    private static Logger logger = LoggerFactory.getLogger(IndexManagement.class);
+
+    private final boolean online;
+    private final Optional<Integer> maxdop;
+    private final boolean updateStatistics;
+
+    private IndexManagement(boolean online, Optional<Integer> maxdop, boolean updateStatistics)
+    {
+        this.online = online;
+        this.maxdop = maxdop;
+        this.updateStatistics = updateStatistics;
+    }
+
+    static IndexManagement configure(Config indexManagement)
+    {
+        Optional<Integer> maxdop = indexManagement.getOptional("maxdop", Integer.class);
+        if (maxdop.isPresent() && maxdop.get() < 0) {
+            throw new ConfigException("index_management.maxdop must not be negative: " + maxdop.get());
+        }
+        return new IndexManagement(
+                indexManagement.get("online", boolean.class, false),
+                maxdop,
+                indexManagement.get("update_statistics", boolean.class, true));
+    }
+
+    // Disables nonclustered indexes at the first run and polls the task again to save
+    // their names. Returns at later runs.
+    void disable(MssqlConnection connection, TableReference table, Config state)
+            throws NotReadOnlyException
+    {
+        if (state.has(STATE_KEY)) {
+            return;
+        }
+
+        String escapedRef = connection.escapeTableReference(table);
+        List<String> indexes = new ArrayList<>();
+        connection.executeReadOnlyQuery(
+                "SELECT name FROM sys.indexes \n" +
+                "WHERE object_id = OBJECT_ID(?) AND type = 2 \n" +
+                "AND is_disabled = 0 AND is_hypothetical = 0 \n" +
+                "AND is_unique = 0 AND is_primary_key = 0 AND is_unique_constraint = 0",
+                ImmutableList.of(escapedRef), MssqlQueryOptions.defaults(), (results) -> {
+                    while (true) {
+                        List<Object> row = results.next();
+                        if (row == null) {
+                            break;
+                        }
+                        indexes.add((String) row.get(0));
+                    }
+                });
+
+        List<String> disabled = new ArrayList<>();
+        try {
+            for (String index : indexes) {
+                connection.executeUpdate(buildDisableStatement(connection, escapedRef, index));
+                disabled.add(index);
+            }
+        }
+        catch (RuntimeException ex) {
+            // the state isn't saved yet. enable the ones disabled so far now.
+            state.getNestedOrSetEmpty(STATE_KEY).set("disabled", disabled);
+            try {
+                rebuild(connection, table, state);
+            }
+            catch (RuntimeException rebuildError) {
+                ex.addSuppressed(rebuildError);
+            }
+            throw ex;
+        }
+        state.getNestedOrSetEmpty(STATE_KEY).set("disabled", disabled);
+        logger.info("Disabled {} nonclustered indexes of {}: {}", indexes.size(), table.getName(), indexes);
+        throw TaskExecutionException.ofNextPolling(0, ConfigElement.copyOf(state));
+    }
+
+    // Rebuilds the indexes after the load failed. The rebuilds must not join the
+    // transaction of the failed load: its rollback would undo them after the names are
+    // removed from the state, and until then they would hold locks that block readers.
+    void rebuildAfterFailure(MssqlConnection connection, TableReference table, Config state)
+    {
+        if (!state.has(STATE_KEY)) {
+            return;
+        }
+        connection.executeUpdate(MssqlConnection.ROLLBACK_OPEN_TRANSACTION);
+        rebuild(connection, table, state);
+    }
+
+    // Rebuilds the indexes disabled by disable() and updates statistics. The names are
+    // removed from the state only after all statements are committed.
+    void rebuild(MssqlConnection connection, TableReference table, Config state)
+    {
+        if (!state.has(STATE_KEY)) {
+            return;
+        }
+        String escapedRef = connection.escapeTableReference(table);
+        List<String> indexes = state.getNested(STATE_KEY).getListOrEmpty("disabled", String.class);
+        long startTime = System.nanoTime();
+        DatabaseException error = null;
+        for (String index : indexes) {
+            // rebuild the rest even if one fails, and then fail the task so that the
+            // disabled ones don't go unnoticed
+            try {
+                connection.executeUpdate(buildRebuildStatement(connection, escapedRef, index));
+            }
+            catch (DatabaseException ex) {
+                logger.warn("Failed to rebuild index {} of {}", index, table.getName(), ex);
+                if (error == null) {
+                    error = ex;
+                }
+                else {
+                    error.addSuppressed(ex);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (!indexes.isEmpty()) {
+            logger.info("Rebuilt {} indexes of {} in {} seconds",
+                    indexes.size(), table.getName(), String.format(ENGLISH, "%.3f", (System.nanoTime() - startTime) / 1e9));
+        }
+        if (updateStatistics) {
+            connection.executeUpdate(buildUpdateStatisticsStatement(escapedRef, !indexes.isEmpty()));
+        }
+        state.remove(STATE_KEY);
+    }
+
+    static String buildDisableStatement(MssqlConnection connection, String escapedRef, String index)
+    {
+        return String.format(ENGLISH,
+                "ALTER INDEX %s ON %s DISABLE",
+                connection.escapeIdent(index), escapedRef);
+    }
+
+    String buildRebuildStatement(MssqlConnection connection, String escapedRef, String index)
+    {
+        return String.format(ENGLISH,
+                "ALTER INDEX %s ON %s REBUILD%s",
+                connection.escapeIdent(index), escapedRef, buildRebuildOptions());
+    }
+
+    // Statistics of rebuilt indexes are refreshed by the rebuild, so only column
+    // statistics are left to update.
+    static String buildUpdateStatisticsStatement(String escapedRef, boolean indexesRebuilt)
+    {
+        return String.format(ENGLISH,
+                "UPDATE STATISTICS %s%s",
+                escapedRef, indexesRebuilt ? " WITH COLUMNS" : "");
+    }
+
+    private String buildRebuildOptions()
+    {
+        List<String> options = new ArrayList<>();
+        if (online) {
+            options.add("ONLINE = ON");
+        }
+        if (maxdop.isPresent()) {
+            options.add("MAXDOP = " + maxdop.get());
+        }
+        return options.isEmpty() ? "" : " WITH (" + String.join(", ", options) + ")";
+    }
+}
@@ -0,0 +1,308 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.spi.TaskExecutionException;
+import io.digdag.standards.operator.jdbc.DatabaseException;
+import io.digdag.standards.operator.jdbc.NotReadOnlyException;
+import io.digdag.standards.operator.jdbc.TableReference;
+import io.digdag.util.Workspace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.Locale.ENGLISH;
+
+// merge_into option.
+//
+// The results of the query (or rows of upload_file) are loaded into a staging table
+// next to the target first. Then rows of the target are updated and inserted by the
+// key columns with an UPDATE and an INSERT statement instead of MERGE, which takes
+// more locks and has known issues with concurrent writers. Rows whose values are all
+// the same aren't updated, so the updated count is the number of changed rows. With
+// delete: true, rows of the target that aren't in the staging table are deleted.
+//
+// IDENTITY columns of the target are left to the table: they aren't updated, and
+// inserted rows get new values instead of the ones in the results. So they can't be
+// keys, because rows inserted by a merge wouldn't have the keys they were merged by.
+//
+// Keys can't be NULL. The joins by = never match NULL, so a row with a NULL key would
+// be inserted again by every merge while GROUP BY sees it as the same key.
+//
+// The staging table is named by the query id so that a retry of the same task drops
+// what a failed attempt left behind.
+class MergeInto
+{
+    private static Logger logger = LoggerFactory.getLogger(MergeInto.class);
+
+    private final TableReference table;
+    private final List<String> keys;
+    private final boolean delete;
+
+    private MergeInto(TableReference table, List<String> keys, boolean delete)
+    {
+        this.table = table;
+        this.keys = keys;
+        this.delete = delete;
+    }
+
+    static MergeInto configure(Config mergeInto)
+    {
+        List<String> keys = mergeInto.getList("keys", String.class);
+        if (keys.isEmpty()) {
+            throw new ConfigException("merge_into.keys must have at least one column");
+        }
+        return new MergeInto(
+                mergeInto.get("table", TableReference.class),
+                keys,
+                mergeInto.get("delete", boolean.class, false));
+    }
+
+    TableReference stagingTable(UUID queryId)
+    {
+        String name = String.format(ENGLISH, "%s__digdag_merge_%s",
+                table.getName(), queryId.toString().replace("-", "").substring(0, 12));
+        if (table.getSchema().isPresent()) {
+            return TableReference.of(table.getSchema().get(), name);
+        }
+        return TableReference.of(name);
+    }
+
+    String buildStageStatement(MssqlConnection connection, String query, TableReference staging)
+    {
+        return String.format(ENGLISH,
+                "%s \n" +
+                "SELECT * INTO %s \n" +
+                "FROM ( \n" +
+                "%s \n" +
+                ") t ",
+                connection.buildDropTableStatement(staging), connection.escapeTableReference(staging), query);
+    }
+
+    // Empty staging table with the columns of the target for upload_file. The join keeps
+    // SELECT INTO from copying IDENTITY properties that make the bulk copy ignore values.
+    private String buildEmptyStageStatement(MssqlConnection connection, TableReference staging)
+    {
+        return String.format(ENGLISH,
+                "%s \n" +
+                "SELECT TOP 0 t.* INTO %s \n" +
+                "FROM %s t CROSS JOIN (SELECT 1 AS digdag_join) digdag_join",
+                connection.buildDropTableStatement(staging), connection.escapeTableReference(staging),
+                connection.escapeTableReference(table));
+    }
+
+    // Returns {inserted, updated, deleted} counts, and {rows, seconds} of the upload as
+    // upload if upload_file is used.
+    Map<String, Object> merge(MssqlConnection connection, UUID queryId, String query,
+            Optional<BulkUpload> bulkUpload, Workspace workspace)
+    {
+        TableReference staging = stagingTable(queryId);
+        ImmutableMap.Builder<String, Object> result = ImmutableMap.builder();
+        try {
+            if (bulkUpload.isPresent()) {
+                connection.executeUpdate(buildEmptyStageStatement(connection, staging));
+                result.put("upload", bulkUpload.get().upload(connection, workspace, staging));
+            }
+            else {
+                connection.executeUpdate(buildStageStatement(connection, query, staging));
+            }
+            result.putAll(apply(connection, staging));
+        }
+        catch (NotReadOnlyException ex) {
+            // queries on the staging table are read-only
+            throw Throwables.propagate(ex);
+        }
+        finally {
+            try {
+                connection.executeUpdate(connection.buildDropTableStatement(staging));
+            }
+            catch (DatabaseException ex) {
+                logger.warn("Failed to drop staging table {}. Ignoring.", staging.getName(), ex);
+            }
+        }
+        return result.build();
+    }
+
+    private Map<String, Object> apply(MssqlConnection connection, TableReference staging)
+            throws NotReadOnlyException
+    {
+        String escapedTable = connection.escapeTableReference(table);
+        String escapedStaging = connection.escapeTableReference(staging);
+
+        List<String> columns = new ArrayList<>();
+        connection.executeReadOnlyQuery("SELECT TOP 0 * FROM " + escapedStaging,
+                (results) -> columns.addAll(results.getColumnNames()));
+        List<String> lowerColumns = columns.stream().map((c) -> c.toLowerCase(Locale.ROOT)).collect(Collectors.toList());
+        for (String key : keys) {
+            if (!lowerColumns.contains(key.toLowerCase(Locale.ROOT))) {
+                throw new ConfigException("merge_into.keys has a column that isn't in the results: " + key);
+            }
+        }
+
+        List<String> identityColumns = new ArrayList<>();
+        connection.executeReadOnlyQuery(
+                "SELECT name FROM sys.identity_columns WHERE object_id = OBJECT_ID(?)",
+                ImmutableList.of(escapedTable), MssqlQueryOptions.defaults(), (results) -> {
+                    while (true) {
+                        List<Object> row = results.next();
+                        if (row == null) {
+                            break;
+                        }
+                        identityColumns.add((String) row.get(0));
+                    }
+                });
+        for (String key : keys) {
+            if (containsIgnoreCase(identityColumns, key)) {
+                throw new ConfigException("merge_into.keys can't have an IDENTITY column because inserted rows get new values: " + key);
+            }
+        }
+
+        // columns that the merge writes
+        List<String> insertColumns = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (String column : columns) {
+            if (containsIgnoreCase(identityColumns, column)) {
+                continue;
+            }
+            insertColumns.add(column);
+            if (!containsIgnoreCase(keys, column)) {
+                values.add(column);
+            }
+        }
+
+        String keyColumns = keys.stream().map(connection::escapeIdent).collect(Collectors.joining(", "));
+        // the index makes the joins below merge or seek on the keys, and finds duplicates
+        connection.executeUpdate(String.format(ENGLISH,
+                    "CREATE CLUSTERED INDEX %s ON %s (%s)",
+                    connection.escapeIdent("cx_" + staging.getName()), escapedStaging, keyColumns));
+        checkDuplicatedKeys(connection, escapedStaging, keyColumns);
+        checkNullKeys(connection, escapedStaging, keys);
+
+        int updated = 0;
+        if (!values.isEmpty()) {
+            updated = connection.executeUpdate(
+                    buildUpdateStatement(connection, escapedTable, escapedStaging, keys, values),
+                    ImmutableList.of());
+        }
+
+        int inserted = connection.executeUpdate(
+                buildInsertStatement(connection, escapedTable, escapedStaging, keys, insertColumns),
+                ImmutableList.of());
+
+        int deleted = 0;
+        if (delete) {
+            deleted = connection.executeUpdate(
+                    buildDeleteStatement(connection, escapedTable, escapedStaging, keys),
+                    ImmutableList.of());
+        }
+
+        logger.info("Merged into {}: {} inserted, {} updated, {} deleted", table.getName(), inserted, updated, deleted);
+        return ImmutableMap.of("inserted", inserted, "updated", updated, "deleted", deleted);
+    }
+
+    // Updates rows of the table whose values differ from the staging table. EXCEPT
+    // compares NULLs as equal, unlike <>.
+    static String buildUpdateStatement(MssqlConnection connection, String escapedTable, String escapedStaging,
+            List<String> keys, List<String> values)
+    {
+        String setList = values.stream()
+            .map((column) -> String.format(ENGLISH, "%s = s.%s", connection.escapeIdent(column), connection.escapeIdent(column)))
+            .collect(Collectors.joining(", "));
+        return String.format(ENGLISH,
+                "UPDATE t SET %s \n" +
+                "FROM %s t JOIN %s s ON %s \n" +
+                "WHERE EXISTS (SELECT %s EXCEPT SELECT %s)",
+                setList, escapedTable, escapedStaging, joinCondition(connection, keys),
+                prefixed(connection, "s", values), prefixed(connection, "t", values));
+    }
+
+    // Inserts rows of the staging table whose keys aren't in the table
+    static String buildInsertStatement(MssqlConnection connection, String escapedTable, String escapedStaging,
+            List<String> keys, List<String> columns)
+    {
+        String columnList = columns.stream().map(connection::escapeIdent).collect(Collectors.joining(", "));
+        return String.format(ENGLISH,
+                "INSERT INTO %s (%s) \n" +
+                "SELECT %s FROM %s s \n" +
+                "WHERE NOT EXISTS (SELECT 1 FROM %s t WHERE %s)",
+                escapedTable, columnList, prefixed(connection, "s", columns), escapedStaging,
+                escapedTable, joinCondition(connection, keys));
+    }
+
+    // Deletes rows of the table whose keys aren't in the staging table
+    static String buildDeleteStatement(MssqlConnection connection, String escapedTable, String escapedStaging,
+            List<String> keys)
+    {
+        return String.format(ENGLISH,
+                "DELETE t FROM %s t \n" +
+                "WHERE NOT EXISTS (SELECT 1 FROM %s s WHERE %s)",
+                escapedTable, escapedStaging, joinCondition(connection, keys));
+    }
+
+    private static String joinCondition(MssqlConnection connection, List<String> keys)
+    {
+        return keys.stream()
+            .map((key) -> String.format(ENGLISH, "t.%s = s.%s", connection.escapeIdent(key), connection.escapeIdent(key)))
+            .collect(Collectors.joining(" AND "));
+    }
+
+    private static boolean containsIgnoreCase(List<String> names, String name)
+    {
+        return names.stream().anyMatch((n) -> n.equalsIgnoreCase(name));
+    }
+
+    private static void checkDuplicatedKeys(MssqlConnection connection, String escapedStaging, String keyColumns)
+            throws NotReadOnlyException
+    {
+        List<Object> duplicate = new ArrayList<>();
+        connection.executeReadOnlyQuery(String.format(ENGLISH,
+                    "SELECT TOP 1 %s FROM %s GROUP BY %s HAVING COUNT(*) > 1",
+                    keyColumns, escapedStaging, keyColumns),
+                (results) -> {
+                    List<Object> row = results.next();
+                    if (row != null) {
+                        duplicate.addAll(row);
+                    }
+                });
+        if (!duplicate.isEmpty()) {
+            throw new TaskExecutionException("Results of merge_into have duplicated keys: " + duplicate);
+        }
+    }
+
+    private static void checkNullKeys(MssqlConnection connection, String escapedStaging, List<String> keys)
+            throws NotReadOnlyException
+    {
+        String nullKeys = keys.stream()
+            .map((key) -> connection.escapeIdent(key) + " IS NULL")
+            .collect(Collectors.joining(" OR "));
+        List<Object> row = new ArrayList<>();
+        connection.executeReadOnlyQuery(String.format(ENGLISH,
+                    "SELECT TOP 1 %s FROM %s WHERE %s",
+                    keys.stream().map(connection::escapeIdent).collect(Collectors.joining(", ")), escapedStaging, nullKeys),
+                (results) -> {
+                    List<Object> values = results.next();
+                    if (values != null) {
+                        row.addAll(values);
+                    }
+                });
+        if (!row.isEmpty()) {
+            throw new TaskExecutionException("Results of merge_into have NULL in keys " + keys + ": " + row);
+        }
+    }
+
+    private static String prefixed(MssqlConnection connection, String alias, List<String> columns)
+    {
+        return columns.stream().map((column) -> alias + "." + connection.escapeIdent(column)).collect(Collectors.joining(", "));
+    }
+}
@@ -1,6 +1,11 @@
 package com.github.kulmam92.digdag.plugin.mssql;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.microsoft.sqlserver.jdbc.ISQLServerStatement;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+import com.microsoft.sqlserver.jdbc.SQLServerConnection;
 import io.digdag.standards.operator.jdbc.AbstractJdbcConnection;
 import io.digdag.standards.operator.jdbc.AbstractPersistentTransactionHelper;
 import io.digdag.standards.operator.jdbc.DatabaseException;
@@ -10,24 +15,39 @@ import io.digdag.standards.operator.jdbc.NotReadOnlyException;
 import io.digdag.standards.operator.jdbc.TableReference;
 import io.digdag.standards.operator.jdbc.TransactionHelper;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Field;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.function.Consumer;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import static java.util.Locale.ENGLISH;
 import static org.postgresql.core.Utils.escapeIdentifier;
 
 public class MssqlConnection
     extends AbstractJdbcConnection
 {
+    private static Logger logger = LoggerFactory.getLogger(MssqlConnection.class);
+
+    static final String ROLLBACK_OPEN_TRANSACTION = "IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION";
+
     @VisibleForTesting
     public static MssqlConnection open(MssqlConnectionConfig config)
     {
-        return new MssqlConnection(config.openConnection());
+        return new MssqlConnection(MssqlConnectionPool.shared().borrow(config));
     }
 
     protected MssqlConnection(Connection connection)
@@ -51,6 +71,14 @@ public class MssqlConnection
                 escapedRef, escapedRef, selectSql);                
     }
 
+    public String buildDropTableStatement(TableReference table)
+    {
+        String escapedRef = escapeTableReference(table);
+        return String.format(ENGLISH,
+                "IF OBJECT_ID(N'%s', N'U') IS NOT NULL DROP TABLE %s;",
+                escapedRef.replace("'", "''"), escapedRef);
+    }
+
     @Override
     public String buildInsertStatement(String selectSql, TableReference targetTable)
     {
@@ -82,21 +110,100 @@ public class MssqlConnection
         }
     }
 
-    // To do - implement sqlcmd support
-    // https://github.com/embulk/embulk-output-jdbc/blob/07b6dfea0c5296c124328d2d17bdc48240f7d159/embulk-output-sqlserver/src/test/java/org/embulk/output/sqlserver/SQLServerTests.java
+    // Runs a sqlcmd-style script. Batches separated by GO lines are run one by one on
+    // this connection, and GO n runs a batch n times.
+    @Override
+    public void executeScript(String sql)
+    {
+        executeScript(new StringReader(sql), 0);
+    }
+
+    // Same as executeScript(String) but reads the script while it runs, so only one
+    // batch is in memory. A batch longer than maxBatchLength characters fails.
+    public void executeScript(Reader script, int maxBatchLength)
+    {
+        try (BatchSplitter splitter = new BatchSplitter(script, maxBatchLength)) {
+            executeBatches(splitter);
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    private void executeBatches(BatchSplitter splitter)
+            throws IOException
+    {
+        int batches = 0;
+        try (Statement stmt = connection.createStatement()) {
+            while (true) {
+                BatchSplitter.Batch batch = splitter.next();
+                if (batch == null) {
+                    break;
+                }
+                batches++;
+                for (int i = 0; i < batch.count(); i++) {
+                    long startTime = System.nanoTime();
+                    long rows;
+                    try {
+                        rows = executeBatch(stmt, batch.sql());
+                    }
+                    catch (SQLException ex) {
+                        throw new DatabaseException(String.format(ENGLISH,
+                                    "Failed to execute batch %d at line %d of given SQL script", batches, batch.line()), ex);
+                    }
+                    logger.info("Batch {} at line {}: {} rows affected in {} seconds",
+                            batches, batch.line(), rows, String.format(ENGLISH, "%.3f", (System.nanoTime() - startTime) / 1e9));
+                }
+            }
+            logger.info("Executed {} batches of given SQL script", batches);
+        }
+        catch (SQLException ex) {
+            throw new DatabaseException("Failed to execute given SQL script", ex);
+        }
+    }
+
+    // Returns the total rows affected by statements of the batch. Results of SELECT
+    // statements are discarded.
+    private static long executeBatch(Statement stmt, String sql)
+            throws SQLException
+    {
+        long rows = 0;
+        boolean isResultSet = stmt.execute(sql);
+        while (true) {
+            if (isResultSet) {
+                stmt.getResultSet().close();
+            }
+            else {
+                int count = stmt.getUpdateCount();
+                if (count == -1) {
+                    return rows;
+                }
+                rows += count;
+            }
+            isResultSet = stmt.getMoreResults();
+        }
+    }
 
     @Override
     public void executeReadOnlyQuery(String sql, Consumer<JdbcResultSet> resultHandler)
             throws NotReadOnlyException
+    {
+        executeReadOnlyQuery(sql, MssqlQueryOptions.defaults(), resultHandler);
+    }
+
+    public void executeReadOnlyQuery(String sql, MssqlQueryOptions options, Consumer<JdbcResultSet> resultHandler)
+            throws NotReadOnlyException
     {
         try {
             // Need to check if this is really necessary
-            execute("SET TRANSACTION ISOLATION LEVEL READ UNCOMMITTED");
-            try (Statement stmt = connection.createStatement()) {
+            execute("SET TRANSACTION ISOLATION LEVEL " + options.isolationLevel());
+            // forward-only and read-only so that the driver doesn't need a server cursor or a client-side copy of results
+            try (Statement stmt = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                applyQueryOptions(stmt, options);
                 // https://docs.microsoft.com/en-us/sql/connect/jdbc/reference/executequery-method-sqlserverstatement?view=sql-server-2017
                 // Runs the given SQL statement and returns a single SQLServerResultSet object.
                 ResultSet rs = stmt.executeQuery(sql);  // executeQuery throws exception if given query includes multiple statements
-                resultHandler.accept(new MssqlResultSet(rs));
+                handleResults(stmt, new MssqlResultSet(rs, options.binaryFormat()), resultHandler);
             }
             execute("SET TRANSACTION ISOLATION LEVEL READ COMMITTED");
         }
@@ -105,6 +212,156 @@ public class MssqlConnection
         }
     }
 
+    // Same as executeReadOnlyQuery but binds parameters to '?' placeholders in sql
+    public void executeReadOnlyQuery(String sql, List<Object> parameters, MssqlQueryOptions options, Consumer<JdbcResultSet> resultHandler)
+            throws NotReadOnlyException
+    {
+        executeQuery(sql, parameters, options, options.isolationLevel(), resultHandler);
+    }
+
+    // Same as executeReadOnlyQuery but reads only committed rows. This is for values
+    // that are recorded and used to skip rows later, such as high-water marks and key
+    // bounds, which must not come from rows that may be rolled back. With
+    // READ_COMMITTED_SNAPSHOT of the database, the query reads a snapshot without locks.
+    public void executeCommittedQuery(String sql, List<Object> parameters, Consumer<JdbcResultSet> resultHandler)
+            throws NotReadOnlyException
+    {
+        executeQuery(sql, parameters, MssqlQueryOptions.defaults(), "READ COMMITTED", resultHandler);
+    }
+
+    private void executeQuery(String sql, List<Object> parameters, MssqlQueryOptions options, String isolationLevel, Consumer<JdbcResultSet> resultHandler)
+            throws NotReadOnlyException
+    {
+        try {
+            execute("SET TRANSACTION ISOLATION LEVEL " + isolationLevel);
+            try (PreparedStatement stmt = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                applyQueryOptions(stmt, options);
+                for (int i = 0; i < parameters.size(); i++) {
+                    stmt.setObject(i + 1, parameters.get(i));
+                }
+                ResultSet rs = stmt.executeQuery();
+                handleResults(stmt, new MssqlResultSet(rs, options.binaryFormat()), resultHandler);
+            }
+            execute("SET TRANSACTION ISOLATION LEVEL READ COMMITTED");
+        }
+        catch (SQLException ex) {
+            throw new DatabaseException("Failed to execute given SELECT statement", ex);
+        }
+    }
+
+    // Executes a statement that binds parameters to '?' placeholders in sql.
+    // Returns the number of updated rows.
+    public int executeUpdate(String sql, List<Object> parameters)
+    {
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            for (int i = 0; i < parameters.size(); i++) {
+                stmt.setObject(i + 1, parameters.get(i));
+            }
+            return stmt.executeUpdate();
+        }
+        catch (SQLException ex) {
+            throw new DatabaseException("Failed to execute an update statement", ex);
+        }
+    }
+
+    // Copies rows of a CSV file into a table with the bulk copy API. The copy joins the
+    // current transaction. With auto-commit, each batch is committed by the server.
+    public void executeBulkCopy(TableReference table, CsvBulkRecord record, SQLServerBulkCopyOptions options)
+    {
+        String escapedRef = escapeTableReference(table);
+        try {
+            Map<Integer, String> destinationNames;
+            try (Statement stmt = connection.createStatement();
+                    ResultSet rs = stmt.executeQuery("SELECT TOP 0 * FROM " + escapedRef)) {
+                destinationNames = record.bindDestination(rs.getMetaData());
+            }
+            try (SQLServerBulkCopy bulkCopy = new SQLServerBulkCopy(physicalConnection(connection))) {
+                bulkCopy.setDestinationTableName(escapedRef);
+                bulkCopy.setBulkCopyOptions(options);
+                for (Map.Entry<Integer, String> column : destinationNames.entrySet()) {
+                    bulkCopy.addColumnMapping(column.getKey(), column.getValue());
+                }
+                bulkCopy.writeToServer(record);
+            }
+        }
+        catch (SQLException ex) {
+            throw new DatabaseException("Failed to bulk copy rows to " + escapedRef, ex);
+        }
+    }
+
+    // Copies rows of results of another connection into a table. Columns are mapped by
+    // name. The results are read to the end.
+    public void executeBulkCopy(TableReference table, ResultSet results, SQLServerBulkCopyOptions options)
+    {
+        String escapedRef = escapeTableReference(table);
+        try (SQLServerBulkCopy bulkCopy = new SQLServerBulkCopy(physicalConnection(connection))) {
+            bulkCopy.setDestinationTableName(escapedRef);
+            bulkCopy.setBulkCopyOptions(options);
+            ResultSetMetaData metaData = results.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                bulkCopy.addColumnMapping(i, metaData.getColumnName(i));
+            }
+            bulkCopy.writeToServer(results);
+        }
+        catch (SQLException ex) {
+            throw new DatabaseException("Failed to bulk copy rows to " + escapedRef, ex);
+        }
+    }
+
+    // SQLServerBulkCopy accepts only a SQLServerConnection, but connections of the pool
+    // are proxies of PooledConnection that don't unwrap to it. The bulk copy runs on the
+    // physical connection behind the proxy, which is the same session and transaction.
+    @VisibleForTesting
+    static SQLServerConnection physicalConnection(Connection connection)
+            throws SQLException
+    {
+        if (connection instanceof SQLServerConnection) {
+            return (SQLServerConnection) connection;
+        }
+        if (connection.getClass().getName().equals("com.microsoft.sqlserver.jdbc.SQLServerConnectionPoolProxy")) {
+            try {
+                Field wrapped = connection.getClass().getDeclaredField("wrappedConnection");
+                wrapped.setAccessible(true);
+                return (SQLServerConnection) wrapped.get(connection);
+            }
+            catch (ReflectiveOperationException ex) {
+                throw new SQLException("Failed to get the physical connection of a pooled connection", ex);
+            }
+        }
+        return connection.unwrap(SQLServerConnection.class);
+    }
+
+    private void applyQueryOptions(Statement stmt, MssqlQueryOptions options)
+            throws SQLException
+    {
+        if (options.fetchSize().isPresent()) {
+            stmt.setFetchSize(options.fetchSize().get());
+        }
+        if (options.maxRows().isPresent()) {
+            stmt.setMaxRows(options.maxRows().get());
+        }
+        stmt.unwrap(ISQLServerStatement.class).setResponseBuffering(options.responseBuffering());
+    }
+
+    private static void handleResults(Statement stmt, MssqlResultSet results, Consumer<JdbcResultSet> resultHandler)
+    {
+        try {
+            resultHandler.accept(results);
+        }
+        finally {
+            if (!results.isFullyRead()) {
+                // Closing the statement would read and discard the rest of the rows.
+                // Cancel lets the server stop sending them.
+                try {
+                    stmt.cancel();
+                }
+                catch (SQLException ex) {
+                    logger.debug("Failed to cancel a query. Ignoring.", ex);
+                }
+            }
+        }
+    }
+
     @Override
     public String escapeIdent(String ident)
     {
@@ -204,7 +461,20 @@ public class MssqlConnection
             }
             else {
                 // query is not completed. run the action.
-                action.run();
+                try {
+                    action.run();
+                }
+                catch (RuntimeException ex) {
+                    // the transaction was started by BEGIN TRANSACTION, which isn't rolled
+                    // back when the connection is returned to the pool
+                    try {
+                        rollbackOpenTransaction();
+                    }
+                    catch (RuntimeException rollbackError) {
+                        ex.addSuppressed(rollbackError);
+                    }
+                    throw ex;
+                }
                 updateStatusRowAndCommit(queryId);
                 return true;
             }
@@ -240,6 +510,13 @@ public class MssqlConnection
             executeStatement("rollback a transaction", "ROLLBACK TRANSACTION");
         }
 
+        // The server may have rolled back the transaction already, such as after a
+        // deadlock
+        private void rollbackOpenTransaction()
+        {
+            executeStatement("rollback a transaction", ROLLBACK_OPEN_TRANSACTION);
+        }
+
         // Referenced by AbstractPersistentTransactionHelper
         @Override
         protected StatusRow lockStatusRow(UUID queryId)
@@ -6,11 +6,17 @@ import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.time.Duration;
 import java.util.Properties;
+import java.util.TreeSet;
+import javax.sql.PooledConnection;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Locale.ENGLISH;
 
+import com.microsoft.sqlserver.jdbc.SQLServerConnectionPoolDataSource;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
 
 import io.digdag.client.config.Config;
 import io.digdag.spi.SecretProvider;
@@ -171,4 +177,47 @@ public abstract class MssqlConnectionConfig
         }
     }
 
+    // Identity of a physical connection for MssqlConnectionPool. Two configs share pooled
+    // sessions only when url and all effective properties match. The password is included
+    // as a digest so that a rotated password never reuses a session logged in with the old one.
+    public String poolKey()
+    {
+        Properties props = buildProperties();
+        StringBuilder sb = new StringBuilder(url());
+        for (String name : new TreeSet<>(props.stringPropertyNames())) {
+            String value = props.getProperty(name);
+            if (name.equals("password")) {
+                value = Hashing.sha256().hashString(value, UTF_8).toString();
+            }
+            sb.append(';').append(name).append('=').append(value);
+        }
+        return sb.toString();
+    }
+
+    public PooledConnection openPooledConnection()
+    {
+        Properties props = buildProperties();
+        SQLServerConnectionPoolDataSource dataSource = new SQLServerConnectionPoolDataSource();
+        // user and password are passed by setters so that they don't need escaping
+        if (props.containsKey("user")) {
+            dataSource.setUser((String) props.remove("user"));
+        }
+        if (props.containsKey("password")) {
+            dataSource.setPassword((String) props.remove("password"));
+        }
+        StringBuilder url = new StringBuilder(url());
+        for (String name : props.stringPropertyNames()) {
+            // braces allow ';' in values. '}' is escaped by doubling it.
+            url.append(';').append(name).append("={")
+                .append(props.getProperty(name).replace("}", "}}")).append('}');
+        }
+        dataSource.setURL(url.toString());
+
+        try {
+            return dataSource.getPooledConnection();
+        }
+        catch (SQLException ex) {
+            throw new DatabaseException("Failed to connect to the database", ex);
+        }
+    }
 }
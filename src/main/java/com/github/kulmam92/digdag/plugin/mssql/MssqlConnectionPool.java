@@ -0,0 +1,279 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.digdag.standards.operator.jdbc.DatabaseException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Agent-wide pool of physical connections shared by all mssql> tasks.
+//
+// Connections are keyed by MssqlConnectionConfig.poolKey() so that only tasks with
+// the same url and effective connection properties share a session. Physical
+// connections are mssql-jdbc PooledConnections: every checkout goes through
+// PooledConnection.getConnection(), which makes the driver send the reset-connection
+// flag (the same thing sp_reset_connection does for ADO.NET pools) with the next request.
+//
+// The pool limits only the idle connections it keeps. Connections in use aren't
+// counted, so tasks never wait for a connection; a connection returned while maxIdle
+// connections of the key are idle is closed.
+//
+// Tasks start transactions with BEGIN TRANSACTION while autocommit is on, and the
+// driver rolls back only transactions of autocommit-off connections when a handle is
+// closed. So a returned connection rolls back what a failed task left open before it
+// is pooled; otherwise the idle session would keep the locks until it's reused.
+class MssqlConnectionPool
+{
+    static final int DEFAULT_MAX_IDLE = 8;
+    static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(10);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final long EVICTION_INTERVAL_SECONDS = 30;
+
+    private static final MssqlConnectionPool SHARED = new MssqlConnectionPool();
+
+    private static Logger logger = LoggerFactory.getLogger(MssqlConnectionPool.class);
+
+    static MssqlConnectionPool shared()
+    {
+        return SHARED;
+    }
+
+    private final Map<String, Deque<PoolEntry>> idleConnections = new HashMap<>();
+    private final LongSupplier nanoTime;
+    private int maxIdle = DEFAULT_MAX_IDLE;
+    private Duration idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private ScheduledExecutorService evictor;
+
+    private MssqlConnectionPool()
+    {
+        this(System::nanoTime);
+    }
+
+    @VisibleForTesting
+    MssqlConnectionPool(LongSupplier nanoTime)
+    {
+        this.nanoTime = nanoTime;
+    }
+
+    // maxIdle is the number of idle connections kept per key. 0 disables pooling.
+    synchronized void configure(int maxIdle, Duration idleTimeout)
+    {
+        this.maxIdle = maxIdle;
+        this.idleTimeout = idleTimeout;
+    }
+
+    Connection borrow(MssqlConnectionConfig config)
+    {
+        return borrow(config.poolKey(), config::openPooledConnection);
+    }
+
+    @VisibleForTesting
+    Connection borrow(String key, Supplier<PooledConnection> connector)
+    {
+        while (true) {
+            PoolEntry entry = pollIdle(key);
+            if (entry == null) {
+                break;
+            }
+            Connection connection = checkout(entry);
+            if (connection != null) {
+                logger.debug("Reusing a pooled connection");
+                return connection;
+            }
+        }
+
+        PoolEntry entry = new PoolEntry(key, connector.get());
+        try {
+            return entry.pooled.getConnection();
+        }
+        catch (SQLException ex) {
+            discard(entry);
+            throw new DatabaseException("Failed to connect to the database", ex);
+        }
+    }
+
+    private synchronized PoolEntry pollIdle(String key)
+    {
+        Deque<PoolEntry> entries = idleConnections.get(key);
+        if (entries == null) {
+            return null;
+        }
+        // LIFO keeps the most recently used sessions warm and lets the rest age out
+        PoolEntry entry = entries.pollLast();
+        if (entries.isEmpty()) {
+            idleConnections.remove(key);
+        }
+        return entry;
+    }
+
+    private Connection checkout(PoolEntry entry)
+    {
+        try {
+            Connection connection = entry.pooled.getConnection();
+            if (connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                return connection;
+            }
+            logger.debug("Discarding a pooled connection that failed validation");
+        }
+        catch (SQLException ex) {
+            logger.debug("Discarding a pooled connection that failed validation", ex);
+        }
+        discard(entry);
+        return null;
+    }
+
+    private void release(PoolEntry entry)
+    {
+        synchronized (this) {
+            if (entry.discarded) {
+                return;
+            }
+        }
+        if (!rollbackOpenTransaction(entry)) {
+            discard(entry);
+            return;
+        }
+        synchronized (this) {
+            if (entry.discarded) {
+                return;
+            }
+            Deque<PoolEntry> entries = idleConnections.computeIfAbsent(entry.key, (key) -> new ArrayDeque<>());
+            if (entries.size() < maxIdle) {
+                entry.idleSince = nanoTime.getAsLong();
+                entries.addLast(entry);
+                startEvictorIfNecessary();
+                return;
+            }
+            if (entries.isEmpty()) {
+                idleConnections.remove(entry.key);
+            }
+        }
+        discard(entry);
+    }
+
+    // Returns false if the connection can't be reused
+    private static boolean rollbackOpenTransaction(PoolEntry entry)
+    {
+        entry.rollingBack = true;
+        try (Connection connection = entry.pooled.getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.execute(MssqlConnection.ROLLBACK_OPEN_TRANSACTION);
+            return true;
+        }
+        catch (SQLException ex) {
+            logger.debug("Discarding a pooled connection that failed to roll back", ex);
+            return false;
+        }
+        finally {
+            entry.rollingBack = false;
+        }
+    }
+
+    private void discard(PoolEntry entry)
+    {
+        synchronized (this) {
+            entry.discarded = true;
+        }
+        try {
+            entry.pooled.close();
+        }
+        catch (SQLException ex) {
+            logger.debug("Failed to close a pooled connection. Ignoring.", ex);
+        }
+    }
+
+    private void startEvictorIfNecessary()
+    {
+        if (evictor == null) {
+            evictor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("mssql-connection-pool-evictor")
+                        .build());
+            evictor.scheduleWithFixedDelay(this::evictIdleConnections,
+                    EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @VisibleForTesting
+    void evictIdleConnections()
+    {
+        List<PoolEntry> expired = new ArrayList<>();
+        synchronized (this) {
+            long deadline = nanoTime.getAsLong() - idleTimeout.toNanos();
+            Iterator<Deque<PoolEntry>> it = idleConnections.values().iterator();
+            while (it.hasNext()) {
+                Deque<PoolEntry> entries = it.next();
+                // entries are ordered by release time; the oldest is at the head
+                while (!entries.isEmpty() && entries.peekFirst().idleSince - deadline < 0) {
+                    expired.add(entries.pollFirst());
+                }
+                if (entries.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        if (!expired.isEmpty()) {
+            logger.debug("Closing {} idle pooled connections", expired.size());
+        }
+        for (PoolEntry entry : expired) {
+            discard(entry);
+        }
+    }
+
+    private class PoolEntry
+            implements ConnectionEventListener
+    {
+        private final String key;
+        private final PooledConnection pooled;
+        private long idleSince;
+        private boolean discarded;
+        // closing the handle of rollbackOpenTransaction doesn't release the entry again
+        private boolean rollingBack;
+
+        PoolEntry(String key, PooledConnection pooled)
+        {
+            this.key = key;
+            this.pooled = pooled;
+            pooled.addConnectionEventListener(this);
+        }
+
+        @Override
+        public void connectionClosed(ConnectionEvent event)
+        {
+            if (rollingBack) {
+                return;
+            }
+            release(this);
+        }
+
+        @Override
+        public void connectionErrorOccurred(ConnectionEvent event)
+        {
+            // the driver reports only fatal errors here. the physical connection can't be reused.
+            logger.debug("Discarding a pooled connection after a fatal error", event.getSQLException());
+            discard(this);
+        }
+    }
+}
@@ -3,14 +3,19 @@ package com.github.kulmam92.digdag.plugin.mssql;
 import com.google.inject.Inject;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
-import com.google.common.collect.ImmutableList;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigException;
@@ -23,6 +28,7 @@ import io.digdag.spi.TemplateEngine;
 import io.digdag.spi.ImmutableTaskResult;
 import io.digdag.spi.TaskExecutionException;
 import io.digdag.spi.TaskResult;
+import io.digdag.util.DurationParam;
 
 import io.digdag.standards.operator.jdbc.AbstractJdbcJobOperator;
 import io.digdag.standards.operator.jdbc.StoreLastResultsOption;
@@ -56,6 +62,13 @@ public class MssqlOperatorFactory
     {
         this.templateEngine = templateEngine;
         this.systemConfig = systemConfig;
+        MssqlConnectionPool.shared().configure(
+                systemConfig.get("config.mssql.connection_pool.max_idle", int.class, MssqlConnectionPool.DEFAULT_MAX_IDLE),
+                systemConfig.get("config.mssql.connection_pool.idle_timeout", DurationParam.class,
+                    DurationParam.of(MssqlConnectionPool.DEFAULT_IDLE_TIMEOUT)).getDuration());
+        ResultCache.shared().configure(
+                systemConfig.getOptional("config.mssql.cache.directory", String.class).transform(Paths::get).or(ResultCache.defaultDirectory()),
+                systemConfig.get("config.mssql.cache.max_size", long.class, ResultCache.DEFAULT_MAX_SIZE));
     }
 
     @Override
@@ -77,12 +90,14 @@ public class MssqlOperatorFactory
         private static final int INITIAL_POLL_INTERVAL = 1;
         private static final int MAX_POLL_INTERVAL = 1200;
         private static final String QUERY_ID = "queryId";
+        private static final int DEFAULT_MAX_STREAM_BATCH_LENGTH = 16 * 1024 * 1024;
     
         private final Logger logger = LoggerFactory.getLogger(getClass());
     
         private final long maxStoreLastResultsRows;
         private final int maxStoreLastResultsColumns;
         private final int maxStoreLastResultsValueSize;
+        private final long maxStoreLastResultsBytes;
 
         private <T> Optional<T> getConfigValue(Config systemConfig, String key, Class<T> clazz)
         {
@@ -96,6 +111,7 @@ public class MssqlOperatorFactory
             this.maxStoreLastResultsRows = getConfigValue(systemConfig, "max_store_last_results_rows", long.class).or(8192L);
             this.maxStoreLastResultsColumns = getConfigValue(systemConfig, "max_store_last_results_columns", int.class).or(64);
             this.maxStoreLastResultsValueSize = getConfigValue(systemConfig, "max_store_last_results_value_size", int.class).or(256);    
+            this.maxStoreLastResultsBytes = getConfigValue(systemConfig, "max_store_last_results_bytes", long.class).or(64L * 1024 * 1024);
         }
 
         @Override
@@ -126,21 +142,80 @@ public class MssqlOperatorFactory
         @Override
         protected TaskResult run(Config params, Config state, MssqlConnectionConfig connectionConfig)
         {
-            String query = workspace.templateCommand(templateEngine, params, "query", UTF_8);
+            Optional<BulkUpload> bulkUpload = params.getOptional("upload_file", String.class).transform((file) -> BulkUpload.configure(params));
+            Optional<String> scriptFile = params.get("stream_script", boolean.class, false)
+                ? Optional.of(params.get("_command", String.class))
+                : Optional.absent();
+            int maxStreamBatchLength = params.get("stream_script_max_batch_chars", int.class, DEFAULT_MAX_STREAM_BATCH_LENGTH);
+            // rows of upload_file are copied instead of running a query, and stream_script
+            // reads the file while it runs
+            String query = bulkUpload.isPresent() || scriptFile.isPresent() ? "" : workspace.templateCommand(templateEngine, params, "query", UTF_8);
 
             Optional<TableReference> insertInto = params.getOptional("insert_into", TableReference.class);
             Optional<TableReference> createTable = params.getOptional("create_table", TableReference.class);
+            Optional<MergeInto> mergeInto = params.getOptional("merge_into", Config.class).transform(MergeInto::configure);
 
             int queryModifier = 0;
             if (insertInto.isPresent()) queryModifier++;
             if (createTable.isPresent()) queryModifier++;
+            if (mergeInto.isPresent()) queryModifier++;
             if (queryModifier > 1) {
-                throw new ConfigException("Can't use both of insert_into and create_table");
+                throw new ConfigException("Can't use more than one of insert_into, create_table and merge_into");
+            }
+
+            Optional<TableLayout> tableLayout = params.getOptional("create_table_layout", Config.class).transform(TableLayout::configure);
+            if (tableLayout.isPresent() && !createTable.isPresent()) {
+                throw new ConfigException("create_table_layout can be used only with create_table");
+            }
+
+            Optional<StagedCreateTable> stagedCreateTable = StagedCreateTable.configure(params, tableLayout);
+            if (stagedCreateTable.isPresent() && !createTable.isPresent()) {
+                throw new ConfigException("create_table_staged can be used only with create_table");
+            }
+
+            if (bulkUpload.isPresent() && !insertInto.isPresent() && !mergeInto.isPresent()) {
+                throw new ConfigException("upload_file can be used only with insert_into or merge_into");
+            }
+
+            Optional<BatchedInsert> batchedInsert = params.getOptional("insert_batch", Config.class).transform(BatchedInsert::configure);
+            if (batchedInsert.isPresent() && (!insertInto.isPresent() || bulkUpload.isPresent())) {
+                throw new ConfigException("insert_batch can be used only with insert_into without upload_file");
+            }
+
+            Optional<IndexManagement> indexManagement = params.getOptional("index_management", Config.class).transform(IndexManagement::configure);
+            if (indexManagement.isPresent() && (!insertInto.isPresent() || batchedInsert.isPresent())) {
+                throw new ConfigException("index_management can be used only with insert_into without insert_batch");
             }
 
             Optional<String> downloadFile = params.getOptional("download_file", String.class);
             if (downloadFile.isPresent() && queryModifier > 0) {
-                throw new ConfigException("Can't use download_file with insert_into or create_table");
+                throw new ConfigException("Can't use download_file with insert_into, create_table or merge_into");
+            }
+
+            Optional<TableCopy> tableCopy = params.getOptional("copy_to", Config.class).transform((copyTo) -> TableCopy.configure(params, getSecretsForConnectionConfig()));
+            if (tableCopy.isPresent() && (queryModifier > 0 || downloadFile.isPresent())) {
+                throw new ConfigException("Can't use copy_to with download_file, insert_into, create_table or merge_into");
+            }
+
+            Optional<PartitionedDownload> partitionedDownload = params.getOptional("partition_by", Config.class).transform(PartitionedDownload::configure);
+            if (partitionedDownload.isPresent() && !downloadFile.isPresent() && !tableCopy.isPresent()) {
+                throw new ConfigException("partition_by can be used only with download_file or copy_to");
+            }
+
+            Optional<SplitDownload> splitDownload = params.getOptional("download_split", Config.class).transform(SplitDownload::configure);
+            if (splitDownload.isPresent() && !downloadFile.isPresent()) {
+                throw new ConfigException("download_split can be used only with download_file");
+            }
+            if (splitDownload.isPresent() && partitionedDownload.isPresent()) {
+                throw new ConfigException("Can't use both partition_by and download_split");
+            }
+
+            Optional<HivePartitionedDownload> hivePartitionedDownload = params.getOptional("download_partition_by", String.class).transform((column) -> HivePartitionedDownload.configure(params));
+            if (hivePartitionedDownload.isPresent() && !downloadFile.isPresent()) {
+                throw new ConfigException("download_partition_by can be used only with download_file");
+            }
+            if (hivePartitionedDownload.isPresent() && (partitionedDownload.isPresent() || splitDownload.isPresent())) {
+                throw new ConfigException("Can't use download_partition_by with partition_by or download_split");
             }
 
             StoreLastResultsOption storeResultsOption = params.get("store_last_results", StoreLastResultsOption.class, StoreLastResultsOption.FALSE);
@@ -150,8 +225,57 @@ public class MssqlOperatorFactory
             if (downloadFile.isPresent() && storeResultsOption.isEnabled()) {
                 throw new ConfigException("Can't use both download_file and store_last_results at once");
             }
+            if (tableCopy.isPresent() && storeResultsOption.isEnabled()) {
+                throw new ConfigException("Can't use both copy_to and store_last_results at once");
+            }
+
+            boolean readOnlyMode = downloadFile.isPresent() || storeResultsOption.isEnabled() || tableCopy.isPresent();
+            if (scriptFile.isPresent()) {
+                if (readOnlyMode || queryModifier > 0 || bulkUpload.isPresent()) {
+                    throw new ConfigException("stream_script can't be used with download_file, store_last_results, copy_to, insert_into, create_table, merge_into or upload_file");
+                }
+                if (!Files.isRegularFile(workspace.getPath(scriptFile.get()))) {
+                    throw new ConfigException("stream_script needs a file in the workspace as the command: " + scriptFile.get());
+                }
+            }
+            MssqlQueryOptions queryOptions = MssqlQueryOptions.configure(params);
+            CsvDownload csvDownload = CsvDownload.configure(params);
+            if ((splitDownload.isPresent() || hivePartitionedDownload.isPresent()) && csvDownload.isPipelined()) {
+                throw new ConfigException("Can't use download_pipeline with download_split or download_partition_by");
+            }
+
+            Optional<ChunkedDownload> chunkedDownload = params.getOptional("download_chunk", Config.class).transform(ChunkedDownload::configure);
+            if (chunkedDownload.isPresent() && !downloadFile.isPresent()) {
+                throw new ConfigException("download_chunk can be used only with download_file");
+            }
+            if (chunkedDownload.isPresent() && (partitionedDownload.isPresent() || splitDownload.isPresent() || hivePartitionedDownload.isPresent())) {
+                throw new ConfigException("Can't use download_chunk with partition_by, download_split or download_partition_by");
+            }
 
-            boolean readOnlyMode = downloadFile.isPresent() || storeResultsOption.isEnabled();
+            Optional<IncrementalDownload> incrementalDownload = params.getOptional("incremental", Config.class)
+                .transform((incremental) -> IncrementalDownload.configure(incremental, statusTableSchema));
+            if (incrementalDownload.isPresent() && !downloadFile.isPresent()) {
+                throw new ConfigException("incremental can be used only with download_file");
+            }
+            if (incrementalDownload.isPresent() && chunkedDownload.isPresent()) {
+                throw new ConfigException("Can't use both download_chunk and incremental");
+            }
+
+            Optional<Duration> cacheTtl = params.getOptional("cache", Config.class).transform((cache) -> cache.get("ttl", DurationParam.class).getDuration());
+            if (cacheTtl.isPresent()) {
+                if (!downloadFile.isPresent() && !storeResultsOption.isEnabled()) {
+                    throw new ConfigException("cache can be used only with download_file or store_last_results");
+                }
+                if (splitDownload.isPresent() || hivePartitionedDownload.isPresent() || (partitionedDownload.isPresent() && !partitionedDownload.get().isMerged())) {
+                    throw new ConfigException("cache can't be used with download_split, download_partition_by or partition_by without merge");
+                }
+                if (chunkedDownload.isPresent()) {
+                    throw new ConfigException("Can't use both cache and download_chunk");
+                }
+                if (incrementalDownload.isPresent()) {
+                    throw new ConfigException("Can't use both cache and incremental");
+                }
+            }
 
             boolean strictTransaction = strictTransaction(params);
 
@@ -172,33 +296,107 @@ public class MssqlOperatorFactory
                 queryId = state.get(QUERY_ID, UUID.class);
             }
 
+            Optional<String> cacheKey = Optional.absent();
+            if (cacheTtl.isPresent()) {
+                // anything that changes the output is a part of the key
+                cacheKey = Optional.of(ResultCache.key(query, connectionConfig.poolKey(),
+                            downloadFile.isPresent() ? "download_file" : "store_last_results:" + storeResultsOption,
+                            queryOptions.binaryFormat(),
+                            params.get("download_compression", String.class, null)));
+                Optional<TaskResult> cached = loadCachedResults(cacheKey.get(), cacheTtl.get(), downloadFile);
+                if (cached.isPresent()) {
+                    // no need to connect
+                    return cached.get();
+                }
+            }
+
             try (MssqlConnection connection = connect(connectionConfig)) {
-                Exception statementError = connection.validateStatement(query);
+                Exception statementError = bulkUpload.isPresent() || scriptFile.isPresent() ? null : connection.validateStatement(query);
 
                 if (statementError != null) {
                     throw new ConfigException("Given query is invalid", statementError);
                 }
 
                 if (readOnlyMode) {
-                    ImmutableTaskResult.Builder builder = TaskResult.defaultBuilder(request);
-                    if (downloadFile.isPresent()) {
-                        connection.executeReadOnlyQuery(query, (results) -> downloadResultsToFile(results, downloadFile.get()));
+                    Config storeParams = request.getConfig().getFactory().create();
+                    String readQuery = query;
+                    MssqlQueryOptions readOptions = queryOptions;
+                    if (incrementalDownload.isPresent()) {
+                        readQuery = incrementalDownload.get().prepare(connection, query);
+                        // rows that are rolled back later must not be in the file
+                        readOptions = queryOptions.withReadCommitted();
+                    }
+                    if (tableCopy.isPresent()) {
+                        tableCopy.get().copy(connection, connectionConfig, readOptions, readQuery, partitionedDownload);
+                    }
+                    else if (partitionedDownload.isPresent()) {
+                        List<String> files = partitionedDownload.get().download(connection, connectionConfig, readOptions, csvDownload, workspace, readQuery, downloadFile.get());
+                        if (!partitionedDownload.get().isMerged()) {
+                            storeParams.getNestedOrSetEmpty(type())
+                                .set("last_download_files", downloadedFiles(files));
+                        }
+                    }
+                    else if (chunkedDownload.isPresent()) {
+                        // throws TaskExecutionException to poll again until the last chunk
+                        chunkedDownload.get().download(connection, readOptions, csvDownload, workspace, readQuery, downloadFile.get(), state);
+                    }
+                    else if (splitDownload.isPresent()) {
+                        connection.executeReadOnlyQuery(readQuery, readOptions, (results) -> downloadSplitResultsToFiles(results, splitDownload.get(), csvDownload, downloadFile.get(), storeParams));
+                    }
+                    else if (hivePartitionedDownload.isPresent()) {
+                        connection.executeReadOnlyQuery(readQuery, readOptions, (results) -> downloadPartitionedResultsToFiles(results, hivePartitionedDownload.get(), csvDownload, downloadFile.get(), storeParams));
+                    }
+                    else if (downloadFile.isPresent()) {
+                        connection.executeReadOnlyQuery(readQuery, readOptions, (results) -> downloadResultsToFile(results, csvDownload, downloadFile.get()));
                     }
                     else if (storeResultsOption.isEnabled()) {
-                        connection.executeReadOnlyQuery(query, (results) -> storeResultsInTaskResult(results, storeResultsOption, builder));
+                        // the server sends only the rows to store, plus one to detect exceeding the limit
+                        MssqlQueryOptions storeQueryOptions = readOptions.withMaxRows(
+                                storeResultsOption == StoreLastResultsOption.FIRST ? 1 : maxStoreLastResultsRows + 1);
+                        connection.executeReadOnlyQuery(readQuery, storeQueryOptions, (results) -> storeResultsInTaskResult(results, storeResultsOption, storeParams));
                     }
                     else {
-                        connection.executeReadOnlyQuery(query, (results) -> skipResults(results));
+                        connection.executeReadOnlyQuery(readQuery, readOptions, (results) -> skipResults(results));
+                    }
+                    if (incrementalDownload.isPresent()) {
+                        // the file is fully written here
+                        incrementalDownload.get().commit(connection);
+                        Optional<String> watermark = incrementalDownload.get().newWatermarkValue();
+                        if (watermark.isPresent()) {
+                            storeParams.getNestedOrSetEmpty(type())
+                                .set("last_watermark", watermark.get());
+                        }
                     }
-                    return builder.build();
+                    TaskResult result = TaskResult.defaultBuilder(request)
+                        .storeParams(storeParams)
+                        .build();
+                    if (cacheKey.isPresent()) {
+                        storeCachedResults(cacheKey.get(), downloadFile, result);
+                    }
+                    return result;
                 }
                 else {
                     String statement;
                     boolean statementMayReturnResults;
-                    if (insertInto.isPresent() || createTable.isPresent()) {
-                        if (insertInto.isPresent()) {
+                    if (bulkUpload.isPresent()) {
+                        // rows are copied by the bulk copy API
+                        statement = null;
+                        statementMayReturnResults = false;
+                    }
+                    else if (insertInto.isPresent() || createTable.isPresent() || mergeInto.isPresent()) {
+                        if (mergeInto.isPresent()) {
+                            statement = mergeInto.get().buildStageStatement(connection, query, mergeInto.get().stagingTable(queryId));
+                        }
+                        else if (insertInto.isPresent()) {
                             statement = connection.buildInsertStatement(query, insertInto.get());
                         }
+                        else if (stagedCreateTable.isPresent()) {
+                            statement = stagedCreateTable.get().buildLoadStatement(connection, query, stagedCreateTable.get().stagingTable(createTable.get(), queryId), createTable.get());
+                        }
+                        else if (tableLayout.isPresent()) {
+                            statement = connection.buildDropTableStatement(createTable.get()) + " \n" +
+                                tableLayout.get().buildCreateStatement(connection, query, createTable.get(), createTable.get());
+                        }
                         else {
                             statement = connection.buildCreateTableStatement(query, createTable.get());
                         }
@@ -226,27 +424,84 @@ public class MssqlOperatorFactory
 
                     txHelper.prepare(queryId);
 
-                    boolean executed = txHelper.lockedTransaction(queryId, () -> {
-                        if (statementMayReturnResults) {
-                            connection.executeScript(statement);
-                        }
-                        else {
-                            connection.executeUpdate(statement);
+                    if (batchedInsert.isPresent()) {
+                        // throws TaskExecutionException to poll again until the last slice
+                        batchedInsert.get().insert(connection, txHelper, queryId, query, insertInto.get(), state);
+                        cleanupStatusTable(txHelper);
+                        return TaskResult.defaultBuilder(request).build();
+                    }
+
+                    if (indexManagement.isPresent()) {
+                        // throws TaskExecutionException to save the disabled indexes at the first run
+                        indexManagement.get().disable(connection, insertInto.get(), state);
+                    }
+
+                    Map<String, Object> uploaded = new HashMap<>();
+                    Map<String, Object> merged = new HashMap<>();
+                    boolean executed;
+                    try {
+                        executed = txHelper.lockedTransaction(queryId, () -> {
+                            if (mergeInto.isPresent()) {
+                                merged.putAll(mergeInto.get().merge(connection, queryId, query, bulkUpload, workspace));
+                            }
+                            else if (bulkUpload.isPresent()) {
+                                // a strict transaction commits all rows at once. otherwise each batch is auto-committed.
+                                uploaded.putAll(bulkUpload.get().upload(connection, workspace, insertInto.get()));
+                            }
+                            else if (stagedCreateTable.isPresent()) {
+                                stagedCreateTable.get().create(connection, query, createTable.get(), queryId);
+                            }
+                            else if (scriptFile.isPresent()) {
+                                try (Reader script = Files.newBufferedReader(workspace.getPath(scriptFile.get()), UTF_8)) {
+                                    connection.executeScript(script, maxStreamBatchLength);
+                                }
+                                catch (IOException ex) {
+                                    throw Throwables.propagate(ex);
+                                }
+                            }
+                            else if (statementMayReturnResults) {
+                                connection.executeScript(statement);
+                            }
+                            else {
+                                connection.executeUpdate(statement);
+                            }
+                        });
+                    }
+                    catch (RuntimeException ex) {
+                        if (indexManagement.isPresent()) {
+                            // don't leave the indexes disabled
+                            try {
+                                indexManagement.get().rebuildAfterFailure(connection, insertInto.get(), state);
+                            }
+                            catch (RuntimeException rebuildError) {
+                                ex.addSuppressed(rebuildError);
+                            }
                         }
-                    });
+                        throw ex;
+                    }
 
                     if (!executed) {
                         logger.debug("Query is already completed according to status table. Skipping statement execution.");
                     }
 
-                    try {
-                        txHelper.cleanup();
-                    }
-                    catch (Exception ex) {
-                        logger.warn("Error during cleaning up status table. Ignoring.", ex);
+                    if (indexManagement.isPresent()) {
+                        indexManagement.get().rebuild(connection, insertInto.get(), state);
                     }
 
-                    return TaskResult.defaultBuilder(request).build();
+                    cleanupStatusTable(txHelper);
+
+                    Config storeParams = request.getConfig().getFactory().create();
+                    if (!uploaded.isEmpty()) {
+                        storeParams.getNestedOrSetEmpty(type())
+                            .set("last_upload", uploaded);
+                    }
+                    if (!merged.isEmpty()) {
+                        storeParams.getNestedOrSetEmpty(type())
+                            .set("last_merge", merged);
+                    }
+                    return TaskResult.defaultBuilder(request)
+                        .storeParams(storeParams)
+                        .build();
                 }
             }
             catch (NotReadOnlyException ex) {
@@ -265,34 +520,108 @@ public class MssqlOperatorFactory
             }
         }
 
-        private void downloadResultsToFile(JdbcResultSet results, String fileName)
+        private void cleanupStatusTable(TransactionHelper txHelper)
         {
-            try (CsvWriter csvWriter = new CsvWriter(workspace.newBufferedWriter(fileName, UTF_8))) {
-                List<String> columnNames = results.getColumnNames();
-                csvWriter.addCsvHeader(columnNames);
-                while (true) {
-                    List<Object> values = results.next();
-                    if (values == null) {
-                        break;
-                    }
-                    List<String> row = values.stream().map(value -> {
-                        if (value == null) {
-                            return (String) value;
-                        }
-                        else if (value instanceof String) {
-                            return (String) value;
-                        }
-                        else {
-                            return value.toString();  // TODO use jackson to serialize?
-                        }
-                    })
-                    .collect(Collectors.toList());
-                    csvWriter.addCsvRow(row);
+            try {
+                txHelper.cleanup();
+            }
+            catch (Exception ex) {
+                logger.warn("Error during cleaning up status table. Ignoring.", ex);
+            }
+        }
+
+        private Optional<TaskResult> loadCachedResults(String cacheKey, Duration ttl, Optional<String> downloadFile)
+        {
+            Optional<Path> cached = ResultCache.shared().lookup(cacheKey, ttl);
+            if (!cached.isPresent()) {
+                return Optional.absent();
+            }
+            try {
+                ImmutableTaskResult.Builder builder = TaskResult.defaultBuilder(request);
+                if (downloadFile.isPresent()) {
+                    Files.copy(cached.get(), workspace.getPath(downloadFile.get()), StandardCopyOption.REPLACE_EXISTING);
+                }
+                else {
+                    String storeParams = new String(Files.readAllBytes(cached.get()), UTF_8);
+                    builder.storeParams(request.getConfig().getFactory().fromJsonString(storeParams));
                 }
+                logger.info("Using cached results of the query");
+                return Optional.of(builder.build());
+            }
+            catch (NoSuchFileException ex) {
+                // evicted by another task in the meantime
+                return Optional.absent();
+            }
+            catch (IOException ex) {
+                throw Throwables.propagate(ex);
+            }
+        }
+
+        private void storeCachedResults(String cacheKey, Optional<String> downloadFile, TaskResult result)
+        {
+            if (downloadFile.isPresent()) {
+                ResultCache.shared().put(cacheKey, workspace.getPath(downloadFile.get()));
+            }
+            else {
+                ResultCache.shared().put(cacheKey, result.getStoreParams().toString());
+            }
+        }
+
+        private void downloadResultsToFile(JdbcResultSet results, CsvDownload csvDownload, String fileName)
+        {
+            try {
+                csvDownload.writeResults(results, workspace, fileName, true);
+            }
+            catch (IOException ex) {
+                throw Throwables.propagate(ex);
+            }
+        }
+
+        private void downloadSplitResultsToFiles(JdbcResultSet results, SplitDownload splitDownload, CsvDownload csvDownload, String fileName, Config storeParams)
+        {
+            List<Map<String, Object>> files;
+            try {
+                files = splitDownload.writeResults(results, csvDownload, workspace, fileName);
+            }
+            catch (IOException ex) {
+                throw Throwables.propagate(ex);
+            }
+
+            storeParams.getNestedOrSetEmpty(type())
+                .set("last_download_files", files);
+        }
+
+        private void downloadPartitionedResultsToFiles(JdbcResultSet results, HivePartitionedDownload hivePartitionedDownload, CsvDownload csvDownload, String directory, Config storeParams)
+        {
+            List<Map<String, Object>> files;
+            try {
+                files = hivePartitionedDownload.writeResults(results, csvDownload, workspace, directory);
             }
             catch (IOException ex) {
                 throw Throwables.propagate(ex);
             }
+
+            storeParams.getNestedOrSetEmpty(type())
+                .set("last_download_files", files);
+        }
+
+        // {file, bytes} of the part files of partition_by. Rows aren't counted because
+        // each partition is written by its own thread straight into the file.
+        private List<Map<String, Object>> downloadedFiles(List<String> fileNames)
+        {
+            List<Map<String, Object>> files = new ArrayList<>();
+            for (String fileName : fileNames) {
+                Map<String, Object> file = new HashMap<>();
+                file.put("file", fileName);
+                try {
+                    file.put("bytes", Files.size(workspace.getPath(fileName)));
+                }
+                catch (IOException ex) {
+                    throw Throwables.propagate(ex);
+                }
+                files.add(file);
+            }
+            return files;
         }
 
         private void skipResults(JdbcResultSet results)
@@ -301,7 +630,7 @@ public class MssqlOperatorFactory
                 ;
         }
 
-        private void storeResultsInTaskResult(JdbcResultSet jdbcResultSet, StoreLastResultsOption option, ImmutableTaskResult.Builder builder)
+        private void storeResultsInTaskResult(JdbcResultSet jdbcResultSet, StoreLastResultsOption option, Config storeParams)
         {
             int columnsCount = jdbcResultSet.getColumnNames().size();
             if (columnsCount > maxStoreLastResultsColumns) {
@@ -320,16 +649,13 @@ public class MssqlOperatorFactory
                 throw new AssertionError("Unexpected StoreLastResultsOption: " + option);
             }
 
-            Config storeParams = request.getConfig().getFactory().create();
             storeParams.getNestedOrSetEmpty(type())
                 .set("last_results", lastResults);
-            builder.storeParams(storeParams);
         }
 
         private List<Map<String, Object>> collectAllResults(JdbcResultSet jdbcResultSet)
         {
-            List<String> columnNames = jdbcResultSet.getColumnNames();
-            ImmutableList.Builder<Map<String, Object>> lastResults = ImmutableList.builder();
+            ColumnarResults lastResults = new ColumnarResults(jdbcResultSet.getColumnNames(), maxStoreLastResultsBytes);
 
             long rows = 0;
             while (true) {
@@ -343,10 +669,12 @@ public class MssqlOperatorFactory
                     throw new TaskExecutionException("The number of result rows exceeded the limit: " + rows + " > " + maxStoreLastResultsRows);
                 }
 
-                lastResults.add(buildResultsMap(columnNames, values));
+                checkValueSizes(values);
+                lastResults.add(values);
             }
 
-            return lastResults.build();
+            // rows are built while they are converted to Config
+            return lastResults.toRows();
         }
 
         private Map<String, Object> collectFirstResults(JdbcResultSet jdbcResultSet)
@@ -356,29 +684,30 @@ public class MssqlOperatorFactory
                 return new HashMap<>();
             }
 
-            Map<String, Object> lastResults = buildResultsMap(jdbcResultSet.getColumnNames(), values);
-
-            // consume all results
-            while (jdbcResultSet.skip())
-                ;
-
-            return lastResults;
+            // the rest of the results are not fetched. MssqlConnection cancels the query.
+            return buildResultsMap(jdbcResultSet.getColumnNames(), values);
         }
 
         private Map<String, Object> buildResultsMap(List<String> columnNames, List<Object> values)
         {
+            checkValueSizes(values);
             HashMap<String, Object> map = new HashMap<>();
             for (int i = 0; i < columnNames.size(); i++) {
-                Object v = values.get(i);
+                map.put(columnNames.get(i), values.get(i));
+            }
+            return map;
+        }
+
+        private void checkValueSizes(List<Object> values)
+        {
+            for (Object v : values) {
                 if (v instanceof String) {
                     String s = (String) v;
                     if (s.length() > maxStoreLastResultsValueSize) {
                         throw new TaskExecutionException("The size of result value exceeded the limit: " + s.length() + " > " + maxStoreLastResultsValueSize);
                     }
                 }
-                map.put(columnNames.get(i), v);
             }
-            return map;
         }
     }
 }
@@ -0,0 +1,76 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import org.immutables.value.Value;
+
+// Statement level options of read-only queries
+@Value.Immutable
+public abstract class MssqlQueryOptions
+{
+    // https://docs.microsoft.com/en-us/sql/connect/jdbc/using-adaptive-buffering?view=sql-server-2017
+    // adaptive: the driver buffers only the minimum amount of data it needs. This is the
+    //           driver's default. Setting it overrides responseBuffering=full of the URL.
+    // full:     the driver reads the entire result into memory at execution.
+    static final String ADAPTIVE_BUFFERING = "adaptive";
+    static final String FULL_BUFFERING = "full";
+
+    public abstract Optional<Integer> fetchSize();
+    public abstract String responseBuffering();
+    // hex or base64 for binary columns
+    public abstract String binaryFormat();
+    // Statement.setMaxRows. The server stops sending rows after this.
+    public abstract Optional<Integer> maxRows();
+    // Reads only committed rows instead of READ UNCOMMITTED, for results whose range is
+    // recorded and skipped later
+    @Value.Default
+    public boolean readCommitted()
+    {
+        return false;
+    }
+
+    MssqlQueryOptions withMaxRows(long maxRows)
+    {
+        return ImmutableMssqlQueryOptions.copyOf(this).withMaxRows((int) Math.min(maxRows, Integer.MAX_VALUE));
+    }
+
+    MssqlQueryOptions withReadCommitted()
+    {
+        return ImmutableMssqlQueryOptions.copyOf(this).withReadCommitted(true);
+    }
+
+    String isolationLevel()
+    {
+        return readCommitted() ? "READ COMMITTED" : "READ UNCOMMITTED";
+    }
+
+    static MssqlQueryOptions configure(Config params)
+    {
+        Optional<Integer> fetchSize = params.getOptional("fetch_size", int.class);
+        if (fetchSize.isPresent() && fetchSize.get() <= 0) {
+            throw new ConfigException("fetch_size must be a positive number: " + fetchSize.get());
+        }
+        String responseBuffering = params.get("response_buffering", String.class, ADAPTIVE_BUFFERING);
+        if (!responseBuffering.equals(ADAPTIVE_BUFFERING) && !responseBuffering.equals(FULL_BUFFERING)) {
+            throw new ConfigException("response_buffering must be either adaptive or full: " + responseBuffering);
+        }
+        String binaryFormat = params.get("binary_format", String.class, ColumnCodec.HEX_BINARY);
+        if (!binaryFormat.equals(ColumnCodec.HEX_BINARY) && !binaryFormat.equals(ColumnCodec.BASE64_BINARY)) {
+            throw new ConfigException("binary_format must be either hex or base64: " + binaryFormat);
+        }
+        return ImmutableMssqlQueryOptions.builder()
+            .fetchSize(fetchSize)
+            .responseBuffering(responseBuffering)
+            .binaryFormat(binaryFormat)
+            .build();
+    }
+
+    static MssqlQueryOptions defaults()
+    {
+        return ImmutableMssqlQueryOptions.builder()
+            .responseBuffering(ADAPTIVE_BUFFERING)
+            .binaryFormat(ColumnCodec.HEX_BINARY)
+            .build();
+    }
+}
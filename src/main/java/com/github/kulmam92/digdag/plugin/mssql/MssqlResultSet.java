@@ -1,22 +1,134 @@
 package com.github.kulmam92.digdag.plugin.mssql;
 
+import com.google.common.io.BaseEncoding;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
 import io.digdag.standards.operator.jdbc.AbstractJdbcResultSet;
+import io.digdag.standards.operator.jdbc.DatabaseException;
+import io.digdag.standards.operator.jdbc.TableReference;
 
+import java.io.IOException;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MssqlResultSet
         extends AbstractJdbcResultSet
 {
+    // AbstractJdbcResultSet doesn't expose its ResultSet
+    private final ResultSet resultSet;
+    private final ColumnCodec[] codecs;
+    private boolean fullyRead;
+
     MssqlResultSet(ResultSet resultSet)
+    {
+        this(resultSet, ColumnCodec.HEX_BINARY);
+    }
+
+    MssqlResultSet(ResultSet resultSet, String binaryFormat)
     {
         super(resultSet);
+        this.resultSet = resultSet;
+        try {
+            ResultSetMetaData metaData = resultSet.getMetaData();
+            this.codecs = new ColumnCodec[metaData.getColumnCount()];
+            for (int i = 0; i < codecs.length; i++) {
+                codecs[i] = ColumnCodec.forColumn(metaData, i + 1, binaryFormat);
+            }
+        }
+        catch (SQLException ex) {
+            throw new DatabaseException("Failed to get metadata of results", ex);
+        }
+    }
+
+    @Override
+    public List<Object> next()
+    {
+        try {
+            if (!resultSet.next()) {
+                fullyRead = true;
+                return null;
+            }
+            List<Object> values = new ArrayList<>(codecs.length);
+            for (int i = 0; i < codecs.length; i++) {
+                values.add(serializableObject(codecs[i].read(resultSet, i + 1)));
+            }
+            return values;
+        }
+        catch (SQLException ex) {
+            throw new DatabaseException("Failed to fetch next rows", ex);
+        }
+    }
+
+    @Override
+    public boolean skip()
+    {
+        try {
+            if (!resultSet.next()) {
+                fullyRead = true;
+                return false;
+            }
+            return true;
+        }
+        catch (SQLException ex) {
+            throw new DatabaseException("Failed to fetch next rows", ex);
+        }
+    }
+
+    ResultSetMetaData getMetaData()
+    {
+        try {
+            return resultSet.getMetaData();
+        }
+        catch (SQLException ex) {
+            throw new DatabaseException("Failed to get metadata of results", ex);
+        }
+    }
+
+    // Whether all rows were read. If not, the caller stopped reading in the middle.
+    boolean isFullyRead()
+    {
+        return fullyRead;
+    }
+
+    // Writes the next row to the CSV writer without building a list of values.
+    // Returns false if there are no more rows.
+    boolean writeNextRow(CsvWriter out)
+            throws IOException
+    {
+        try {
+            if (!resultSet.next()) {
+                fullyRead = true;
+                return false;
+            }
+            for (int i = 0; i < codecs.length; i++) {
+                codecs[i].write(resultSet, i + 1, out);
+            }
+            out.endRow();
+            return true;
+        }
+        catch (SQLException ex) {
+            throw new DatabaseException("Failed to fetch next rows", ex);
+        }
+    }
+
+    // Streams the rest of the rows into a table of another connection without
+    // formatting values as text
+    void copyTo(MssqlConnection destination, TableReference table, SQLServerBulkCopyOptions options)
+    {
+        destination.executeBulkCopy(table, resultSet, options);
+        fullyRead = true;
     }
 
     @Override
     protected Object serializableObject(Object raw)
     {
-        // TODO add more conversion logics here. MSSQL jdbc may return objects that are not serializable using Jackson.
+        // most types are converted by ColumnCodec. this covers values of other types
+        // that Jackson would serialize as something unreadable.
+        if (raw instanceof byte[]) {
+            return BaseEncoding.base16().encode((byte[]) raw);
+        }
         return raw;
     }
-
 }
@@ -0,0 +1,387 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.standards.operator.jdbc.NotReadOnlyException;
+import io.digdag.util.Workspace;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.Locale.ENGLISH;
+
+// download_file with partition_by option. copy_to uses the same partitions.
+//
+// Results are split into ranges of a column and each range is downloaded by its own
+// connection and thread:
+//   range: boundaries are evenly spaced between MIN and MAX of an integer column.
+//   ntile: boundaries are NTILE() quantiles of the column. Works with any orderable
+//          type and balances skewed data, but the server needs to sort the column.
+// Rows with NULL in the column go to the first partition. Boundaries of ntile are bound
+// as the type of the column, like keys of download_chunk.
+//
+// If a partition fails, the others are waited for before the error is thrown, so that
+// no thread is still writing a part file or holding a connection when it returns.
+class PartitionedDownload
+{
+    private static final String RANGE_BOUNDARIES = "range";
+    private static final String NTILE_BOUNDARIES = "ntile";
+
+    private static Logger logger = LoggerFactory.getLogger(PartitionedDownload.class);
+
+    private final String column;
+    private final int partitions;
+    private final String boundaries;
+    private final boolean merge;
+
+    private PartitionedDownload(String column, int partitions, String boundaries, boolean merge)
+    {
+        this.column = column;
+        this.partitions = partitions;
+        this.boundaries = boundaries;
+        this.merge = merge;
+    }
+
+    static PartitionedDownload configure(Config partitionBy)
+    {
+        String column = partitionBy.get("column", String.class);
+        int partitions = partitionBy.get("partitions", int.class);
+        if (partitions < 1) {
+            throw new ConfigException("partition_by.partitions must be a positive number: " + partitions);
+        }
+        String boundaries = partitionBy.get("boundaries", String.class, RANGE_BOUNDARIES);
+        if (!boundaries.equals(RANGE_BOUNDARIES) && !boundaries.equals(NTILE_BOUNDARIES)) {
+            throw new ConfigException("partition_by.boundaries must be either range or ntile: " + boundaries);
+        }
+        boolean merge = partitionBy.get("merge", boolean.class, true);
+        return new PartitionedDownload(column, partitions, boundaries, merge);
+    }
+
+    // Whether partitions are merged into a single download_file
+    boolean isMerged()
+    {
+        return merge;
+    }
+
+    // Returns names of the written files. Part files are deleted if the download fails.
+    List<String> download(MssqlConnection connection, MssqlConnectionConfig connectionConfig, MssqlQueryOptions queryOptions,
+            CsvDownload csvDownload, Workspace workspace, String query, String fileName)
+            throws NotReadOnlyException
+    {
+        return download(connection, () -> MssqlConnection.open(connectionConfig), queryOptions, csvDownload, workspace, query, fileName);
+    }
+
+    @VisibleForTesting
+    List<String> download(MssqlConnection connection, Supplier<MssqlConnection> connector, MssqlQueryOptions queryOptions,
+            CsvDownload csvDownload, Workspace workspace, String query, String fileName)
+            throws NotReadOnlyException
+    {
+        if (merge && !csvDownload.isConcatenable()) {
+            throw new ConfigException("partition_by.merge can't be used with download_compression: deflate. Use gzip or set merge: false");
+        }
+
+        List<String> partFiles = new ArrayList<>();
+        try {
+            if (!merge) {
+                // an earlier attempt may have had more partitions
+                csvDownload.deleteNumberedFiles(workspace, fileName);
+            }
+            forEachPartition(connection, connector, queryOptions, query, (partitionConnection, sql, parameters, index) -> {
+                String partFile = csvDownload.numberedFileName(fileName, index + 1);
+                synchronized (partFiles) {
+                    partFiles.add(partFile);
+                }
+                // merged output has only one header at the top of the first part
+                boolean header = !merge || index == 0;
+                partitionConnection.executeReadOnlyQuery(sql, parameters, queryOptions, (results) -> {
+                    try {
+                        csvDownload.writeResults(results, workspace, partFile, header);
+                    }
+                    catch (IOException ex) {
+                        throw Throwables.propagate(ex);
+                    }
+                });
+                logger.debug("Downloaded partition {}", partFile);
+            });
+            Collections.sort(partFiles);
+
+            if (!merge) {
+                return partFiles;
+            }
+
+            concatenate(workspace, partFiles, fileName);
+        }
+        catch (IOException | NotReadOnlyException | RuntimeException ex) {
+            // a retry writes all partitions again. don't leave parts of this attempt
+            synchronized (partFiles) {
+                deletePartFiles(workspace, partFiles);
+            }
+            Throwables.propagateIfInstanceOf(ex, NotReadOnlyException.class);
+            throw Throwables.propagate(ex);
+        }
+        return ImmutableList.of(fileName);
+    }
+
+    private static void deletePartFiles(Workspace workspace, List<String> partFiles)
+    {
+        for (String partFile : partFiles) {
+            try {
+                Files.deleteIfExists(workspace.getPath(partFile));
+            }
+            catch (IOException ex) {
+                logger.warn("Failed to delete part file {}. Ignoring.", partFile, ex);
+            }
+        }
+    }
+
+    interface PartitionAction
+    {
+        // index is 0-based. sql has '?' placeholders for parameters.
+        void run(MssqlConnection connection, String sql, List<Object> parameters, int index)
+                throws NotReadOnlyException;
+    }
+
+    // Finds boundaries of partitions and runs the action for each partition in
+    // parallel, each with its own connection
+    void forEachPartition(MssqlConnection connection, MssqlConnectionConfig connectionConfig, MssqlQueryOptions queryOptions,
+            String query, PartitionAction action)
+            throws NotReadOnlyException
+    {
+        forEachPartition(connection, () -> MssqlConnection.open(connectionConfig), queryOptions, query, action);
+    }
+
+    void forEachPartition(MssqlConnection connection, Supplier<MssqlConnection> connector, MssqlQueryOptions queryOptions,
+            String query, PartitionAction action)
+            throws NotReadOnlyException
+    {
+        String escapedColumn = connection.escapeIdent(column);
+
+        List<Object> bounds = new ArrayList<>();
+        String parameter;
+        if (boundaries.equals(RANGE_BOUNDARIES)) {
+            bounds = findRangeBoundaries(connection, queryOptions, query, escapedColumn);
+            parameter = "?";
+        }
+        else {
+            parameter = findNtileBoundaries(connection, query, escapedColumn, bounds);
+        }
+        int count = bounds.size() + 1;
+        logger.info("Reading results in {} partitions by column {}", count, column);
+
+        ExecutorService executor = Executors.newFixedThreadPool(count,
+                new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("mssql-partition-%d")
+                    .build());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String sql = buildPartitionQuery(query, escapedColumn, parameter, i, count);
+                List<Object> parameters = partitionParameters(bounds, i, count);
+                int index = i;
+                futures.add(executor.submit(() -> {
+                    try (MssqlConnection partitionConnection = connector.get()) {
+                        action.run(partitionConnection, sql, parameters, index);
+                    }
+                    return null;
+                }));
+            }
+            // wait for all partitions even after one fails
+            Exception error = null;
+            for (Future<?> future : futures) {
+                try {
+                    waitFor(future);
+                }
+                catch (NotReadOnlyException | RuntimeException ex) {
+                    if (error == null) {
+                        error = ex;
+                    }
+                    else if (error != ex) {
+                        error.addSuppressed(ex);
+                    }
+                }
+            }
+            if (error != null) {
+                Throwables.propagateIfInstanceOf(error, NotReadOnlyException.class);
+                throw Throwables.propagate(error);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void waitFor(Future<?> future)
+            throws NotReadOnlyException
+    {
+        try {
+            future.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(ex);
+        }
+        catch (ExecutionException ex) {
+            Throwables.propagateIfInstanceOf(ex.getCause(), NotReadOnlyException.class);
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
+
+    // parameter is the placeholder of a boundary
+    @VisibleForTesting
+    static String buildPartitionQuery(String query, String escapedColumn, String parameter, int index, int count)
+    {
+        String predicate;
+        if (count == 1) {
+            predicate = "1 = 1";
+        }
+        else if (index == 0) {
+            predicate = String.format(ENGLISH, "(%s <= %s OR %s IS NULL)", escapedColumn, parameter, escapedColumn);
+        }
+        else if (index == count - 1) {
+            predicate = String.format(ENGLISH, "%s > %s", escapedColumn, parameter);
+        }
+        else {
+            predicate = String.format(ENGLISH, "%s > %s AND %s <= %s", escapedColumn, parameter, escapedColumn, parameter);
+        }
+        return String.format(ENGLISH,
+                "SELECT * FROM ( \n" +
+                "%s \n" +
+                ") digdag_partition WHERE %s",
+                query, predicate);
+    }
+
+    private static List<Object> partitionParameters(List<Object> bounds, int index, int count)
+    {
+        if (count == 1) {
+            return ImmutableList.of();
+        }
+        else if (index == 0) {
+            return ImmutableList.of(bounds.get(0));
+        }
+        else if (index == count - 1) {
+            return ImmutableList.of(bounds.get(index - 1));
+        }
+        else {
+            return ImmutableList.of(bounds.get(index - 1), bounds.get(index));
+        }
+    }
+
+    // Upper bounds of the first (partitions - 1) partitions
+    private List<Object> findRangeBoundaries(MssqlConnection connection, MssqlQueryOptions queryOptions, String query, String escapedColumn)
+            throws NotReadOnlyException
+    {
+        String sql = String.format(ENGLISH,
+                "SELECT MIN(%s), MAX(%s) FROM ( \n" +
+                "%s \n" +
+                ") digdag_partition",
+                escapedColumn, escapedColumn, query);
+        List<Object> minMax = new ArrayList<>();
+        connection.executeReadOnlyQuery(sql, queryOptions, (results) -> minMax.addAll(results.next()));
+
+        if (minMax.get(0) == null) {
+            // no rows or all NULL
+            return ImmutableList.of();
+        }
+        BigInteger min = toBigInteger(minMax.get(0));
+        BigInteger max = toBigInteger(minMax.get(1));
+        BigInteger span = max.subtract(min).add(BigInteger.ONE);
+        BigInteger n = BigInteger.valueOf(partitions);
+
+        List<Object> bounds = new ArrayList<>();
+        BigInteger last = null;
+        for (int i = 1; i < partitions; i++) {
+            BigInteger bound = min.add(span.multiply(BigInteger.valueOf(i)).divide(n)).subtract(BigInteger.ONE);
+            if (bound.compareTo(min) < 0 || (last != null && bound.compareTo(last) <= 0)) {
+                // narrower range than the number of partitions
+                continue;
+            }
+            bounds.add(bound.longValueExact());
+            last = bound;
+        }
+        return bounds;
+    }
+
+    private BigInteger toBigInteger(Object value)
+    {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return BigInteger.valueOf(((Number) value).longValue());
+        }
+        throw new ConfigException(String.format(ENGLISH,
+                    "partition_by.column %s must be an integer column to use range boundaries. Use ntile boundaries instead: %s",
+                    column, value.getClass().getName()));
+    }
+
+    // Adds the boundaries to bounds as text and returns the placeholder that converts
+    // them back to the type of the column
+    private String findNtileBoundaries(MssqlConnection connection, String query, String escapedColumn, List<Object> bounds)
+            throws NotReadOnlyException
+    {
+        String sql = String.format(ENGLISH,
+                "SELECT MAX(%s) FROM ( \n" +
+                "SELECT %s, NTILE(%d) OVER (ORDER BY %s) AS digdag_tile FROM ( \n" +
+                "%s \n" +
+                ") digdag_partition WHERE %s IS NOT NULL \n" +
+                ") digdag_tiles GROUP BY digdag_tile ORDER BY digdag_tile",
+                escapedColumn, escapedColumn, partitions, escapedColumn, query, escapedColumn);
+        String[] type = new String[1];
+        // default options so that binary values are hex, which CONVERT reads back
+        connection.executeReadOnlyQuery(sql, ImmutableList.of(), MssqlQueryOptions.defaults(), (results) -> {
+            type[0] = ChunkedDownload.keyType(((MssqlResultSet) results).getMetaData(), 1, "partition_by.column " + column);
+            while (true) {
+                List<Object> values = results.next();
+                if (values == null) {
+                    break;
+                }
+                Object bound = ChunkedDownload.keyText(values.get(0));
+                // tiles can share the same value if the column has many duplicates
+                if (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(bound)) {
+                    bounds.add(bound);
+                }
+            }
+        });
+        // the last tile is covered by the open-ended last partition
+        if (!bounds.isEmpty()) {
+            bounds.remove(bounds.size() - 1);
+        }
+        return ChunkedDownload.keyParameter(type[0]);
+    }
+
+    private static void concatenate(Workspace workspace, List<String> partFiles, String fileName)
+            throws IOException
+    {
+        try (FileChannel out = FileChannel.open(workspace.getPath(fileName),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (String partFile : partFiles) {
+                Path part = workspace.getPath(partFile);
+                try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+                    long size = in.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+                Files.delete(part);
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Agent-wide cache of results of read-only queries on local disk (cache option).
+//
+// An entry is a pair of files named by the cache key:
+//   <key>.data    the downloaded file or the serialized store params
+//   <key>.created creation time of the entry as its last modified time
+// The last modified time of the data file is updated on every hit, and the least
+// recently used entries are deleted when the total size exceeds maxSize. Entries are
+// written to a temporary file and moved into place so that concurrent tasks never
+// see a partial entry.
+class ResultCache
+{
+    static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String CREATED_SUFFIX = ".created";
+
+    private static final ResultCache SHARED = new ResultCache();
+
+    private static Logger logger = LoggerFactory.getLogger(ResultCache.class);
+
+    static ResultCache shared()
+    {
+        return SHARED;
+    }
+
+    private Path directory = defaultDirectory();
+    private long maxSize = DEFAULT_MAX_SIZE;
+
+    static Path defaultDirectory()
+    {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "digdag-mssql-cache");
+    }
+
+    synchronized void configure(Path directory, long maxSize)
+    {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    // Key of results of a query. parts are anything that changes the cached output.
+    static String key(String query, String connectionKey, String... parts)
+    {
+        return Hashing.sha256().newHasher()
+            .putString(query, UTF_8)
+            .putByte((byte) 0)
+            .putString(connectionKey, UTF_8)
+            .putByte((byte) 0)
+            .putString(Joiner.on('\0').useForNull("").join(parts), UTF_8)
+            .hash()
+            .toString();
+    }
+
+    // Returns the data file of a fresh entry. The file may be evicted by another task
+    // at any time, so callers should handle NoSuchFileException as a miss.
+    synchronized Optional<Path> lookup(String key, Duration ttl)
+    {
+        Path data = directory.resolve(key + DATA_SUFFIX);
+        Path created = directory.resolve(key + CREATED_SUFFIX);
+        try {
+            if (!Files.exists(data) || !Files.exists(created)) {
+                return Optional.absent();
+            }
+            Instant expiry = Files.getLastModifiedTime(created).toInstant().plus(ttl);
+            if (Instant.now().isAfter(expiry)) {
+                return Optional.absent();
+            }
+            Files.setLastModifiedTime(data, FileTime.from(Instant.now()));
+            return Optional.of(data);
+        }
+        catch (IOException ex) {
+            logger.warn("Failed to read result cache {}. Ignoring.", data, ex);
+            return Optional.absent();
+        }
+    }
+
+    void put(String key, Path source)
+    {
+        put(key, (temp) -> Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING));
+    }
+
+    void put(String key, String content)
+    {
+        put(key, (temp) -> Files.write(temp, content.getBytes(UTF_8)));
+    }
+
+    private interface EntryWriter
+    {
+        void write(Path temp) throws IOException;
+    }
+
+    // Failures are only logged because the task itself already succeeded
+    private void put(String key, EntryWriter writer)
+    {
+        Path dir;
+        synchronized (this) {
+            dir = directory;
+        }
+        Path temp = null;
+        try {
+            Files.createDirectories(dir);
+            temp = Files.createTempFile(dir, key, ".tmp");
+            writer.write(temp);
+            Path created = dir.resolve(key + CREATED_SUFFIX);
+            synchronized (this) {
+                Files.move(temp, dir.resolve(key + DATA_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                temp = null;
+                if (!Files.exists(created)) {
+                    Files.createFile(created);
+                }
+                Files.setLastModifiedTime(created, FileTime.from(Instant.now()));
+                evict(dir);
+            }
+        }
+        catch (IOException ex) {
+            logger.warn("Failed to write result cache to {}. Ignoring.", dir, ex);
+        }
+        finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                }
+                catch (IOException ex) {
+                    logger.debug("Failed to delete {}. Ignoring.", temp, ex);
+                }
+            }
+        }
+    }
+
+    // Deletes the least recently used entries until the total size fits in maxSize
+    private void evict(Path dir)
+            throws IOException
+    {
+        List<Path> entries = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + DATA_SUFFIX)) {
+            for (Path file : files) {
+                entries.add(file);
+                total += Files.size(file);
+            }
+        }
+        if (total <= maxSize) {
+            return;
+        }
+
+        entries.sort(Comparator.comparing((Path file) -> {
+            try {
+                return Files.getLastModifiedTime(file);
+            }
+            catch (IOException ex) {
+                return FileTime.fromMillis(0);
+            }
+        }));
+        for (Path data : entries) {
+            if (total <= maxSize) {
+                break;
+            }
+            long size = Files.size(data);
+            String name = data.getFileName().toString();
+            String key = name.substring(0, name.length() - DATA_SUFFIX.length());
+            Files.deleteIfExists(data);
+            Files.deleteIfExists(dir.resolve(key + CREATED_SUFFIX));
+            total -= size;
+            logger.debug("Evicted result cache {}", key);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.standards.operator.jdbc.JdbcResultSet;
+import io.digdag.util.Workspace;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// download_file with download_split option.
+//
+// Results are written to name-00001.csv, name-00002.csv, ... with their own headers,
+// or name-00001.csv.gz, ... with download_compression. Numbered files of an earlier
+// run are deleted first so that a shorter run doesn't leave extra files behind.
+// A file is closed after the row that makes it reach max_rows or max_bytes, so a file
+// is at most one row larger than max_bytes. max_bytes counts CSV bytes before
+// download_compression.
+class SplitDownload
+{
+    private static Logger logger = LoggerFactory.getLogger(SplitDownload.class);
+
+    private final long maxRows;
+    private final long maxBytes;
+
+    SplitDownload(long maxRows, long maxBytes)
+    {
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+    }
+
+    static SplitDownload configure(Config split)
+    {
+        Optional<Long> maxRows = split.getOptional("max_rows", long.class);
+        Optional<Long> maxBytes = split.getOptional("max_bytes", long.class);
+        if (!maxRows.isPresent() && !maxBytes.isPresent()) {
+            throw new ConfigException("download_split needs max_rows or max_bytes");
+        }
+        if (maxRows.or(1L) < 1 || maxBytes.or(1L) < 1) {
+            throw new ConfigException("download_split.max_rows and max_bytes must be positive numbers");
+        }
+        return new SplitDownload(maxRows.or(Long.MAX_VALUE), maxBytes.or(Long.MAX_VALUE));
+    }
+
+    // Returns {file, rows, bytes} of the written files. bytes is the size of the file on disk.
+    List<Map<String, Object>> writeResults(JdbcResultSet results, CsvDownload csvDownload, Workspace workspace, String fileName)
+            throws IOException
+    {
+        List<String> columnNames = results.getColumnNames();
+        csvDownload.deleteNumberedFiles(workspace, fileName);
+        List<Map<String, Object>> files = new ArrayList<>();
+        SplitFile file = null;
+        try {
+            while (true) {
+                List<Object> values = results.next();
+                if (values == null) {
+                    break;
+                }
+                // the next file is opened only when there is a row for it
+                if (file == null) {
+                    file = new SplitFile(csvDownload, workspace, csvDownload.numberedFileName(fileName, files.size() + 1), columnNames);
+                }
+                file.addRow(values);
+                if (file.isFull()) {
+                    files.add(file.finish());
+                    file = null;
+                }
+            }
+            if (file == null && files.isEmpty()) {
+                // header only
+                file = new SplitFile(csvDownload, workspace, csvDownload.numberedFileName(fileName, 1), columnNames);
+            }
+            if (file != null) {
+                files.add(file.finish());
+                file = null;
+            }
+        }
+        finally {
+            if (file != null) {
+                file.abort();
+            }
+        }
+        return files;
+    }
+
+    private class SplitFile
+    {
+        private final Workspace workspace;
+        private final String fileName;
+        private final Utf8ChannelWriter utf8Writer;
+        private final CsvWriter csvWriter;
+        private long rows;
+
+        SplitFile(CsvDownload csvDownload, Workspace workspace, String fileName, List<String> columnNames)
+                throws IOException
+        {
+            this.workspace = workspace;
+            this.fileName = fileName;
+            this.utf8Writer = new Utf8ChannelWriter(csvDownload.openChannel(workspace, fileName));
+            this.csvWriter = new CsvWriter(utf8Writer);
+            csvWriter.addCsvHeader(columnNames);
+        }
+
+        void addRow(List<Object> values)
+                throws IOException
+        {
+            csvWriter.addCsvRow(values);
+            rows++;
+        }
+
+        boolean isFull()
+                throws IOException
+        {
+            if (rows >= maxRows) {
+                return true;
+            }
+            if (maxBytes == Long.MAX_VALUE) {
+                return false;
+            }
+            // a buffered char takes up to 3 bytes. count exactly only near the limit.
+            if (utf8Writer.getBytesWritten() + 3L * csvWriter.bufferedChars() < maxBytes) {
+                return false;
+            }
+            csvWriter.flushChars();
+            return utf8Writer.getBytesWritten() >= maxBytes;
+        }
+
+        Map<String, Object> finish()
+                throws IOException
+        {
+            csvWriter.close();
+            long bytes = Files.size(workspace.getPath(fileName));
+            logger.debug("Downloaded {} rows to {}", rows, fileName);
+            return ImmutableMap.of("file", fileName, "rows", rows, "bytes", bytes);
+        }
+
+        void abort()
+        {
+            try {
+                csvWriter.close();
+            }
+            catch (IOException ex) {
+                logger.debug("Failed to close {}. Ignoring.", fileName, ex);
+            }
+        }
+    }
+}
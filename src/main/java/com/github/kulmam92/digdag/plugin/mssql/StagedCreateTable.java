@@ -0,0 +1,137 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.standards.operator.jdbc.DatabaseException;
+import io.digdag.standards.operator.jdbc.TableReference;
+
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.Locale.ENGLISH;
+
+// create_table with create_table_staged option.
+//
+// The results are written into a staging table next to the target first, so the
+// target stays readable with its old rows during the load. Then the staging table is
+// renamed to the target in a short transaction that drops or renames the old table.
+// Readers wait only for the schema lock of the rename instead of the whole load.
+//
+// The staging table is named by the query id so that a retry of the same task drops
+// what a failed attempt left behind.
+class StagedCreateTable
+{
+    private static Logger logger = LoggerFactory.getLogger(StagedCreateTable.class);
+
+    private final Optional<String> keepOld;
+    private final Optional<TableLayout> layout;
+
+    private StagedCreateTable(Optional<String> keepOld, Optional<TableLayout> layout)
+    {
+        this.keepOld = keepOld;
+        this.layout = layout;
+    }
+
+    static Optional<StagedCreateTable> configure(Config params, Optional<TableLayout> layout)
+    {
+        if (!params.get("create_table_staged", boolean.class, false)) {
+            if (params.has("create_table_keep_old")) {
+                throw new ConfigException("create_table_keep_old can be used only with create_table_staged: true");
+            }
+            return Optional.absent();
+        }
+        return Optional.of(new StagedCreateTable(params.getOptional("create_table_keep_old", String.class), layout));
+    }
+
+    TableReference stagingTable(TableReference table, UUID queryId)
+    {
+        String name = String.format(ENGLISH, "%s__digdag_staging_%s",
+                table.getName(), queryId.toString().replace("-", "").substring(0, 12));
+        if (table.getSchema().isPresent()) {
+            return TableReference.of(table.getSchema().get(), name);
+        }
+        return TableReference.of(name);
+    }
+
+    // SELECT INTO the staging table. The results don't touch the target.
+    String buildLoadStatement(MssqlConnection connection, String query, TableReference staging, TableReference table)
+    {
+        String dropStaging = connection.buildDropTableStatement(staging);
+        if (layout.isPresent()) {
+            return dropStaging + " \n" + layout.get().buildCreateStatement(connection, query, staging, table);
+        }
+        return String.format(ENGLISH,
+                "%s \n" +
+                "SELECT * INTO %s \n" +
+                "FROM ( \n" +
+                "%s \n" +
+                ") t ",
+                dropStaging, connection.escapeTableReference(staging), query);
+    }
+
+    // Replaces the target with the staging table. sp_rename keeps the schema, so the
+    // old table is kept in the schema of the target.
+    String buildSwapStatement(MssqlConnection connection, TableReference staging, TableReference table)
+    {
+        String escapedStaging = connection.escapeTableReference(staging);
+        String escapedTable = connection.escapeTableReference(table);
+        StringBuilder sb = new StringBuilder();
+        sb.append("SET XACT_ABORT ON; \n");
+        sb.append("BEGIN TRANSACTION; \n");
+        if (keepOld.isPresent()) {
+            TableReference old = table.getSchema().isPresent()
+                ? TableReference.of(table.getSchema().get(), keepOld.get())
+                : TableReference.of(keepOld.get());
+            sb.append(connection.buildDropTableStatement(old)).append(" \n");
+            sb.append(String.format(ENGLISH,
+                        "IF OBJECT_ID(%s, N'U') IS NOT NULL EXEC sp_rename %s, %s; \n",
+                        literal(escapedTable), literal(escapedTable), literal(keepOld.get())));
+        }
+        else {
+            sb.append(connection.buildDropTableStatement(table)).append(" \n");
+        }
+        sb.append(String.format(ENGLISH,
+                    "EXEC sp_rename %s, %s; \n",
+                    literal(escapedStaging), literal(table.getName())));
+        sb.append("COMMIT TRANSACTION;");
+        return sb.toString();
+    }
+
+    void create(MssqlConnection connection, String query, TableReference table, UUID queryId)
+    {
+        TableReference staging = stagingTable(table, queryId);
+        try {
+            connection.executeUpdate(buildLoadStatement(connection, query, staging, table));
+            connection.executeUpdate(buildSwapStatement(connection, staging, table));
+        }
+        catch (RuntimeException ex) {
+            dropStaging(connection, staging);
+            throw ex;
+        }
+        if (keepOld.isPresent()) {
+            logger.info("Replaced {} with {}. Old table is kept as {}", table.getName(), staging.getName(), keepOld.get());
+        }
+        else {
+            logger.info("Replaced {} with {}", table.getName(), staging.getName());
+        }
+    }
+
+    private static void dropStaging(MssqlConnection connection, TableReference staging)
+    {
+        // with a strict transaction, the staging table is rolled back anyway
+        try {
+            connection.executeUpdate(connection.buildDropTableStatement(staging));
+        }
+        catch (DatabaseException ex) {
+            logger.warn("Failed to drop staging table {}. Ignoring.", staging.getName(), ex);
+        }
+    }
+
+    private static String literal(String value)
+    {
+        return "N'" + value.replace("'", "''") + "'";
+    }
+}
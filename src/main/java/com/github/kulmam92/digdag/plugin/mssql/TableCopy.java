@@ -0,0 +1,161 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+import com.microsoft.sqlserver.jdbc.SQLServerException;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.spi.SecretProvider;
+import io.digdag.standards.operator.jdbc.NotReadOnlyException;
+import io.digdag.standards.operator.jdbc.TableReference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.Locale.ENGLISH;
+
+// copy_to option.
+//
+// Results of the query are streamed from the source connection into a table of
+// another server with the bulk copy API. Rows go from the source ResultSet to the
+// destination without a file or CSV formatting, and memory is bounded by the adaptive
+// response buffering of the source. With partition_by, each range of the results is
+// copied by its own pair of connections in parallel.
+//
+// Each destination connection copies in a transaction, and the transactions are
+// committed only after every partition is copied. A failed copy leaves no rows in the
+// table, so a retry doesn't duplicate rows. The transaction log of the destination
+// keeps the whole copy until the commit.
+class TableCopy
+{
+    private static Logger logger = LoggerFactory.getLogger(TableCopy.class);
+
+    private final MssqlConnectionConfig destinationConfig;
+    private final TableReference table;
+    private final int batchSize;
+    private final boolean tableLock;
+    private final boolean truncate;
+
+    private TableCopy(MssqlConnectionConfig destinationConfig, TableReference table, int batchSize, boolean tableLock, boolean truncate)
+    {
+        this.destinationConfig = destinationConfig;
+        this.table = table;
+        this.batchSize = batchSize;
+        this.tableLock = tableLock;
+        this.truncate = truncate;
+    }
+
+    // Connection settings of the destination are the ones of the task overridden by
+    // copy_to. Secrets are read from mssql.copy_to.*, and also from mssql.* if copy_to
+    // doesn't set host, which means the same server.
+    static TableCopy configure(Config params, SecretProvider secrets)
+    {
+        Config copyTo = params.getNested("copy_to");
+        Config destinationParams = params.deepCopy().merge(copyTo);
+        SecretProvider copyToSecrets = secrets.getSecrets("copy_to");
+        SecretProvider destinationSecrets;
+        if (copyTo.has("host")) {
+            destinationSecrets = copyToSecrets;
+        }
+        else {
+            destinationSecrets = (key) -> copyToSecrets.getSecretOptional(key).or(secrets.getSecretOptional(key));
+        }
+
+        int batchSize = copyTo.get("batch_size", int.class, 10000);
+        if (batchSize < 0) {
+            throw new ConfigException("copy_to.batch_size must not be negative: " + batchSize);
+        }
+        return new TableCopy(
+                MssqlConnectionConfig.configure(destinationSecrets, destinationParams),
+                copyTo.get("table", TableReference.class),
+                batchSize,
+                copyTo.get("table_lock", boolean.class, false),
+                copyTo.get("truncate", boolean.class, false));
+    }
+
+    void copy(MssqlConnection connection, MssqlConnectionConfig connectionConfig, MssqlQueryOptions queryOptions,
+            String query, Optional<PartitionedDownload> partitions)
+            throws NotReadOnlyException
+    {
+        copy(connection, () -> MssqlConnection.open(connectionConfig), queryOptions, query, partitions,
+                () -> MssqlConnection.open(destinationConfig));
+    }
+
+    @VisibleForTesting
+    void copy(MssqlConnection connection, Supplier<MssqlConnection> sourceConnector, MssqlQueryOptions queryOptions,
+            String query, Optional<PartitionedDownload> partitions, Supplier<MssqlConnection> destinationConnector)
+            throws NotReadOnlyException
+    {
+        long startTime = System.nanoTime();
+        if (truncate) {
+            try (MssqlConnection destination = destinationConnector.get()) {
+                destination.executeUpdate("TRUNCATE TABLE " + destination.escapeTableReference(table));
+            }
+        }
+
+        List<MssqlConnection> destinations = new ArrayList<>();
+        try {
+            if (partitions.isPresent()) {
+                partitions.get().forEachPartition(connection, sourceConnector, queryOptions, query,
+                        (partitionConnection, sql, parameters, index) -> copyResults(partitionConnection, destinationConnector, destinations, queryOptions, sql, parameters));
+            }
+            else {
+                copyResults(connection, destinationConnector, destinations, queryOptions, query, ImmutableList.of());
+            }
+
+            // every partition is copied here
+            for (MssqlConnection destination : destinations) {
+                destination.executeUpdate("COMMIT TRANSACTION");
+            }
+        }
+        finally {
+            // transactions that aren't committed are rolled back by closing
+            for (MssqlConnection destination : destinations) {
+                destination.close();
+            }
+        }
+
+        logger.info("Copied results to {} on {} in {} seconds",
+                table, destinationConfig.host(), String.format(ENGLISH, "%.3f", (System.nanoTime() - startTime) / 1e9));
+    }
+
+    // Copies results in a transaction of a new destination connection, which is added
+    // to destinations to be committed later
+    private void copyResults(MssqlConnection source, Supplier<MssqlConnection> destinationConnector, List<MssqlConnection> destinations,
+            MssqlQueryOptions queryOptions, String sql, List<Object> parameters)
+            throws NotReadOnlyException
+    {
+        MssqlConnection destination = destinationConnector.get();
+        synchronized (destinations) {
+            destinations.add(destination);
+        }
+        destination.executeUpdate("BEGIN TRANSACTION");
+        SQLServerBulkCopyOptions options = bulkCopyOptions();
+        source.executeReadOnlyQuery(sql, parameters, queryOptions, (results) -> ((MssqlResultSet) results).copyTo(destination, table, options));
+    }
+
+    @VisibleForTesting
+    SQLServerBulkCopyOptions bulkCopyOptions()
+    {
+        SQLServerBulkCopyOptions options = new SQLServerBulkCopyOptions();
+        try {
+            // 0 sends all rows in one batch
+            options.setBatchSize(batchSize);
+            options.setBulkCopyTimeout(0);
+        }
+        catch (SQLServerException ex) {
+            throw new ConfigException("Invalid copy_to options", ex);
+        }
+        options.setTableLock(tableLock);
+        options.setKeepNulls(true);
+        // The driver rejects an internal transaction on a connection it doesn't own. The
+        // batches join the transaction of the destination connection instead.
+        return options;
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.standards.operator.jdbc.TableReference;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static java.util.Locale.ENGLISH;
+
+// create_table with create_table_layout option.
+//
+// SELECT INTO always writes a heap, and converting it to a clustered or columnstore
+// index afterwards rewrites all rows. Instead, an empty table is created with the
+// columns of the query, the index is built on it, and then the rows are inserted with
+// TABLOCK so that they are written once in the final form. TABLOCK allows minimally
+// logged and parallel inserts, and columnstore inserts of large batches go directly
+// into compressed rowgroups.
+//
+// The on option is a filegroup or a partition scheme with its column. They're parsed
+// and escaped as identifiers instead of being put into the statement as they are.
+class TableLayout
+{
+    private static final List<String> ROWSTORE_COMPRESSIONS = ImmutableList.of("none", "row", "page");
+    private static final List<String> COLUMNSTORE_COMPRESSIONS = ImmutableList.of("columnstore", "columnstore_archive");
+
+    // filegroup, or partition_scheme(column)
+    private static final Pattern ON = Pattern.compile("\\s*(\\w+)\\s*(?:\\(\\s*(\\w+)\\s*\\))?\\s*");
+
+    private final boolean columnstore;
+    private final List<String> key;
+    private final Optional<String> compression;
+    private final Optional<String> on;
+    private final Optional<String> partitionColumn;
+
+    private TableLayout(boolean columnstore, List<String> key, Optional<String> compression,
+            Optional<String> on, Optional<String> partitionColumn)
+    {
+        this.columnstore = columnstore;
+        this.key = key;
+        this.compression = compression;
+        this.on = on;
+        this.partitionColumn = partitionColumn;
+    }
+
+    static TableLayout configure(Config layout)
+    {
+        boolean columnstore = layout.get("columnstore", boolean.class, false);
+        List<String> key = layout.getListOrEmpty("key", String.class);
+        Optional<String> compression = layout.getOptional("compression", String.class).transform((c) -> c.toLowerCase(ENGLISH));
+        Optional<String> on = Optional.absent();
+        Optional<String> partitionColumn = Optional.absent();
+        Optional<String> onText = layout.getOptional("on", String.class);
+        if (onText.isPresent()) {
+            Matcher m = ON.matcher(onText.get());
+            if (!m.matches()) {
+                throw new ConfigException("create_table_layout.on must be a filegroup or a partition scheme with its column like ps_orders(order_date): " + onText.get());
+            }
+            on = Optional.of(m.group(1));
+            partitionColumn = Optional.fromNullable(m.group(2));
+        }
+
+        if (columnstore && !key.isEmpty()) {
+            throw new ConfigException("create_table_layout can't have both columnstore and key");
+        }
+        if (compression.isPresent()) {
+            List<String> allowed = columnstore ? COLUMNSTORE_COMPRESSIONS : ROWSTORE_COMPRESSIONS;
+            if (!allowed.contains(compression.get())) {
+                throw new ConfigException(String.format(ENGLISH,
+                            "create_table_layout.compression must be one of %s: %s", allowed, compression.get()));
+            }
+        }
+        if (on.isPresent() && !columnstore && key.isEmpty()) {
+            // the index places the table. a heap stays on the default filegroup
+            throw new ConfigException("create_table_layout.on needs columnstore or key");
+        }
+        return new TableLayout(columnstore, key, compression, on, partitionColumn);
+    }
+
+    // Statements that create the table and insert the results. The table must not exist.
+    // The index is named after target, which is different from table if the table is
+    // renamed to target later.
+    String buildCreateStatement(MssqlConnection connection, String query, TableReference table, TableReference target)
+    {
+        String escapedRef = connection.escapeTableReference(table);
+        String indexName = "cx_" + target.getName();
+        StringBuilder sb = new StringBuilder();
+        // The join keeps SELECT INTO from copying IDENTITY properties of the source,
+        // which would reject the inserted values.
+        sb.append(String.format(ENGLISH,
+                    "SELECT TOP 0 t.* INTO %s \n" +
+                    "FROM ( \n" +
+                    "%s \n" +
+                    ") t CROSS JOIN (SELECT 1 AS digdag_join) digdag_join; \n",
+                    escapedRef, query));
+
+        String dataCompression = compression.isPresent()
+            ? String.format(ENGLISH, " WITH (DATA_COMPRESSION = %s)", compression.get().toUpperCase(ENGLISH))
+            : "";
+        String placement = "";
+        if (on.isPresent()) {
+            placement = " ON " + connection.escapeIdent(on.get());
+            if (partitionColumn.isPresent()) {
+                placement += "(" + connection.escapeIdent(partitionColumn.get()) + ")";
+            }
+        }
+        if (columnstore) {
+            sb.append(String.format(ENGLISH,
+                        "CREATE CLUSTERED COLUMNSTORE INDEX %s ON %s%s%s; \n",
+                        connection.escapeIdent(indexName), escapedRef, dataCompression, placement));
+        }
+        else if (!key.isEmpty()) {
+            String columns = key.stream().map(connection::escapeIdent).collect(Collectors.joining(", "));
+            sb.append(String.format(ENGLISH,
+                        "CREATE CLUSTERED INDEX %s ON %s (%s)%s%s; \n",
+                        connection.escapeIdent(indexName), escapedRef, columns, dataCompression, placement));
+        }
+        else if (compression.isPresent()) {
+            // compression of a heap is set by rebuilding it, which is free while it's empty
+            sb.append(String.format(ENGLISH,
+                        "ALTER TABLE %s REBUILD%s; \n",
+                        escapedRef, dataCompression));
+        }
+
+        sb.append(String.format(ENGLISH,
+                    "INSERT INTO %s WITH (TABLOCK) \n" +
+                    "SELECT * FROM ( \n" +
+                    "%s \n" +
+                    ") t ",
+                    escapedRef, query));
+        return sb.toString();
+    }
+}
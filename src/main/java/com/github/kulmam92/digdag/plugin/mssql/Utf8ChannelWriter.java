@@ -0,0 +1,166 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Writer that encodes chars to UTF-8 and writes them to a channel in large chunks.
+//
+// Chars are encoded between array-backed buffers so that the JDK encoder takes its
+// array loop (which has an intrinsic ASCII fast path on recent JVMs), and the bytes are
+// collected in a large direct ByteBuffer. A FileChannel gets few large writes that NIO
+// doesn't need to copy into a temporary direct buffer, whereas Files.newBufferedWriter
+// writes every 8KB and caches a temporary direct buffer per thread.
+class Utf8ChannelWriter
+        extends Writer
+{
+    static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    private static final int STAGING_SIZE = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final ByteBuffer staging = ByteBuffer.allocate(STAGING_SIZE);
+    private final CharsetEncoder encoder = UTF_8.newEncoder()
+        // unpaired surrogates are replaced with '?' as String.getBytes does
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final char[] stringChunk = new char[STAGING_SIZE / 4];
+    // a high surrogate at the end of a write() waits for the next char
+    private char pendingHighSurrogate;
+    private long bytesWritten;
+
+    Utf8ChannelWriter(WritableByteChannel channel)
+    {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    Utf8ChannelWriter(WritableByteChannel channel, int bufferSize)
+    {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length)
+            throws IOException
+    {
+        if (length == 0) {
+            return;
+        }
+        if (pendingHighSurrogate != 0) {
+            char[] pair = new char[] {pendingHighSurrogate, chars[offset]};
+            pendingHighSurrogate = 0;
+            encode(CharBuffer.wrap(pair), false);
+            offset++;
+            length--;
+        }
+        if (length > 0 && Character.isHighSurrogate(chars[offset + length - 1])) {
+            pendingHighSurrogate = chars[offset + length - 1];
+            length--;
+        }
+        encode(CharBuffer.wrap(chars, offset, length), false);
+    }
+
+    private void encode(CharBuffer in, boolean endOfInput)
+            throws IOException
+    {
+        while (true) {
+            CoderResult result = encoder.encode(in, staging, endOfInput);
+            if (result.isOverflow()) {
+                drainStaging();
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    private void drainStaging()
+            throws IOException
+    {
+        staging.flip();
+        while (staging.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int limit = staging.limit();
+            staging.limit(staging.position() + Math.min(staging.remaining(), buffer.remaining()));
+            buffer.put(staging);
+            staging.limit(limit);
+        }
+        staging.clear();
+    }
+
+    @Override
+    public void write(String s, int offset, int length)
+            throws IOException
+    {
+        int end = offset + length;
+        while (offset < end) {
+            int n = Math.min(end - offset, stringChunk.length);
+            s.getChars(offset, offset + n, stringChunk, 0);
+            write(stringChunk, 0, n);
+            offset += n;
+        }
+    }
+
+    @Override
+    public void write(int c)
+            throws IOException
+    {
+        stringChunk[0] = (char) c;
+        write(stringChunk, 0, 1);
+    }
+
+    // Number of bytes written to the channel including buffered bytes
+    long getBytesWritten()
+    {
+        return bytesWritten + buffer.position() + staging.position();
+    }
+
+    private void flushBuffer()
+            throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void flush()
+            throws IOException
+    {
+        drainStaging();
+        flushBuffer();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        try {
+            CharBuffer rest = CharBuffer.allocate(0);
+            if (pendingHighSurrogate != 0) {
+                rest = CharBuffer.wrap(new char[] {pendingHighSurrogate});
+                pendingHighSurrogate = 0;
+            }
+            encode(rest, true);
+            while (encoder.flush(staging).isOverflow()) {
+                drainStaging();
+            }
+            flush();
+        }
+        finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BatchSplitterTest
+{
+    private static List<BatchSplitter.Batch> split(String script)
+            throws IOException
+    {
+        List<BatchSplitter.Batch> batches = new ArrayList<>();
+        try (BatchSplitter splitter = new BatchSplitter(new StringReader(script))) {
+            while (true) {
+                BatchSplitter.Batch batch = splitter.next();
+                if (batch == null) {
+                    break;
+                }
+                batches.add(batch);
+            }
+        }
+        return batches;
+    }
+
+    @Test
+    public void splitAtGoLines()
+            throws IOException
+    {
+        List<BatchSplitter.Batch> batches = split(
+                "CREATE TABLE t (id int)\n" +
+                "GO\n" +
+                "INSERT INTO t VALUES (1)\n" +
+                "  go 3  -- three times\n" +
+                "\n" +
+                "GO\n" +
+                "SELECT * FROM t");
+        assertThat(batches.size(), is(3));
+        assertThat(batches.get(0).sql(), is("CREATE TABLE t (id int)\n"));
+        assertThat(batches.get(0).count(), is(1));
+        assertThat(batches.get(0).line(), is(1));
+        assertThat(batches.get(1).sql(), is("INSERT INTO t VALUES (1)\n"));
+        assertThat(batches.get(1).count(), is(3));
+        assertThat(batches.get(1).line(), is(3));
+        assertThat(batches.get(2).sql(), is("SELECT * FROM t\n"));
+        assertThat(batches.get(2).line(), is(7));
+    }
+
+    @Test
+    public void goInStringsIdentifiersAndComments()
+            throws IOException
+    {
+        String script =
+                "SELECT 'it''s\n" +
+                "GO\n" +
+                "', [a]]\n" +
+                "GO\n" +
+                "], \"b\"\"\n" +
+                "GO\n" +
+                "\"\n" +
+                "/* outer /* inner */\n" +
+                "GO\n" +
+                "*/ -- 'not a string\n" +
+                "GO\n";
+        List<BatchSplitter.Batch> batches = split(script);
+        assertThat(batches.size(), is(1));
+        assertThat(batches.get(0).sql(), is(script.substring(0, script.length() - "GO\n".length())));
+    }
+
+    @Test
+    public void notGoLines()
+            throws IOException
+    {
+        List<BatchSplitter.Batch> batches = split(
+                "SELECT 1 AS GO\n" +
+                "GOTO label\n" +
+                "GO;\n");
+        assertThat(batches.size(), is(1));
+    }
+
+    @Test
+    public void maxBatchLength()
+            throws IOException
+    {
+        // each batch is within the limit
+        try (BatchSplitter splitter = new BatchSplitter(new StringReader("SELECT 1\nGO\nSELECT 2\n"), 9)) {
+            assertThat(splitter.next().sql(), is("SELECT 1\n"));
+            assertThat(splitter.next().sql(), is("SELECT 2\n"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void batchLongerThanMaxBatchLength()
+            throws IOException
+    {
+        try (BatchSplitter splitter = new BatchSplitter(new StringReader("SELECT 1\nSELECT 2\nGO\n"), 9)) {
+            splitter.next();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void lineLongerThanMaxBatchLength()
+            throws IOException
+    {
+        // a script without line breaks that never ends fails at the limit
+        Reader endless = new Reader()
+        {
+            @Override
+            public int read(char[] buffer, int offset, int length)
+            {
+                Arrays.fill(buffer, offset, offset + length, 'x');
+                return length;
+            }
+
+            @Override
+            public void close()
+            { }
+        };
+        try (BatchSplitter splitter = new BatchSplitter(endless, 100000)) {
+            splitter.next();
+        }
+    }
+
+    @Test
+    public void linesOverReadChunks()
+            throws IOException
+    {
+        StringBuilder line = new StringBuilder("SELECT '");
+        for (int i = 0; i < 20000; i++) {
+            line.append('a');
+        }
+        line.append("'\r\n");
+        List<BatchSplitter.Batch> batches = split(line + "GO\r\n" + line + "GO");
+        assertThat(batches.size(), is(2));
+        assertThat(batches.get(0).sql(), is(line.toString()));
+        assertThat(batches.get(1).sql(), is(line.toString()));
+        assertThat(batches.get(1).line(), is(3));
+    }
+}
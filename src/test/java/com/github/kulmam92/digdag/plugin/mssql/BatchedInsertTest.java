@@ -0,0 +1,148 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.spi.TaskExecutionException;
+import io.digdag.standards.operator.jdbc.TableReference;
+import io.digdag.standards.operator.jdbc.TransactionHelper;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static com.github.kulmam92.digdag.plugin.mssql.ConfigUtils.newConfig;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BatchedInsertTest
+{
+    private static final UUID QUERY_ID = UUID.fromString("00000000-0000-0000-0000-000000000001");
+
+    // Runs actions like a strict transaction. Slices given as completed are skipped.
+    private static class SliceTransactionHelper
+            implements TransactionHelper
+    {
+        private final List<UUID> completed = new ArrayList<>();
+        private final List<UUID> executed = new ArrayList<>();
+
+        @Override
+        public void prepare(UUID queryId)
+        { }
+
+        @Override
+        public void cleanup()
+        { }
+
+        @Override
+        public boolean lockedTransaction(UUID queryId, TransactionAction action)
+        {
+            if (completed.contains(queryId)) {
+                return false;
+            }
+            action.run();
+            executed.add(queryId);
+            completed.add(queryId);
+            return true;
+        }
+    }
+
+    private final BatchedInsert batchedInsert = BatchedInsert.configure(newConfig().set("key", "id").set("size", 2));
+    private final SliceTransactionHelper txHelper = new SliceTransactionHelper();
+    private final Config state = newConfig();
+
+    private static MssqlResultSet bound(Object upperKey, long count)
+    {
+        return FakeMssqlConnection.typedResults(ImmutableList.of("bigint", "bigint"), ImmutableList.of(Arrays.asList(upperKey, count)));
+    }
+
+    // Runs one poll of the task. Returns true if the task is polled again.
+    private boolean poll(FakeMssqlConnection connection)
+            throws Exception
+    {
+        try {
+            batchedInsert.insert(connection, txHelper, QUERY_ID, "SELECT * FROM src", TableReference.of("dest"), state);
+            return false;
+        }
+        catch (TaskExecutionException ex) {
+            assertThat(ex.getRetryInterval(), is(Optional.of(0)));
+            return true;
+        }
+    }
+
+    @Test
+    public void buildSliceQuery()
+    {
+        assertThat(BatchedInsert.buildSliceQuery("SELECT * FROM t", "[id] > ? AND [id] <= ?"),
+                is("SELECT * FROM ( \n" +
+                   "SELECT * FROM t \n" +
+                   ") digdag_slice WHERE [id] > ? AND [id] <= ?"));
+    }
+
+    @Test
+    public void insertSlicesAndNullKeys()
+            throws Exception
+    {
+        // the first poll saves the first slice without inserting
+        FakeMssqlConnection first = new FakeMssqlConnection().addResults(bound(2L, 2));
+        assertThat(poll(first), is(true));
+        assertThat(first.isolationLevels, is(ImmutableList.of("READ COMMITTED")));
+        assertThat(first.statementsContaining("INSERT").isEmpty(), is(true));
+        assertThat(state.getNested("insertBatch").get("upper_key", String.class), is("2"));
+        assertThat(state.getNested("insertBatch").get("key_type", String.class), is("bigint"));
+
+        // slice 0 up to 2. the next bound has fewer keys than size, but it isn't the end
+        FakeMssqlConnection second = new FakeMssqlConnection().addResults(bound(3L, 1));
+        assertThat(poll(second), is(true));
+        assertThat(second.statements.get(0), containsString("WHERE \"id\" <= CAST(? AS bigint)"));
+        assertThat(second.parameters.get(0), is(ImmutableList.of("2")));
+        assertThat(second.statements.get(1), containsString("WHERE \"id\" > CAST(? AS bigint) ORDER BY"));
+        assertThat(second.parameters.get(1), is(ImmutableList.of("2")));
+
+        // slice 1 resumes from last_key. no keys after it
+        FakeMssqlConnection third = new FakeMssqlConnection().addResults(bound(null, 0));
+        assertThat(poll(third), is(true));
+        assertThat(third.statements.get(0), containsString("WHERE \"id\" > CAST(? AS bigint) AND \"id\" <= CAST(? AS bigint)"));
+        assertThat(third.parameters.get(0), is(ImmutableList.of("2", "3")));
+        assertThat(state.getNested("insertBatch").has("upper_key"), is(false));
+
+        // slice 2 inserts rows with NULL keys and ends
+        FakeMssqlConnection last = new FakeMssqlConnection();
+        assertThat(poll(last), is(false));
+        assertThat(last.statements.size(), is(1));
+        assertThat(last.statements.get(0), containsString("WHERE \"id\" IS NULL"));
+        assertThat(state.has("insertBatch"), is(false));
+        assertThat(txHelper.executed.size(), is(3));
+    }
+
+    @Test
+    public void skipCompletedSlice()
+            throws Exception
+    {
+        assertThat(poll(new FakeMssqlConnection().addResults(bound(2L, 2))), is(true));
+
+        // slice 0 was committed but the state wasn't saved
+        FakeMssqlConnection connection = new FakeMssqlConnection().addResults(bound(4L, 2));
+        txHelper.completed.add(UUID.nameUUIDFromBytes((QUERY_ID + ":0").getBytes(UTF_8)));
+        assertThat(poll(connection), is(true));
+        assertThat(connection.statementsContaining("INSERT").isEmpty(), is(true));
+        assertThat(state.getNested("insertBatch").get("slice", long.class), is(1L));
+        assertThat(state.getNested("insertBatch").get("last_key", String.class), is("2"));
+        assertThat(state.getNested("insertBatch").get("upper_key", String.class), is("4"));
+    }
+
+    @Test
+    public void noRows()
+            throws Exception
+    {
+        // only the slice of NULL keys runs
+        assertThat(poll(new FakeMssqlConnection().addResults(bound(null, 0))), is(true));
+        FakeMssqlConnection connection = new FakeMssqlConnection();
+        assertThat(poll(connection), is(false));
+        assertThat(connection.statements.get(0), containsString("WHERE \"id\" IS NULL"));
+    }
+}
@@ -0,0 +1,222 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.spi.TaskExecutionException;
+import io.digdag.util.Workspace;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static com.github.kulmam92.digdag.plugin.mssql.ConfigUtils.newConfig;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ChunkedDownloadTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<String> COLUMN_NAMES = ImmutableList.of("id", "name", "text");
+
+    // header, then rows of the first chunk and the second chunk
+    private static String expected()
+            throws IOException
+    {
+        StringWriter out = new StringWriter();
+        try (CsvWriter writer = new CsvWriter(out)) {
+            writer.addCsvHeader(COLUMN_NAMES);
+            for (List<Object> row : CsvPipelineTest.rows(2)) {
+                writer.addCsvRow(row);
+            }
+            for (List<Object> row : CsvPipelineTest.rows(3)) {
+                writer.addCsvRow(row);
+            }
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void buildBoundQuery()
+    {
+        assertThat(ChunkedDownload.buildBoundQuery("SELECT * FROM t", "\"id\"", 1000, Optional.absent()),
+                is("SELECT MAX(\"id\"), COUNT_BIG(*) FROM ( \n" +
+                    "SELECT TOP (1000) \"id\" FROM ( \n" +
+                    "SELECT * FROM t \n" +
+                    ") digdag_chunk WHERE \"id\" IS NOT NULL ORDER BY \"id\" \n" +
+                    ") digdag_chunk_keys"));
+        assertThat(ChunkedDownload.buildBoundQuery("SELECT * FROM t", "\"id\"", 1000, Optional.of("CAST(? AS int)")),
+                is("SELECT MAX(\"id\"), COUNT_BIG(*) FROM ( \n" +
+                    "SELECT TOP (1000) \"id\" FROM ( \n" +
+                    "SELECT * FROM t \n" +
+                    ") digdag_chunk WHERE \"id\" > CAST(? AS int) ORDER BY \"id\" \n" +
+                    ") digdag_chunk_keys"));
+    }
+
+    @Test
+    public void appendChunks()
+            throws IOException
+    {
+        CsvDownload csvDownload = new CsvDownload(Optional.absent(), Optional.absent());
+        Workspace workspace = Workspace.ofDirectory(folder.getRoot().toPath());
+        csvDownload.writeResults(new CsvPipelineTest.ListResultSet(COLUMN_NAMES, CsvPipelineTest.rows(2)), workspace, "out.csv", true, false);
+        csvDownload.writeResults(new CsvPipelineTest.ListResultSet(COLUMN_NAMES, CsvPipelineTest.rows(3)), workspace, "out.csv", false, true);
+
+        assertThat(new String(Files.readAllBytes(folder.getRoot().toPath().resolve("out.csv")), UTF_8), is(expected()));
+    }
+
+    @Test
+    public void appendGzipMembers()
+            throws IOException
+    {
+        CsvDownload csvDownload = new CsvDownload(Optional.absent(), Optional.of(CsvDownload.GZIP_COMPRESSION));
+        Workspace workspace = Workspace.ofDirectory(folder.getRoot().toPath());
+        csvDownload.writeResults(new CsvPipelineTest.ListResultSet(COLUMN_NAMES, CsvPipelineTest.rows(2)), workspace, "out.csv.gz", true, false);
+        csvDownload.writeResults(new CsvPipelineTest.ListResultSet(COLUMN_NAMES, CsvPipelineTest.rows(3)), workspace, "out.csv.gz", false, true);
+
+        // GZIPInputStream reads concatenated members as one stream
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(folder.getRoot().toPath().resolve("out.csv.gz")))) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                decompressed.write(buffer, 0, n);
+            }
+        }
+        assertThat(new String(decompressed.toByteArray(), UTF_8), is(expected()));
+    }
+
+    @Test
+    public void keyTypes()
+    {
+        List<String> types = ImmutableList.of("int", "decimal(18, 2)", "datetime2(7)", "datetime", "varchar(50)",
+                "nvarchar(4000)", "varbinary(16)", "timestamp", "uniqueidentifier");
+        ResultSetMetaData metaData = FakeMssqlConnection.typedResults(types, ImmutableList.of()).getMetaData();
+        List<String> keyTypes = new ArrayList<>();
+        for (int i = 1; i <= types.size(); i++) {
+            keyTypes.add(ChunkedDownload.keyType(metaData, i, "key"));
+        }
+        assertThat(keyTypes, is(ImmutableList.of("int", "decimal(18, 2)", "datetime2(7)", "datetime", "varchar(50)",
+                        "nvarchar(4000)", "varbinary(16)", "binary(8)", "uniqueidentifier")));
+
+        assertThat(ChunkedDownload.keyParameter("bigint"), is("CAST(? AS bigint)"));
+        assertThat(ChunkedDownload.keyParameter("binary(8)"), is("CONVERT(binary(8), ?, 2)"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectMaxKey()
+    {
+        ChunkedDownload.keyType(FakeMssqlConnection.typedResults(ImmutableList.of("nvarchar(1073741823)"), ImmutableList.of()).getMetaData(), 1, "key");
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectFloatKey()
+    {
+        ChunkedDownload.keyType(FakeMssqlConnection.typedResults(ImmutableList.of("float"), ImmutableList.of()).getMetaData(), 1, "key");
+    }
+
+    private static FakeMssqlConnection chunk(Object upperBound, long count, List<List<Object>> rows)
+    {
+        return new FakeMssqlConnection()
+            .addResults(FakeMssqlConnection.typedResults(ImmutableList.of("decimal(10, 0)", "bigint"), ImmutableList.of(Arrays.asList(upperBound, count))))
+            .addRows(COLUMN_NAMES, rows);
+    }
+
+    @Test
+    public void downloadChunksWithTypedKeys()
+            throws Exception
+    {
+        ChunkedDownload chunked = ChunkedDownload.configure(newConfig().set("key", "id").set("rows", 2));
+        CsvDownload csvDownload = new CsvDownload(Optional.absent(), Optional.absent());
+        Workspace workspace = Workspace.ofDirectory(folder.getRoot().toPath());
+        Config state = newConfig();
+
+        // the first chunk polls the task again with the last key
+        FakeMssqlConnection first = chunk(new BigDecimal("2E+0"), 2, CsvPipelineTest.rows(2));
+        try {
+            chunked.download(first, MssqlQueryOptions.defaults(), csvDownload, workspace, "SELECT * FROM t", "out.csv", state);
+            throw new AssertionError("expected polling");
+        }
+        catch (TaskExecutionException ex) {
+            assertThat(ex.getRetryInterval(), is(Optional.of(0)));
+        }
+        assertThat(first.statements.get(1), containsString("WHERE \"id\" <= CAST(? AS decimal(10, 0))"));
+        assertThat(first.parameters.get(1), is(ImmutableList.of("2")));
+        Config progress = state.getNested("downloadChunk");
+        assertThat(progress.get("last_key", String.class), is("2"));
+        assertThat(progress.get("key_type", String.class), is("decimal(10, 0)"));
+
+        // the last chunk has fewer rows than rows
+        FakeMssqlConnection last = chunk(new BigDecimal("4"), 1, CsvPipelineTest.rows(3));
+        chunked.download(last, MssqlQueryOptions.defaults(), csvDownload, workspace, "SELECT * FROM t", "out.csv", state);
+        assertThat(last.statements.get(0), containsString("WHERE \"id\" > CAST(? AS decimal(10, 0)) ORDER BY"));
+        assertThat(last.parameters.get(0), is(ImmutableList.of("2")));
+        assertThat(last.statements.get(1), containsString("WHERE \"id\" > CAST(? AS decimal(10, 0)) AND \"id\" <= CAST(? AS decimal(10, 0))"));
+        assertThat(last.parameters.get(1), is(ImmutableList.of("2", "4")));
+        // rows with NULL keys are appended after the last chunk
+        assertThat(last.statements.get(2), containsString("WHERE \"id\" IS NULL"));
+        assertThat(state.has("downloadChunk"), is(false));
+        assertThat(new String(Files.readAllBytes(folder.getRoot().toPath().resolve("out.csv")), UTF_8), is(expected()));
+    }
+
+    @Test
+    public void downloadNullKeys()
+            throws Exception
+    {
+        ChunkedDownload chunked = ChunkedDownload.configure(newConfig().set("key", "id").set("rows", 2));
+        // every key is NULL, so there is no upper bound
+        FakeMssqlConnection connection = chunk(null, 0, CsvPipelineTest.rows(2));
+        chunked.download(connection, MssqlQueryOptions.defaults(), new CsvDownload(Optional.absent(), Optional.absent()),
+                Workspace.ofDirectory(folder.getRoot().toPath()), "SELECT * FROM t", "out.csv", newConfig());
+        assertThat(connection.statements.get(1), containsString("WHERE \"id\" IS NULL"));
+
+        StringWriter out = new StringWriter();
+        try (CsvWriter writer = new CsvWriter(out)) {
+            writer.addCsvHeader(COLUMN_NAMES);
+            for (List<Object> row : CsvPipelineTest.rows(2)) {
+                writer.addCsvRow(row);
+            }
+        }
+        assertThat(new String(Files.readAllBytes(folder.getRoot().toPath().resolve("out.csv")), UTF_8), is(out.toString()));
+    }
+
+    @Test
+    public void failIfFileIsLostOnResume()
+            throws Exception
+    {
+        ChunkedDownload chunked = ChunkedDownload.configure(newConfig().set("key", "id").set("rows", 2));
+        Config state = newConfig();
+        state.getNestedOrSetEmpty("downloadChunk")
+            .set("last_key", "2")
+            .set("key_type", "int")
+            .set("bytes", 100)
+            .set("chunks", 1);
+        FakeMssqlConnection connection = new FakeMssqlConnection();
+        try {
+            chunked.download(connection, MssqlQueryOptions.defaults(), new CsvDownload(Optional.absent(), Optional.absent()),
+                    Workspace.ofDirectory(folder.getRoot().toPath()), "SELECT * FROM t", "out.csv", state);
+            throw new AssertionError("expected TaskExecutionException");
+        }
+        catch (TaskExecutionException ex) {
+            // a failure, not polling that would start over
+            assertThat(ex.getRetryInterval().isPresent(), is(false));
+        }
+        assertThat(connection.statements.isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,160 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ColumnCodecTest
+{
+    // ResultSet of a single row that answers the getters ColumnCodec uses
+    private static ResultSet singleRow(int[] types, Object... values)
+    {
+        ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+                ColumnCodecTest.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getColumnCount":
+                        return types.length;
+                    case "getColumnType":
+                        return types[(int) args[0] - 1];
+                    case "getPrecision":
+                        return 100;
+                    case "getColumnLabel":
+                    case "getColumnName":
+                        return "c" + args[0];
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        boolean[] state = new boolean[2];  // {next called, last value was null}
+        return (ResultSet) Proxy.newProxyInstance(
+                ColumnCodecTest.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getMetaData":
+                        return metaData;
+                    case "next":
+                        boolean hasRow = !state[0];
+                        state[0] = true;
+                        return hasRow;
+                    case "wasNull":
+                        return state[1];
+                    default:
+                        Object value = values[(int) args[0] - 1];
+                        state[1] = value == null;
+                        switch (method.getName()) {
+                        case "getInt":
+                            return value == null ? 0 : ((Number) value).intValue();
+                        case "getLong":
+                            return value == null ? 0L : ((Number) value).longValue();
+                        case "getCharacterStream":
+                            return value == null ? null : new StringReader((String) value);
+                        case "getBinaryStream":
+                            return value == null ? null : new ByteArrayInputStream((byte[]) value);
+                        default:
+                            return value;
+                        }
+                    }
+                });
+    }
+
+    private static String writeCsv(MssqlResultSet results)
+            throws IOException
+    {
+        StringWriter out = new StringWriter();
+        try (CsvWriter writer = new CsvWriter(out)) {
+            while (results.writeNextRow(writer))
+                ;
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void readTypedValues()
+            throws SQLException
+    {
+        int[] types = new int[] {Types.INTEGER, Types.BIGINT, Types.DECIMAL, Types.TIMESTAMP, microsoft.sql.Types.DATETIMEOFFSET, Types.VARBINARY, Types.INTEGER};
+        Object[] values = new Object[] {1, 2L, new BigDecimal("1E+3"), "2019-01-02 03:04:05.1234567", "2019-01-02 03:04:05.1234567 -08:00", new byte[] {0x0a, (byte) 0xff}, null};
+        List<Object> row = new MssqlResultSet(singleRow(types, values)).next();
+        assertThat(row.get(0), is((Object) 1));
+        assertThat(row.get(1), is((Object) 2L));
+        assertThat(row.get(2), is((Object) new BigDecimal("1E+3")));
+        assertThat(row.get(3), is((Object) "2019-01-02T03:04:05.1234567"));
+        assertThat(row.get(4), is((Object) "2019-01-02T03:04:05.1234567-08:00"));
+        assertThat(row.get(5), is((Object) "0AFF"));
+        assertThat(row.get(6), is(nullValue()));
+    }
+
+    @Test
+    public void writeTypedValues()
+            throws IOException
+    {
+        int[] types = new int[] {Types.INTEGER, Types.BIGINT, Types.DECIMAL, Types.VARBINARY, Types.NVARCHAR, Types.BIGINT};
+        Object[] values = new Object[] {-1, Long.MAX_VALUE, new BigDecimal("1E+3"), new byte[] {0x0a, (byte) 0xff}, "a,b", null};
+        assertThat(writeCsv(new MssqlResultSet(singleRow(types, values))),
+                is("-1,9223372036854775807,1000,0AFF,\"a,b\",\r\n"));
+        assertThat(writeCsv(new MssqlResultSet(singleRow(types, values), ColumnCodec.BASE64_BINARY)),
+                is("-1,9223372036854775807,1000,Cv8=,\"a,b\",\r\n"));
+    }
+
+    @Test
+    public void isoTemporal()
+    {
+        assertThat(ColumnCodec.isoTemporal("2019-01-02"), is("2019-01-02"));
+        assertThat(ColumnCodec.isoTemporal("03:04:05.1234567"), is("03:04:05.1234567"));
+        assertThat(ColumnCodec.isoTemporal("2019-01-02 03:04:05.123"), is("2019-01-02T03:04:05.123"));
+        assertThat(ColumnCodec.isoTemporal("2019-01-02 03:04:05 +09:00"), is("2019-01-02T03:04:05+09:00"));
+    }
+
+    @Test
+    public void writeTheSameAsNext()
+            throws IOException
+    {
+        int[] types = new int[] {Types.SMALLINT, Types.NUMERIC, Types.DATE, Types.BIT};
+        Object[] values = new Object[] {7, new BigDecimal("0.10"), "2019-01-02", true};
+        List<Object> row = new MssqlResultSet(singleRow(types, values)).next();
+        StringWriter expected = new StringWriter();
+        try (CsvWriter writer = new CsvWriter(expected)) {
+            writer.addCsvRow(row);
+        }
+        assertThat(writeCsv(new MssqlResultSet(singleRow(types, values))), is(expected.toString()));
+    }
+
+    @Test
+    public void streamLobs()
+            throws IOException, SQLException
+    {
+        int[] types = new int[] {Types.LONGNVARCHAR, Types.LONGVARBINARY, Types.SQLXML, Types.LONGNVARCHAR};
+        Object[] values = new Object[] {"a\"b", new byte[] {0x0a, (byte) 0xff}, "<a/>", null};
+        assertThat(writeCsv(new MssqlResultSet(singleRow(types, values))),
+                is("\"a\"\"b\",0AFF,\"<a/>\",\r\n"));
+        List<Object> row = new MssqlResultSet(singleRow(types, values)).next();
+        assertThat(row.get(0), is((Object) "a\"b"));
+        assertThat(row.get(1), is((Object) "0AFF"));
+    }
+
+    @Test
+    public void trackWhetherFullyRead()
+    {
+        int[] types = new int[] {Types.INTEGER};
+        MssqlResultSet results = new MssqlResultSet(singleRow(types, 1));
+        results.next();
+        assertThat(results.isFullyRead(), is(false));
+        assertThat(results.skip(), is(false));
+        assertThat(results.isFullyRead(), is(true));
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.collect.ImmutableList;
+import io.digdag.spi.TaskExecutionException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ColumnarResultsTest
+{
+    @Test
+    public void convertToRows()
+    {
+        ColumnarResults results = new ColumnarResults(ImmutableList.of("id", "name", "mixed"), Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            // mixed turns from a long column into an object column at row 50
+            Object mixed = i < 50 ? (Object) (long) i : "v" + i;
+            results.add(Arrays.asList(i % 10 == 0 ? null : i, "name" + i, mixed));
+        }
+
+        List<Map<String, Object>> rows = results.toRows();
+        assertThat(rows.size(), is(100));
+        assertThat(rows.get(0).get("id"), is(nullValue()));
+        assertThat(rows.get(1).get("id"), is((Object) 1L));
+        assertThat(rows.get(99).get("name"), is((Object) "name99"));
+        assertThat(rows.get(49).get("mixed"), is((Object) 49L));
+        assertThat(rows.get(50).get("mixed"), is((Object) "v50"));
+        assertThat(ImmutableList.copyOf(rows.get(3).keySet()), is(ImmutableList.of("id", "name", "mixed")));
+    }
+
+    @Test(expected = TaskExecutionException.class)
+    public void failAtByteLimit()
+    {
+        ColumnarResults results = new ColumnarResults(ImmutableList.of("text"), 10000);
+        for (int i = 0; i < 1000; i++) {
+            results.add(Arrays.asList((Object) "0123456789012345678901234567890123456789"));
+        }
+    }
+
+    @Test
+    public void integerColumnsAreCompact()
+    {
+        ColumnarResults longs = new ColumnarResults(ImmutableList.of("id"), Long.MAX_VALUE);
+        ColumnarResults strings = new ColumnarResults(ImmutableList.of("id"), Long.MAX_VALUE);
+        for (int i = 0; i < 1000; i++) {
+            longs.add(Arrays.asList((Object) (long) i));
+            strings.add(Arrays.asList((Object) Integer.toString(i)));
+        }
+        assertThat(longs.estimatedBytes() < strings.estimatedBytes() / 4, is(true));
+    }
+}
@@ -0,0 +1,174 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.collect.ImmutableMap;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import io.digdag.client.config.ConfigException;
+import io.digdag.spi.TaskExecutionException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+public class CsvBulkRecordTest
+{
+    // Metadata of a table whose columns are named by names and typed by types
+    private static ResultSetMetaData table(String[] names, int[] types)
+    {
+        return (ResultSetMetaData) Proxy.newProxyInstance(
+                CsvBulkRecordTest.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getColumnCount":
+                        return names.length;
+                    case "getColumnName":
+                        return names[(int) args[0] - 1];
+                    case "getColumnType":
+                        return types[(int) args[0] - 1];
+                    case "getPrecision":
+                        return 18;
+                    case "getScale":
+                        return 2;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static CsvBulkRecord record(String csv, Map<String, String> columnMapping)
+            throws IOException
+    {
+        return new CsvBulkRecord(new CsvReader(new StringReader(csv)), columnMapping);
+    }
+
+    @Test
+    public void convert()
+            throws Exception
+    {
+        CsvBulkRecord record = record(
+                "id,flag,amount,ts,bin,name\n" +
+                "1,true,12.50,2019-01-02T03:04:05Z,0aff,\"\"\n" +
+                "2,0,,2019-01-02,,x\n",
+                Collections.emptyMap());
+        record.bindDestination(table(
+                    new String[] {"ID", "flag", "amount", "ts", "bin", "name"},
+                    new int[] {Types.BIGINT, Types.BIT, microsoft.sql.Types.MONEY, Types.TIMESTAMP, Types.VARBINARY, Types.NVARCHAR}));
+
+        assertThat(record.getColumnType(3), is(Types.DECIMAL));
+        assertThat(record.getPrecision(3), is(18));
+        assertThat(record.getScale(3), is(2));
+
+        assertThat(record.next(), is(true));
+        Object[] row = record.getRowData();
+        assertThat(row[0], is((Object) 1L));
+        assertThat(row[1], is((Object) Boolean.TRUE));
+        assertThat(row[2], is((Object) new BigDecimal("12.50")));
+        assertThat(row[3], is((Object) "2019-01-02 03:04:05 +00:00"));
+        assertArrayEquals((byte[]) row[4], new byte[] {0x0a, (byte) 0xff});
+        assertThat(row[5], is((Object) ""));
+
+        assertThat(record.next(), is(true));
+        row = record.getRowData();
+        assertThat(row[1], is((Object) Boolean.FALSE));
+        assertThat(row[2], is(nullValue()));
+        assertThat(row[4], is(nullValue()));
+
+        assertThat(record.next(), is(false));
+        assertThat(record.rows(), is(2L));
+    }
+
+    @Test(expected = TaskExecutionException.class)
+    public void invalidValue()
+            throws Exception
+    {
+        CsvBulkRecord record = record("id\nabc\n", Collections.emptyMap());
+        record.bindDestination(table(new String[] {"id"}, new int[] {Types.INTEGER}));
+        record.next();
+        record.getRowData();
+    }
+
+    @Test
+    public void bindDestinationByName()
+            throws Exception
+    {
+        CsvBulkRecord record = record("a,b\n", Collections.emptyMap());
+        Map<Integer, String> names = record.bindDestination(table(new String[] {"B", "A"}, new int[] {Types.INTEGER, Types.NVARCHAR}));
+        assertThat(names, is((Object) ImmutableMap.of(1, "A", 2, "B")));
+        assertThat(record.getColumnType(1), is(Types.NVARCHAR));
+        assertThat(record.getColumnType(2), is(Types.INTEGER));
+    }
+
+    @Test
+    public void bindDestinationByMapping()
+            throws Exception
+    {
+        CsvBulkRecord record = record("a,skipped,b\n", ImmutableMap.of("a", "x", "b", "y"));
+        Map<Integer, String> names = record.bindDestination(table(new String[] {"x", "y"}, new int[] {Types.INTEGER, Types.INTEGER}));
+        assertThat(names, is((Object) ImmutableMap.of(1, "x", 3, "y")));
+        assertThat(record.getColumnOrdinals().toString(), is("[1, 3]"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void bindDestinationUnknownColumn()
+            throws Exception
+    {
+        record("a,c\n", Collections.emptyMap()).bindDestination(table(new String[] {"a"}, new int[] {Types.INTEGER}));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void mappingUnknownColumn()
+            throws Exception
+    {
+        record("a\n", ImmutableMap.of("c", "a"));
+    }
+
+    @Test
+    public void columnCountMismatch()
+            throws Exception
+    {
+        CsvBulkRecord record = record("a,b\n1,2\n3\n", Collections.emptyMap());
+        record.bindDestination(table(new String[] {"a", "b"}, new int[] {Types.INTEGER, Types.INTEGER}));
+        assertThat(record.next(), is(true));
+        try {
+            record.next();
+            throw new AssertionError("expected TaskExecutionException");
+        }
+        catch (TaskExecutionException ex) {
+            // rows are numbered with the header
+            assertThat(ex.getMessage(), is("Row 3 of upload_file has 1 columns but the header has 2"));
+        }
+    }
+
+    @Test
+    public void bulkCopyOptionsAreAcceptedByDriver()
+            throws Exception
+    {
+        BulkUpload upload = BulkUpload.configure(ConfigUtils.newConfig()
+                .set("upload_file", "data.csv")
+                .set("upload_batch_size", 100));
+        try (SQLServerBulkCopy bulkCopy = new SQLServerBulkCopy(TableCopyTest.unconnectedConnection())) {
+            bulkCopy.setBulkCopyOptions(upload.bulkCopyOptions());
+        }
+    }
+
+    @Test
+    public void driverTemporal()
+    {
+        assertThat(CsvBulkRecord.driverTemporal("2019-01-02"), is("2019-01-02"));
+        assertThat(CsvBulkRecord.driverTemporal("03:04:05.1234567"), is("03:04:05.1234567"));
+        assertThat(CsvBulkRecord.driverTemporal("2019-01-02T03:04:05.1234567"), is("2019-01-02 03:04:05.1234567"));
+        assertThat(CsvBulkRecord.driverTemporal("2019-01-02T03:04:05.1234567+09:00"), is("2019-01-02 03:04:05.1234567 +09:00"));
+        assertThat(CsvBulkRecord.driverTemporal("2019-01-02 03:04:05 -05:30"), is("2019-01-02 03:04:05 -05:30"));
+        assertThat(CsvBulkRecord.driverTemporal("2019-01-02T03:04:05Z"), is("2019-01-02 03:04:05 +00:00"));
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.collect.ImmutableList;
+import io.digdag.standards.operator.jdbc.JdbcResultSet;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CsvPipelineTest
+{
+    static class ListResultSet
+            implements JdbcResultSet
+    {
+        private final List<String> columnNames;
+        private final Iterator<List<Object>> rows;
+
+        ListResultSet(List<String> columnNames, List<List<Object>> rows)
+        {
+            this.columnNames = columnNames;
+            this.rows = rows.iterator();
+        }
+
+        @Override
+        public List<String> getColumnNames()
+        {
+            return columnNames;
+        }
+
+        @Override
+        public List<Object> next()
+        {
+            return rows.hasNext() ? rows.next() : null;
+        }
+
+        @Override
+        public boolean skip()
+        {
+            return next() != null;
+        }
+    }
+
+    static List<List<Object>> rows(int count)
+    {
+        List<List<Object>> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rows.add(ImmutableList.of(i, "name, " + i, "\u65e5\u672c" + i));
+        }
+        return rows;
+    }
+
+    private static String sequential(List<String> columnNames, List<List<Object>> rows)
+            throws IOException
+    {
+        StringWriter out = new StringWriter();
+        try (CsvWriter writer = new CsvWriter(out)) {
+            writer.addCsvHeader(columnNames);
+            for (List<Object> row : rows) {
+                writer.addCsvRow(row);
+            }
+        }
+        return out.toString();
+    }
+
+    private static String pipelined(List<String> columnNames, List<List<Object>> rows, int workers, int batchRows, int queueBatches)
+            throws IOException
+    {
+        CsvPipeline pipeline = new CsvPipeline(workers, batchRows, queueBatches);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pipeline.writeResults(new ListResultSet(columnNames, rows), Channels.newChannel(out), true, false);
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    private static String pipelinedGzip(List<String> columnNames, List<List<Object>> rows, int workers, int batchRows)
+            throws IOException
+    {
+        CsvPipeline pipeline = new CsvPipeline(workers, batchRows, workers * 2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pipeline.writeResults(new ListResultSet(columnNames, rows), Channels.newChannel(out), true, true);
+
+        // GZIPInputStream reads concatenated members as one stream
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                decompressed.write(buffer, 0, n);
+            }
+        }
+        return new String(decompressed.toByteArray(), UTF_8);
+    }
+
+    @Test
+    public void writeInFetchOrder()
+            throws IOException
+    {
+        List<String> columnNames = ImmutableList.of("id", "name", "text");
+        List<List<Object>> rows = rows(10007);
+        String expected = sequential(columnNames, rows);
+        assertThat(pipelined(columnNames, rows, 4, 100, 2), is(expected));
+        assertThat(pipelined(columnNames, rows, 1, 10007, 1), is(expected));
+    }
+
+    @Test
+    public void writeGzipMembersInFetchOrder()
+            throws IOException
+    {
+        List<String> columnNames = ImmutableList.of("id", "name", "text");
+        List<List<Object>> rows = rows(10007);
+        String expected = sequential(columnNames, rows);
+        assertThat(pipelinedGzip(columnNames, rows, 3, 1000), is(expected));
+        assertThat(pipelinedGzip(columnNames, ImmutableList.of(), 2, 10), is("id,name,text\r\n"));
+    }
+
+    @Test
+    public void writeHeaderOfEmptyResults()
+            throws IOException
+    {
+        List<String> columnNames = ImmutableList.of("id");
+        assertThat(pipelined(columnNames, ImmutableList.of(), 2, 10, 2), is("id\r\n"));
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class CsvReaderTest
+{
+    private static List<List<String>> readAll(String csv, int bufferSize)
+            throws IOException
+    {
+        List<List<String>> rows = new ArrayList<>();
+        try (CsvReader reader = new CsvReader(new StringReader(csv), bufferSize)) {
+            while (true) {
+                List<String> row = reader.readRow();
+                if (row == null) {
+                    break;
+                }
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    @Test
+    public void readWhatCsvWriterWrites()
+            throws IOException
+    {
+        List<List<Object>> rows = ImmutableList.of(
+                Arrays.asList("id", "text", "note"),
+                Arrays.asList("1", "plain", null),
+                Arrays.asList("2", "a,b \"quoted\"", ""),
+                Arrays.asList("3", "multi\nline", "\u65e5\u672c"));
+        StringWriter out = new StringWriter();
+        try (CsvWriter writer = new CsvWriter(out)) {
+            for (List<Object> row : rows) {
+                writer.addCsvRow(row);
+            }
+        }
+
+        // small buffers split values and quotes across reads
+        for (int bufferSize : new int[] {1, 2, 3, 7, 64 * 1024}) {
+            assertThat(readAll(out.toString(), bufferSize), is((Object) rows));
+        }
+    }
+
+    @Test
+    public void nullAndEmpty()
+            throws IOException
+    {
+        List<List<String>> rows = readAll(",\"\",x\r\n", 16);
+        assertThat(rows.size(), is(1));
+        assertThat(rows.get(0).get(0), is(nullValue()));
+        assertThat(rows.get(0).get(1), is(""));
+        assertThat(rows.get(0).get(2), is("x"));
+    }
+
+    @Test
+    public void lastRowWithoutLineBreak()
+            throws IOException
+    {
+        assertThat(readAll("a,b\nc,d", 16), is((Object) ImmutableList.of(ImmutableList.of("a", "b"), ImmutableList.of("c", "d"))));
+        assertThat(readAll("a,\"b\"", 16), is((Object) ImmutableList.of(ImmutableList.of("a", "b"))));
+    }
+
+    @Test(expected = IOException.class)
+    public void unterminatedQuote()
+            throws IOException
+    {
+        readAll("a,\"b\r\n", 16);
+    }
+}
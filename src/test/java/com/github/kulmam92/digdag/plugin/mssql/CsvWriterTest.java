@@ -0,0 +1,143 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CsvWriterTest
+{
+    private static String writeWithBuffer(int bufferSize, Object... values)
+            throws IOException
+    {
+        StringWriter out = new StringWriter();
+        try (CsvWriter writer = new CsvWriter(out, bufferSize)) {
+            writer.addCsvRow(Arrays.asList(values));
+        }
+        return out.toString();
+    }
+
+    private static String write(Object... values)
+            throws IOException
+    {
+        return writeWithBuffer(1024, values);
+    }
+
+    @Test
+    public void writeHeader()
+            throws IOException
+    {
+        StringWriter out = new StringWriter();
+        try (CsvWriter writer = new CsvWriter(out)) {
+            writer.addCsvHeader(Arrays.asList("id", "name,full"));
+        }
+        assertThat(out.toString(), is("id,\"name,full\"\r\n"));
+    }
+
+    @Test
+    public void distinguishNullAndEmptyString()
+            throws IOException
+    {
+        assertThat(write(null, "", "a"), is(",\"\",a\r\n"));
+    }
+
+    @Test
+    public void quoteSpecialCharacters()
+            throws IOException
+    {
+        assertThat(write("a,b"), is("\"a,b\"\r\n"));
+        assertThat(write("say \"hi\""), is("\"say \"\"hi\"\"\"\r\n"));
+        assertThat(write("\""), is("\"\"\"\"\r\n"));
+    }
+
+    @Test
+    public void normalizeNewlines()
+            throws IOException
+    {
+        assertThat(write("a\r\nb"), is("\"a\nb\"\r\n"));
+        assertThat(write("a\rb"), is("\"a\nb\"\r\n"));
+        assertThat(write("a\nb"), is("\"a\nb\"\r\n"));
+    }
+
+    @Test
+    public void writeIntegers()
+            throws IOException
+    {
+        assertThat(write((Object) 0, -1, 1234567890123L, Long.MIN_VALUE, (short) 7),
+                is("0,-1,1234567890123,-9223372036854775808,7\r\n"));
+    }
+
+    @Test
+    public void writeNonStringObjects()
+            throws IOException
+    {
+        assertThat(write(1.5, true, new java.math.BigDecimal("10.00")), is("1.5,true,10.00\r\n"));
+    }
+
+    @Test
+    public void writeBigDecimalsWithoutExponent()
+            throws IOException
+    {
+        // toString() of these is 1E+3, 1.23E-7 and -0E-10
+        assertThat(write(new java.math.BigDecimal("1E+3"), new java.math.BigDecimal("1.23E-7"), new java.math.BigDecimal("-0E-10")),
+                is("1000,0.000000123,0.0000000000\r\n"));
+    }
+
+    @Test
+    public void writeValuesLongerThanBuffer()
+            throws IOException
+    {
+        String plain = Strings.repeat("abcdefghij", 20);
+        String special = Strings.repeat("abc\"defghi", 20);
+        assertThat(writeWithBuffer(32, plain, special),
+                is(plain + ",\"" + special.replace("\"", "\"\"") + "\"\r\n"));
+    }
+
+    @Test
+    public void streamLargeValues()
+            throws IOException
+    {
+        // CR LF across the boundary of read chunks
+        String large = Strings.repeat("a", 8191) + "\r\n\"" + Strings.repeat("b", 20000);
+        String expected = "\"" + Strings.repeat("a", 8191) + "\n\"\"" + Strings.repeat("b", 20000) + "\"";
+
+        StringWriter out = new StringWriter();
+        try (CsvWriter writer = new CsvWriter(out, 1024)) {
+            writer.addLong(1);
+            writer.addValue(new StringReader(large));
+            writer.addValue(new StringReader(""));
+            writer.addValue((StringReader) null);
+            writer.endRow();
+        }
+        assertThat(out.toString(), is("1," + expected + ",\"\",\r\n"));
+    }
+
+    @Test
+    public void streamBinaryValues()
+            throws IOException
+    {
+        byte[] large = new byte[20000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+
+        StringWriter out = new StringWriter();
+        try (CsvWriter writer = new CsvWriter(out, 1024)) {
+            writer.addBinary(new ByteArrayInputStream(large), BaseEncoding.base16());
+            writer.addBinary(new ByteArrayInputStream(large), BaseEncoding.base64());
+            writer.addBinary(new ByteArrayInputStream(new byte[0]), BaseEncoding.base64());
+            writer.addBinary(null, BaseEncoding.base64());
+            writer.endRow();
+        }
+        assertThat(out.toString(), is(
+                    BaseEncoding.base16().encode(large) + "," + BaseEncoding.base64().encode(large) + ",\"\",\r\n"));
+    }
+}
@@ -0,0 +1,279 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+import io.digdag.standards.operator.jdbc.DatabaseException;
+import io.digdag.standards.operator.jdbc.JdbcResultSet;
+import io.digdag.standards.operator.jdbc.TableReference;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// MssqlConnection that records statements instead of running them. Queries return the
+// queued results in order, or no rows if none are left. Updates and bulk copies fail if
+// they contain a string given to failOn. Statements of the strict transaction helper are recorded
+// too, and the status row of every query exists and isn't completed.
+class FakeMssqlConnection
+        extends MssqlConnection
+{
+    private static final Pattern TYPE = Pattern.compile("(\\w+)(?:\\((\\d+)(?:, (\\d+))?\\))?");
+    private static final List<String> FRACTIONAL_SECONDS_TYPES = ImmutableList.of("time", "datetime2", "datetimeoffset");
+    private static final Map<String, Integer> JDBC_TYPES = ImmutableMap.<String, Integer>builder()
+        .put("tinyint", Types.TINYINT)
+        .put("smallint", Types.SMALLINT)
+        .put("int", Types.INTEGER)
+        .put("bigint", Types.BIGINT)
+        .put("decimal", Types.DECIMAL)
+        .put("numeric", Types.NUMERIC)
+        .put("money", microsoft.sql.Types.MONEY)
+        .put("date", Types.DATE)
+        .put("time", Types.TIME)
+        .put("datetime", microsoft.sql.Types.DATETIME)
+        .put("datetime2", Types.TIMESTAMP)
+        .put("datetimeoffset", microsoft.sql.Types.DATETIMEOFFSET)
+        .put("char", Types.CHAR)
+        .put("varchar", Types.VARCHAR)
+        .put("nchar", Types.NCHAR)
+        .put("nvarchar", Types.NVARCHAR)
+        .put("binary", Types.BINARY)
+        .put("varbinary", Types.VARBINARY)
+        .put("timestamp", Types.BINARY)
+        .put("uniqueidentifier", microsoft.sql.Types.GUID)
+        .put("xml", Types.SQLXML)
+        .put("float", Types.DOUBLE)
+        .build();
+
+    final List<String> statements = new ArrayList<>();
+    final List<List<Object>> parameters = new ArrayList<>();
+    // isolation level of each query, in the order of the queries
+    final List<String> isolationLevels = new ArrayList<>();
+
+    private final Deque<JdbcResultSet> results = new ArrayDeque<>();
+    private final Deque<Integer> updateCounts = new ArrayDeque<>();
+    private final List<String> failures = new ArrayList<>();
+
+    FakeMssqlConnection()
+    {
+        super(statusRowConnection());
+    }
+
+    // JDBC connection that the transaction helper reads status rows from
+    private static Connection statusRowConnection()
+    {
+        ResultSet notCompleted = (ResultSet) Proxy.newProxyInstance(
+                FakeMssqlConnection.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "next":
+                    case "wasNull":
+                        return true;
+                    default:
+                        return null;
+                    }
+                });
+        Statement statement = (Statement) Proxy.newProxyInstance(
+                FakeMssqlConnection.class.getClassLoader(), new Class<?>[] {Statement.class},
+                (proxy, method, args) -> method.getName().equals("executeQuery") ? notCompleted : null);
+        return (Connection) Proxy.newProxyInstance(
+                FakeMssqlConnection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                (proxy, method, args) -> method.getName().equals("createStatement") ? statement : null);
+    }
+
+    FakeMssqlConnection addRows(List<String> columnNames, List<List<Object>> rows)
+    {
+        results.add(new CsvPipelineTest.ListResultSet(columnNames, rows));
+        return this;
+    }
+
+    FakeMssqlConnection addResults(JdbcResultSet resultSet)
+    {
+        results.add(resultSet);
+        return this;
+    }
+
+    FakeMssqlConnection addUpdateCount(int count)
+    {
+        updateCounts.add(count);
+        return this;
+    }
+
+    FakeMssqlConnection failOn(String part)
+    {
+        failures.add(part);
+        return this;
+    }
+
+    // Statements that contain part
+    List<String> statementsContaining(String part)
+    {
+        List<String> found = new ArrayList<>();
+        for (String statement : statements) {
+            if (statement.contains(part)) {
+                found.add(statement);
+            }
+        }
+        return found;
+    }
+
+    // Results whose values are read through ColumnCodec like the driver's. Types are
+    // SQL types such as int, decimal(10, 2) or varchar(20). Columns are named c1, c2, ...
+    static MssqlResultSet typedResults(List<String> types, List<? extends List<?>> rows)
+    {
+        ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+                FakeMssqlConnection.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getColumnCount")) {
+                        return types.size();
+                    }
+                    int column = (int) args[0];
+                    Matcher m = TYPE.matcher(types.get(column - 1));
+                    if (!m.matches()) {
+                        throw new IllegalArgumentException(types.get(column - 1));
+                    }
+                    switch (method.getName()) {
+                    case "getColumnType":
+                        return JDBC_TYPES.get(m.group(1));
+                    case "getColumnTypeName":
+                        return m.group(1);
+                    case "getPrecision":
+                        return m.group(2) == null ? 0 : Integer.parseInt(m.group(2));
+                    case "getScale":
+                        if (FRACTIONAL_SECONDS_TYPES.contains(m.group(1))) {
+                            // datetime2(7) has the scale of 7
+                            return m.group(2) == null ? 7 : Integer.parseInt(m.group(2));
+                        }
+                        return m.group(3) == null ? 0 : Integer.parseInt(m.group(3));
+                    case "getColumnLabel":
+                    case "getColumnName":
+                        return "c" + column;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        Iterator<? extends List<?>> iterator = rows.iterator();
+        List<?>[] current = new List<?>[1];
+        Object[] last = new Object[1];
+        ResultSet resultSet = (ResultSet) Proxy.newProxyInstance(
+                FakeMssqlConnection.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getMetaData":
+                        return metaData;
+                    case "next":
+                        if (!iterator.hasNext()) {
+                            return false;
+                        }
+                        current[0] = iterator.next();
+                        return true;
+                    case "wasNull":
+                        return last[0] == null;
+                    default:
+                        break;
+                    }
+                    Object value = current[0].get((int) args[0] - 1);
+                    last[0] = value;
+                    switch (method.getName()) {
+                    case "getInt":
+                        return value == null ? 0 : ((Number) value).intValue();
+                    case "getLong":
+                        return value == null ? 0L : ((Number) value).longValue();
+                    case "getBytes":
+                    case "getBigDecimal":
+                    case "getString":
+                    case "getObject":
+                        return value;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        return new MssqlResultSet(resultSet);
+    }
+
+    @Override
+    protected void execute(String sql)
+    {
+        record(sql, ImmutableList.of());
+    }
+
+    @Override
+    public void executeUpdate(String sql)
+    {
+        executeUpdate(sql, ImmutableList.of());
+    }
+
+    @Override
+    public int executeUpdate(String sql, List<Object> parameters)
+    {
+        record(sql, parameters);
+        for (String part : failures) {
+            if (sql.contains(part)) {
+                throw new DatabaseException("Failed to execute an update statement", new SQLException("injected failure"));
+            }
+        }
+        return updateCounts.isEmpty() ? 0 : updateCounts.poll();
+    }
+
+    // Recorded as INSERT BULK <table>, and fails like updates
+    @Override
+    public void executeBulkCopy(TableReference table, ResultSet results, SQLServerBulkCopyOptions options)
+    {
+        executeUpdate("INSERT BULK " + escapeTableReference(table), ImmutableList.of());
+    }
+
+    @Override
+    public void executeReadOnlyQuery(String sql, Consumer<JdbcResultSet> resultHandler)
+    {
+        executeReadOnlyQuery(sql, ImmutableList.of(), MssqlQueryOptions.defaults(), resultHandler);
+    }
+
+    @Override
+    public void executeReadOnlyQuery(String sql, MssqlQueryOptions options, Consumer<JdbcResultSet> resultHandler)
+    {
+        executeReadOnlyQuery(sql, ImmutableList.of(), options, resultHandler);
+    }
+
+    @Override
+    public void executeReadOnlyQuery(String sql, List<Object> parameters, MssqlQueryOptions options, Consumer<JdbcResultSet> resultHandler)
+    {
+        query(sql, parameters, options.isolationLevel(), resultHandler);
+    }
+
+    @Override
+    public void executeCommittedQuery(String sql, List<Object> parameters, Consumer<JdbcResultSet> resultHandler)
+    {
+        query(sql, parameters, "READ COMMITTED", resultHandler);
+    }
+
+    private void query(String sql, List<Object> parameters, String isolationLevel, Consumer<JdbcResultSet> resultHandler)
+    {
+        record(sql, parameters);
+        isolationLevels.add(isolationLevel);
+        JdbcResultSet next = results.poll();
+        resultHandler.accept(next != null ? next : new CsvPipelineTest.ListResultSet(ImmutableList.of(), ImmutableList.of()));
+    }
+
+    private void record(String sql, List<Object> parameters)
+    {
+        statements.add(sql);
+        this.parameters.add(new ArrayList<>(parameters));
+    }
+
+    @Override
+    public void close()
+    { }
+}
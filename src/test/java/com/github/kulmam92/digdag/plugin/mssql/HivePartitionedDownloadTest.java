@@ -0,0 +1,102 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.util.Workspace;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HivePartitionedDownloadTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<String> COLUMN_NAMES = ImmutableList.of("day", "id");
+
+    private List<Map<String, Object>> download(int maxOpenFiles, List<List<Object>> rows)
+            throws IOException
+    {
+        CsvDownload csvDownload = new CsvDownload(Optional.absent(), Optional.absent());
+        Workspace workspace = Workspace.ofDirectory(folder.getRoot().toPath());
+        return new HivePartitionedDownload("day", maxOpenFiles)
+            .writeResults(new CsvPipelineTest.ListResultSet(COLUMN_NAMES, rows), csvDownload, workspace, "out");
+    }
+
+    private String read(String fileName)
+            throws IOException
+    {
+        return new String(Files.readAllBytes(folder.getRoot().toPath().resolve(fileName)), UTF_8);
+    }
+
+    private static List<Object> row(Object day, int id)
+    {
+        return Arrays.asList(day, id);
+    }
+
+    @Test
+    public void routeRowsByValue()
+            throws IOException
+    {
+        List<Map<String, Object>> files = download(8, ImmutableList.of(
+                    row("2019-01-01", 1),
+                    row("2019-01-02", 2),
+                    row("2019-01-01", 3),
+                    row(null, 4)));
+        assertThat(files.size(), is(3));
+        assertThat(read("out/day=2019-01-01/part-00001.csv"), is("id\r\n1\r\n3\r\n"));
+        assertThat(read("out/day=2019-01-02/part-00001.csv"), is("id\r\n2\r\n"));
+        assertThat(read("out/day=__HIVE_DEFAULT_PARTITION__/part-00001.csv"), is("id\r\n4\r\n"));
+    }
+
+    @Test
+    public void closeLeastRecentlyUsedFile()
+            throws IOException
+    {
+        List<Map<String, Object>> files = download(2, ImmutableList.of(
+                    row("a", 1),
+                    row("b", 2),
+                    row("a", 3),
+                    row("c", 4),  // closes b
+                    row("b", 5),  // closes a
+                    row("a", 6)));
+        assertThat(files.size(), is(5));
+        assertThat(read("out/day=a/part-00001.csv"), is("id\r\n1\r\n3\r\n"));
+        assertThat(read("out/day=a/part-00002.csv"), is("id\r\n6\r\n"));
+        assertThat(read("out/day=b/part-00001.csv"), is("id\r\n2\r\n"));
+        assertThat(read("out/day=b/part-00002.csv"), is("id\r\n5\r\n"));
+        assertThat(read("out/day=c/part-00001.csv"), is("id\r\n4\r\n"));
+    }
+
+    @Test
+    public void deletePartsOfEarlierAttempt()
+            throws IOException
+    {
+        download(1, ImmutableList.of(row("a", 1), row("b", 2), row("a", 3)));
+        Path stale = folder.getRoot().toPath().resolve("out/day=a/part-00002.csv");
+        assertThat(Files.exists(stale), is(true));
+
+        download(8, ImmutableList.of(row("a", 1), row("b", 2), row("a", 3)));
+        assertThat(Files.exists(stale), is(false));
+        assertThat(read("out/day=a/part-00001.csv"), is("id\r\n1\r\n3\r\n"));
+    }
+
+    @Test
+    public void escapePathName()
+    {
+        assertThat(HivePartitionedDownload.escapePathName("2019-01-01"), is("2019-01-01"));
+        assertThat(HivePartitionedDownload.escapePathName("a/b=c"), is("a%2Fb%3Dc"));
+        assertThat(HivePartitionedDownload.escapePathName("12:00%"), is("12%3A00%25"));
+    }
+}
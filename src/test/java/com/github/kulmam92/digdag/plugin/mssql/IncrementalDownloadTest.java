@@ -0,0 +1,169 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.ConfigException;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import static com.github.kulmam92.digdag.plugin.mssql.ConfigUtils.newConfig;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class IncrementalDownloadTest
+{
+    @Test
+    public void castTextMarks()
+    {
+        assertThat(IncrementalDownload.literal("12345", "bigint"), is("CAST(N'12345' AS bigint)"));
+        assertThat(IncrementalDownload.literal("2019-01-02T03:04:05.1234567", "datetime2(7)"),
+                is("CAST(N'2019-01-02T03:04:05.1234567' AS datetime2(7))"));
+    }
+
+    @Test
+    public void convertHexMarks()
+    {
+        assertThat(IncrementalDownload.literal("00000000000007D1", IncrementalDownload.ROWVERSION_TYPE),
+                is("CONVERT(binary(8), N'00000000000007D1', 2)"));
+        assertThat(IncrementalDownload.literal("0A0B", IncrementalDownload.BINARY_TYPE),
+                is("CONVERT(varbinary(8000), N'0A0B', 2)"));
+    }
+
+    @Test
+    public void escapeQuotes()
+    {
+        assertThat(IncrementalDownload.literal("1' OR '1' = '1", "bigint"), is("CAST(N'1'' OR ''1'' = ''1' AS bigint)"));
+    }
+
+    @Test
+    public void wrapQuery()
+    {
+        assertThat(IncrementalDownload.buildQuery("SELECT * FROM orders", "\"id\" > 1"),
+                is("SELECT * FROM ( \nSELECT * FROM orders \n) digdag_incremental WHERE \"id\" > 1"));
+    }
+
+    private static IncrementalDownload incremental()
+    {
+        return IncrementalDownload.configure(newConfig().set("column", "id").set("name", "orders").set("table", "__digdag_watermarks"), null);
+    }
+
+    private static FakeMssqlConnection connection(Optional<String> lastMark, MssqlResultSet max)
+    {
+        FakeMssqlConnection connection = new FakeMssqlConnection();
+        if (lastMark.isPresent()) {
+            connection.addRows(ImmutableList.of("watermark", "sql_type"), ImmutableList.of(ImmutableList.of(lastMark.get(), "bigint")));
+        }
+        else {
+            connection.addRows(ImmutableList.of("watermark", "sql_type"), ImmutableList.of());
+        }
+        return connection.addResults(max);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void nameIsRequiredWithTable()
+    {
+        IncrementalDownload.configure(newConfig().set("column", "id").set("table", "__digdag_watermarks"), null);
+    }
+
+    @Test
+    public void nothingIsWrittenWithoutTable()
+            throws Exception
+    {
+        IncrementalDownload incremental = IncrementalDownload.configure(newConfig().set("column", "id").set("start", "50"), null);
+        FakeMssqlConnection connection = new FakeMssqlConnection()
+            .addResults(FakeMssqlConnection.typedResults(ImmutableList.of("bigint"), ImmutableList.of(ImmutableList.of(100L))));
+        assertThat(incremental.prepare(connection, "SELECT * FROM orders"),
+                endsWith("WHERE \"id\" > CAST(N'50' AS bigint) AND \"id\" <= CAST(N'100' AS bigint)"));
+        incremental.commit(connection);
+        // only the MAX query runs, so read-only logins and replicas work
+        assertThat(connection.statements.size(), is(1));
+        assertThat(connection.isolationLevels, is(ImmutableList.of("READ COMMITTED")));
+        assertThat(incremental.newWatermarkValue(), is(Optional.of("100")));
+    }
+
+    @Test
+    public void noRowsKeepStartWithoutTable()
+            throws Exception
+    {
+        IncrementalDownload incremental = IncrementalDownload.configure(newConfig().set("column", "id").set("start", "50"), null);
+        FakeMssqlConnection connection = new FakeMssqlConnection()
+            .addResults(FakeMssqlConnection.typedResults(ImmutableList.of("bigint"), ImmutableList.of(Arrays.asList((Object) null))));
+        assertThat(incremental.prepare(connection, "SELECT * FROM orders"), endsWith("WHERE 1 = 0"));
+        assertThat(incremental.newWatermarkValue(), is(Optional.of("50")));
+    }
+
+    @Test
+    public void readRangeAtReadCommitted()
+    {
+        assertThat(MssqlQueryOptions.defaults().isolationLevel(), is("READ UNCOMMITTED"));
+        assertThat(MssqlQueryOptions.defaults().withReadCommitted().isolationLevel(), is("READ COMMITTED"));
+    }
+
+    @Test
+    public void firstRunDownloadsUpToNewMark()
+            throws Exception
+    {
+        IncrementalDownload incremental = incremental();
+        FakeMssqlConnection connection = connection(Optional.absent(), FakeMssqlConnection.typedResults(ImmutableList.of("int"), ImmutableList.of(ImmutableList.of(100))));
+        assertThat(incremental.prepare(connection, "SELECT * FROM orders"), endsWith("WHERE \"id\" <= CAST(N'100' AS bigint)"));
+        // marks are read from committed rows only
+        assertThat(connection.isolationLevels, is(ImmutableList.of("READ COMMITTED", "READ COMMITTED")));
+
+        incremental.commit(connection);
+        assertThat(connection.statementsContaining("MERGE").size(), is(1));
+        assertThat(connection.parameters.get(connection.parameters.size() - 1), is(ImmutableList.of("orders", "100", "bigint")));
+        assertThat(incremental.newWatermarkValue(), is(Optional.of("100")));
+    }
+
+    @Test
+    public void nextRunDownloadsAboveLastMark()
+            throws Exception
+    {
+        IncrementalDownload incremental = incremental();
+        FakeMssqlConnection connection = connection(Optional.of("50"), FakeMssqlConnection.typedResults(ImmutableList.of("bigint"), ImmutableList.of(ImmutableList.of(100L))));
+        assertThat(incremental.prepare(connection, "SELECT * FROM orders"),
+                endsWith("WHERE \"id\" > CAST(N'50' AS bigint) AND \"id\" <= CAST(N'100' AS bigint)"));
+        incremental.commit(connection);
+        assertThat(connection.parameters.get(connection.parameters.size() - 1), is(ImmutableList.of("orders", "100", "bigint")));
+    }
+
+    @Test
+    public void unchangedMarkIsNotUpdated()
+            throws Exception
+    {
+        IncrementalDownload incremental = incremental();
+        FakeMssqlConnection connection = connection(Optional.of("100"), FakeMssqlConnection.typedResults(ImmutableList.of("bigint"), ImmutableList.of(ImmutableList.of(100L))));
+        incremental.prepare(connection, "SELECT * FROM orders");
+        incremental.commit(connection);
+        assertThat(connection.statementsContaining("MERGE").isEmpty(), is(true));
+    }
+
+    @Test
+    public void noRowsKeepLastMark()
+            throws Exception
+    {
+        IncrementalDownload incremental = incremental();
+        FakeMssqlConnection connection = connection(Optional.of("50"), FakeMssqlConnection.typedResults(ImmutableList.of("bigint"), ImmutableList.of(Arrays.asList((Object) null))));
+        assertThat(incremental.prepare(connection, "SELECT * FROM orders"), endsWith("WHERE 1 = 0"));
+        incremental.commit(connection);
+        assertThat(connection.statementsContaining("MERGE").isEmpty(), is(true));
+        assertThat(incremental.newWatermarkValue(), is(Optional.of("50")));
+    }
+
+    @Test
+    public void decimalMarkWithoutExponent()
+            throws Exception
+    {
+        assertThat(IncrementalDownload.markText(new BigDecimal("1E+3")), is("1000"));
+        assertThat(IncrementalDownload.markText(new BigDecimal("0.0000001")), is("0.0000001"));
+        assertThat(IncrementalDownload.markText(12L), is("12"));
+
+        IncrementalDownload incremental = IncrementalDownload.configure(newConfig().set("column", "amount"), null);
+        FakeMssqlConnection connection = new FakeMssqlConnection()
+            .addResults(FakeMssqlConnection.typedResults(ImmutableList.of("decimal(10, 0)"), ImmutableList.of(ImmutableList.of(new BigDecimal("1E+3")))));
+        assertThat(incremental.prepare(connection, "SELECT * FROM orders"), endsWith("WHERE \"amount\" <= CAST(N'1000' AS decimal(38, 0))"));
+    }
+}
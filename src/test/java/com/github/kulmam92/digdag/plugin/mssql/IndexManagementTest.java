@@ -0,0 +1,181 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.spi.TaskExecutionException;
+import io.digdag.standards.operator.jdbc.DatabaseException;
+import io.digdag.standards.operator.jdbc.TableReference;
+import io.digdag.standards.operator.jdbc.TransactionHelper;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static com.github.kulmam92.digdag.plugin.mssql.ConfigUtils.newConfig;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class IndexManagementTest
+{
+    private static final TableReference TABLE = TableReference.of("dbo", "orders");
+
+    private final IndexManagement indexManagement = IndexManagement.configure(newConfig());
+    private final Config state = newConfig();
+
+    private static FakeMssqlConnection withIndexes(String... names)
+    {
+        ImmutableList.Builder<List<Object>> rows = ImmutableList.builder();
+        for (String name : names) {
+            rows.add(ImmutableList.of(name));
+        }
+        return new FakeMssqlConnection().addRows(ImmutableList.of("name"), rows.build());
+    }
+
+    @Test
+    public void buildStatements()
+    {
+        MssqlConnection connection = new FakeMssqlConnection();
+        assertThat(IndexManagement.buildDisableStatement(connection, "\"t\"", "ix_a"), is("ALTER INDEX \"ix_a\" ON \"t\" DISABLE"));
+        assertThat(indexManagement.buildRebuildStatement(connection, "\"t\"", "ix_a"), is("ALTER INDEX \"ix_a\" ON \"t\" REBUILD"));
+        assertThat(IndexManagement.configure(newConfig().set("online", true).set("maxdop", 4)).buildRebuildStatement(connection, "\"t\"", "ix_a"),
+                is("ALTER INDEX \"ix_a\" ON \"t\" REBUILD WITH (ONLINE = ON, MAXDOP = 4)"));
+    }
+
+    @Test
+    public void updateStatisticsWithColumnsAfterRebuild()
+    {
+        assertThat(IndexManagement.buildUpdateStatisticsStatement("\"t\"", true), is("UPDATE STATISTICS \"t\" WITH COLUMNS"));
+        // without rebuilt indexes, index statistics need the update too
+        assertThat(IndexManagement.buildUpdateStatisticsStatement("\"t\"", false), is("UPDATE STATISTICS \"t\""));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void negativeMaxdop()
+    {
+        IndexManagement.configure(newConfig().set("maxdop", -1));
+    }
+
+    @Test
+    public void saveDisabledIndexesAndRebuild()
+            throws Exception
+    {
+        FakeMssqlConnection connection = withIndexes("ix_a", "ix_b");
+        try {
+            indexManagement.disable(connection, TABLE, state);
+            throw new AssertionError("expected polling");
+        }
+        catch (TaskExecutionException ex) {
+            assertThat(ex.getRetryInterval(), is(Optional.of(0)));
+        }
+        assertThat(connection.parameters.get(0), is(ImmutableList.of("\"dbo\".\"orders\"")));
+        assertThat(connection.statementsContaining("DISABLE").size(), is(2));
+        assertThat(state.getNested("indexManagement").getList("disabled", String.class), is(ImmutableList.of("ix_a", "ix_b")));
+
+        // the next run doesn't disable again
+        FakeMssqlConnection next = new FakeMssqlConnection();
+        indexManagement.disable(next, TABLE, state);
+        assertThat(next.statements.isEmpty(), is(true));
+
+        indexManagement.rebuild(next, TABLE, state);
+        assertThat(next.statements, is(ImmutableList.of(
+                        "ALTER INDEX \"ix_a\" ON \"dbo\".\"orders\" REBUILD",
+                        "ALTER INDEX \"ix_b\" ON \"dbo\".\"orders\" REBUILD",
+                        "UPDATE STATISTICS \"dbo\".\"orders\" WITH COLUMNS")));
+        assertThat(state.has("indexManagement"), is(false));
+    }
+
+    @Test
+    public void rebuildAfterFailedLoad()
+    {
+        // the load failed, or the agent stopped during it, after the names were saved
+        state.getNestedOrSetEmpty("indexManagement").set("disabled", ImmutableList.of("ix_a", "ix_b"));
+
+        // one index fails to rebuild. the others are rebuilt and the names are kept
+        FakeMssqlConnection connection = new FakeMssqlConnection().failOn("\"ix_a\"");
+        try {
+            indexManagement.rebuild(connection, TABLE, state);
+            throw new AssertionError("expected DatabaseException");
+        }
+        catch (DatabaseException ex) {
+            assertThat(ex.getCause().getMessage(), is("injected failure"));
+        }
+        assertThat(connection.statementsContaining("REBUILD").size(), is(2));
+        assertThat(connection.statementsContaining("UPDATE STATISTICS").isEmpty(), is(true));
+        assertThat(state.has("indexManagement"), is(true));
+
+        // a retry rebuilds them
+        FakeMssqlConnection retry = new FakeMssqlConnection();
+        indexManagement.rebuild(retry, TABLE, state);
+        assertThat(retry.statementsContaining("REBUILD").size(), is(2));
+        assertThat(state.has("indexManagement"), is(false));
+    }
+
+    @Test
+    public void rollbackPartialDisable()
+            throws Exception
+    {
+        FakeMssqlConnection connection = withIndexes("ix_a", "ix_b", "ix_c").failOn("\"ix_b\" ON \"dbo\".\"orders\" DISABLE");
+        try {
+            indexManagement.disable(connection, TABLE, state);
+            throw new AssertionError("expected DatabaseException");
+        }
+        catch (DatabaseException ex) {
+            assertThat(ex.getCause().getMessage(), is("injected failure"));
+        }
+        // only the disabled one is rebuilt, and nothing is left in the state
+        assertThat(connection.statementsContaining("DISABLE").size(), is(2));
+        assertThat(connection.statementsContaining("REBUILD"), is(ImmutableList.of("ALTER INDEX \"ix_a\" ON \"dbo\".\"orders\" REBUILD")));
+        assertThat(connection.statementsContaining("ix_c").isEmpty(), is(true));
+        assertThat(state.has("indexManagement"), is(false));
+    }
+
+    @Test
+    public void noIndexes()
+            throws Exception
+    {
+        try {
+            indexManagement.disable(withIndexes(), TABLE, state);
+            throw new AssertionError("expected polling");
+        }
+        catch (TaskExecutionException ex) {
+            assertThat(ex.getRetryInterval(), is(Optional.of(0)));
+        }
+        FakeMssqlConnection connection = new FakeMssqlConnection();
+        indexManagement.rebuild(connection, TABLE, state);
+        assertThat(connection.statements, is(ImmutableList.of("UPDATE STATISTICS \"dbo\".\"orders\"")));
+    }
+
+    @Test
+    public void rebuildOutsideTransactionOfFailedLoad()
+            throws Exception
+    {
+        state.getNestedOrSetEmpty("indexManagement").set("disabled", ImmutableList.of("ix_a"));
+        FakeMssqlConnection connection = new FakeMssqlConnection();
+        TransactionHelper txHelper = connection.getStrictTransactionHelper(null, "__digdag_status", Duration.ofDays(1));
+        try {
+            txHelper.lockedTransaction(UUID.randomUUID(), () -> {
+                connection.executeUpdate("INSERT INTO \"dbo\".\"orders\" SELECT * FROM src");
+                throw new DatabaseException("Failed to execute an update statement", new SQLException("load failed"));
+            });
+            throw new AssertionError("expected DatabaseException");
+        }
+        catch (DatabaseException ex) {
+            indexManagement.rebuildAfterFailure(connection, TABLE, state);
+        }
+
+        List<String> statements = connection.statements;
+        assertThat(statements.get(0), is("BEGIN TRANSACTION"));
+        assertThat(statements.get(1), is("INSERT INTO \"dbo\".\"orders\" SELECT * FROM src"));
+        // the load is rolled back before the rebuild, so the rebuild is committed by itself
+        assertThat(statements.subList(2, statements.size()), is(ImmutableList.of(
+                        "IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION",
+                        "IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION",
+                        "ALTER INDEX \"ix_a\" ON \"dbo\".\"orders\" REBUILD",
+                        "UPDATE STATISTICS \"dbo\".\"orders\" WITH COLUMNS")));
+        assertThat(state.has("indexManagement"), is(false));
+    }
+}
@@ -0,0 +1,186 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.digdag.client.config.ConfigException;
+import io.digdag.spi.TaskExecutionException;
+import io.digdag.standards.operator.jdbc.TableReference;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static com.github.kulmam92.digdag.plugin.mssql.ConfigUtils.newConfig;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class MergeIntoTest
+{
+    private static final UUID QUERY_ID = UUID.fromString("0123abcd-4567-89ef-0123-456789abcdef");
+
+    private final FakeMssqlConnection connection = new FakeMssqlConnection();
+
+    private static MergeInto mergeInto(boolean delete, String... keys)
+    {
+        return MergeInto.configure(newConfig()
+                .set("table", "dbo.orders")
+                .set("keys", ImmutableList.copyOf(keys))
+                .set("delete", delete));
+    }
+
+    // Queues the columns of the staging table and the IDENTITY columns of the target
+    private FakeMssqlConnection tables(List<String> columns, List<String> identityColumns)
+    {
+        connection.addRows(columns, ImmutableList.of());
+        ImmutableList.Builder<List<Object>> rows = ImmutableList.builder();
+        for (String column : identityColumns) {
+            rows.add(ImmutableList.of(column));
+        }
+        return connection.addRows(ImmutableList.of("name"), rows.build());
+    }
+
+    @Test
+    public void stagingTable()
+    {
+        TableReference staging = mergeInto(false, "id").stagingTable(QUERY_ID);
+        assertThat(staging.getSchema(), is(Optional.of("dbo")));
+        assertThat(staging.getName(), is("orders__digdag_merge_0123abcd4567"));
+
+        staging = MergeInto.configure(newConfig().set("table", "orders").set("keys", ImmutableList.of("id"))).stagingTable(QUERY_ID);
+        assertThat(staging.getSchema(), is(Optional.absent()));
+        assertThat(staging.getName(), is("orders__digdag_merge_0123abcd4567"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void keysAreRequired()
+    {
+        mergeInto(false);
+    }
+
+    @Test
+    public void buildUpdateStatement()
+    {
+        assertThat(MergeInto.buildUpdateStatement(connection, "\"t1\"", "\"s1\"", ImmutableList.of("id", "day"), ImmutableList.of("name", "amount")),
+                is("UPDATE t SET \"name\" = s.\"name\", \"amount\" = s.\"amount\" \n" +
+                   "FROM \"t1\" t JOIN \"s1\" s ON t.\"id\" = s.\"id\" AND t.\"day\" = s.\"day\" \n" +
+                   "WHERE EXISTS (SELECT s.\"name\", s.\"amount\" EXCEPT SELECT t.\"name\", t.\"amount\")"));
+    }
+
+    @Test
+    public void buildInsertStatement()
+    {
+        assertThat(MergeInto.buildInsertStatement(connection, "\"t1\"", "\"s1\"", ImmutableList.of("id"), ImmutableList.of("id", "name")),
+                is("INSERT INTO \"t1\" (\"id\", \"name\") \n" +
+                   "SELECT s.\"id\", s.\"name\" FROM \"s1\" s \n" +
+                   "WHERE NOT EXISTS (SELECT 1 FROM \"t1\" t WHERE t.\"id\" = s.\"id\")"));
+    }
+
+    @Test
+    public void buildDeleteStatement()
+    {
+        assertThat(MergeInto.buildDeleteStatement(connection, "\"t1\"", "\"s1\"", ImmutableList.of("id")),
+                is("DELETE t FROM \"t1\" t \n" +
+                   "WHERE NOT EXISTS (SELECT 1 FROM \"s1\" s WHERE t.\"id\" = s.\"id\")"));
+    }
+
+    @Test
+    public void merge()
+    {
+        tables(ImmutableList.of("ID", "name"), ImmutableList.of());
+        connection.addRows(ImmutableList.of("id"), ImmutableList.of());
+        // the staging table, the index, then UPDATE, INSERT and DELETE
+        connection.addUpdateCount(0).addUpdateCount(0).addUpdateCount(2).addUpdateCount(3).addUpdateCount(1);
+
+        Map<String, Object> result = mergeInto(true, "id").merge(connection, QUERY_ID, "SELECT * FROM src", Optional.absent(), null);
+        assertThat(result, is((Object) ImmutableMap.of("inserted", 3, "updated", 2, "deleted", 1)));
+
+        assertThat(connection.statements.get(0), containsString("SELECT * INTO \"dbo\".\"orders__digdag_merge_0123abcd4567\""));
+        assertThat(connection.parameters.get(2), is(ImmutableList.of("\"dbo\".\"orders\"")));
+        assertThat(connection.statementsContaining("CREATE CLUSTERED INDEX").get(0), containsString("(\"id\")"));
+        assertThat(connection.statementsContaining("GROUP BY \"id\" HAVING COUNT(*) > 1").size(), is(1));
+        assertThat(connection.statementsContaining("UPDATE t SET \"name\" = s.\"name\" ").size(), is(1));
+        assertThat(connection.statementsContaining("INSERT INTO \"dbo\".\"orders\" (\"ID\", \"name\")").size(), is(1));
+        assertThat(connection.statementsContaining("DELETE t FROM").size(), is(1));
+        // the staging table is dropped at the end
+        assertThat(connection.statements.get(connection.statements.size() - 1), containsString("DROP TABLE"));
+    }
+
+    @Test
+    public void skipIdentityColumns()
+    {
+        tables(ImmutableList.of("row_id", "code", "name"), ImmutableList.of("row_id"));
+
+        mergeInto(false, "code").merge(connection, QUERY_ID, "SELECT * FROM src", Optional.absent(), null);
+        assertThat(connection.statementsContaining("UPDATE t SET \"name\" = s.\"name\" ").size(), is(1));
+        assertThat(connection.statementsContaining("INSERT INTO \"dbo\".\"orders\" (\"code\", \"name\")").size(), is(1));
+        assertThat(connection.statementsContaining("row_id").isEmpty(), is(true));
+    }
+
+    @Test
+    public void identityKey()
+    {
+        tables(ImmutableList.of("row_id", "name"), ImmutableList.of("row_id"));
+        try {
+            mergeInto(false, "ROW_ID").merge(connection, QUERY_ID, "SELECT * FROM src", Optional.absent(), null);
+            throw new AssertionError("expected ConfigException");
+        }
+        catch (ConfigException ex) {
+            assertThat(ex.getMessage(), containsString("IDENTITY"));
+        }
+        assertThat(connection.statementsContaining("INSERT").isEmpty(), is(true));
+        assertThat(connection.statements.get(connection.statements.size() - 1), containsString("DROP TABLE"));
+    }
+
+    @Test
+    public void unknownKey()
+    {
+        tables(ImmutableList.of("id", "name"), ImmutableList.of());
+        try {
+            mergeInto(false, "code").merge(connection, QUERY_ID, "SELECT * FROM src", Optional.absent(), null);
+            throw new AssertionError("expected ConfigException");
+        }
+        catch (ConfigException ex) {
+            assertThat(ex.getMessage(), containsString("code"));
+        }
+    }
+
+    @Test
+    public void duplicatedKeys()
+    {
+        tables(ImmutableList.of("id", "name"), ImmutableList.of());
+        connection.addRows(ImmutableList.of("id"), ImmutableList.of(ImmutableList.of(7)));
+        try {
+            mergeInto(false, "id").merge(connection, QUERY_ID, "SELECT * FROM src", Optional.absent(), null);
+            throw new AssertionError("expected TaskExecutionException");
+        }
+        catch (TaskExecutionException ex) {
+            assertThat(ex.getMessage(), is("Results of merge_into have duplicated keys: [7]"));
+        }
+        assertThat(connection.statementsContaining("UPDATE").isEmpty(), is(true));
+        assertThat(connection.statementsContaining("INSERT").isEmpty(), is(true));
+    }
+
+    @Test
+    public void nullKeys()
+    {
+        tables(ImmutableList.of("id", "day", "name"), ImmutableList.of());
+        // no duplicated keys, then a row with NULL in day
+        connection.addRows(ImmutableList.of("id", "day"), ImmutableList.of());
+        connection.addRows(ImmutableList.of("id", "day"), ImmutableList.of(Arrays.asList(7, null)));
+        try {
+            mergeInto(false, "id", "day").merge(connection, QUERY_ID, "SELECT * FROM src", Optional.absent(), null);
+            throw new AssertionError("expected TaskExecutionException");
+        }
+        catch (TaskExecutionException ex) {
+            assertThat(ex.getMessage(), is("Results of merge_into have NULL in keys [id, day]: [7, null]"));
+        }
+        assertThat(connection.statementsContaining("WHERE \"id\" IS NULL OR \"day\" IS NULL").size(), is(1));
+        assertThat(connection.statementsContaining("UPDATE").isEmpty(), is(true));
+        assertThat(connection.statementsContaining("INSERT").isEmpty(), is(true));
+        assertThat(connection.statements.get(connection.statements.size() - 1), containsString("DROP TABLE"));
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import io.digdag.util.DurationParam;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+public class MssqlConnectionConfigTest
+{
+    private static ImmutableMssqlConnectionConfig.Builder baseConfig()
+    {
+        return ImmutableMssqlConnectionConfig.builder()
+            .host("foobar0.org")
+            .port(1433)
+            .user("user0")
+            .database("database0")
+            .ssl(false)
+            .connectTimeout(DurationParam.of(Duration.ofSeconds(30)))
+            .socketTimeout(DurationParam.of(Duration.ofSeconds(1800)))
+            .integratedSecurity(false)
+            .multiSubnetFailover(false);
+    }
+
+    @Test
+    public void poolKeyDoesNotContainPassword()
+    {
+        MssqlConnectionConfig config = baseConfig().password(Optional.of("secret_password")).build();
+        assertThat(config.poolKey(), containsString(config.url()));
+        assertThat(config.poolKey(), not(containsString("secret_password")));
+    }
+
+    @Test
+    public void poolKeyDependsOnPassword()
+    {
+        MssqlConnectionConfig config1 = baseConfig().password(Optional.of("password1")).build();
+        MssqlConnectionConfig config2 = baseConfig().password(Optional.of("password2")).build();
+        assertThat(config1.poolKey().equals(config2.poolKey()), is(false));
+        assertThat(config1.poolKey(), is(baseConfig().password(Optional.of("password1")).build().poolKey()));
+    }
+
+    @Test
+    public void poolKeyDependsOnProperties()
+    {
+        MssqlConnectionConfig readWrite = baseConfig().build();
+        MssqlConnectionConfig readOnly = baseConfig().applicationIntent("ReadOnly").build();
+        assertThat(readWrite.poolKey().equals(readOnly.poolKey()), is(false));
+    }
+}
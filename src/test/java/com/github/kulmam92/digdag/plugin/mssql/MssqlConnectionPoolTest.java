@@ -0,0 +1,249 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEventListener;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class MssqlConnectionPoolTest
+{
+    private static final String KEY = "jdbc:sqlserver://foobar0.org";
+
+    // PooledConnection whose handles report close to the pool like the driver's. SQL
+    // executed by the handles is recorded, and it fails if failing is set.
+    private static class FakePooledConnection
+            implements PooledConnection
+    {
+        private final List<ConnectionEventListener> listeners = new ArrayList<>();
+        private final List<String> executed = new ArrayList<>();
+        private boolean valid = true;
+        private boolean failing = false;
+        private boolean closed = false;
+
+        @Override
+        public Connection getConnection()
+        {
+            return (Connection) Proxy.newProxyInstance(
+                    FakePooledConnection.class.getClassLoader(), new Class<?>[] {Connection.class, Supplier.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                        case "get":
+                            // the physical connection of the handle
+                            return this;
+                        case "isValid":
+                            return valid;
+                        case "createStatement":
+                            return statement();
+                        case "close":
+                            for (ConnectionEventListener listener : new ArrayList<>(listeners)) {
+                                listener.connectionClosed(new ConnectionEvent(this));
+                            }
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        private Statement statement()
+        {
+            return (Statement) Proxy.newProxyInstance(
+                    FakePooledConnection.class.getClassLoader(), new Class<?>[] {Statement.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                        case "execute":
+                            if (failing) {
+                                throw new SQLException("failed");
+                            }
+                            executed.add((String) args[0]);
+                            return false;
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        void fail()
+        {
+            for (ConnectionEventListener listener : new ArrayList<>(listeners)) {
+                listener.connectionErrorOccurred(new ConnectionEvent(this, new SQLException("broken")));
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+
+        @Override
+        public void addConnectionEventListener(ConnectionEventListener listener)
+        {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeConnectionEventListener(ConnectionEventListener listener)
+        {
+            listeners.remove(listener);
+        }
+
+        @Override
+        public void addStatementEventListener(StatementEventListener listener)
+        { }
+
+        @Override
+        public void removeStatementEventListener(StatementEventListener listener)
+        { }
+    }
+
+    private final List<FakePooledConnection> opened = new ArrayList<>();
+    private long now = 0;
+    private final MssqlConnectionPool pool = new MssqlConnectionPool(() -> now);
+
+    private Connection borrow()
+    {
+        return pool.borrow(KEY, () -> {
+            FakePooledConnection pooled = new FakePooledConnection();
+            opened.add(pooled);
+            return pooled;
+        });
+    }
+
+    private static FakePooledConnection physical(Connection connection)
+    {
+        return (FakePooledConnection) ((Supplier<?>) connection).get();
+    }
+
+    @Test
+    public void reuseMostRecentlyReturned()
+            throws Exception
+    {
+        Connection first = borrow();
+        Connection second = borrow();
+        assertThat(opened.size(), is(2));
+        second.close();
+        first.close();
+
+        // LIFO
+        assertThat(physical(borrow()), sameInstance(opened.get(0)));
+        assertThat(physical(borrow()), sameInstance(opened.get(1)));
+        assertThat(opened.size(), is(2));
+        // different keys don't share connections
+        pool.borrow("jdbc:sqlserver://other", FakePooledConnection::new);
+        assertThat(opened.size(), is(2));
+    }
+
+    @Test
+    public void closeConnectionsOverMaxIdle()
+            throws Exception
+    {
+        pool.configure(1, MssqlConnectionPool.DEFAULT_IDLE_TIMEOUT);
+        Connection first = borrow();
+        Connection second = borrow();
+        Connection third = borrow();
+        // connections in use aren't limited
+        assertThat(opened.size(), is(3));
+        first.close();
+        second.close();
+        third.close();
+        assertThat(opened.get(0).closed, is(false));
+        assertThat(opened.get(1).closed, is(true));
+        assertThat(opened.get(2).closed, is(true));
+    }
+
+    @Test
+    public void noPooling()
+            throws Exception
+    {
+        pool.configure(0, MssqlConnectionPool.DEFAULT_IDLE_TIMEOUT);
+        borrow().close();
+        assertThat(opened.get(0).closed, is(true));
+        borrow();
+        assertThat(opened.size(), is(2));
+    }
+
+    @Test
+    public void evictIdleConnections()
+            throws Exception
+    {
+        pool.configure(8, Duration.ofMinutes(10));
+        Connection first = borrow();
+        Connection second = borrow();
+        first.close();
+        now += Duration.ofMinutes(6).toNanos();
+        second.close();
+
+        now += Duration.ofMinutes(5).toNanos();
+        pool.evictIdleConnections();
+        assertThat(opened.get(0).closed, is(true));
+        assertThat(opened.get(1).closed, is(false));
+
+        assertThat(physical(borrow()), sameInstance(opened.get(1)));
+        borrow();
+        assertThat(opened.size(), is(3));
+    }
+
+    @Test
+    public void discardInvalidConnections()
+            throws Exception
+    {
+        borrow().close();
+        opened.get(0).valid = false;
+        assertThat(physical(borrow()), sameInstance(opened.get(1)));
+        assertThat(opened.get(0).closed, is(true));
+    }
+
+    @Test
+    public void discardConnectionsAfterFatalError()
+            throws Exception
+    {
+        Connection connection = borrow();
+        opened.get(0).fail();
+        assertThat(opened.get(0).closed, is(true));
+        // the close after the error doesn't return it to the pool
+        connection.close();
+        borrow();
+        assertThat(opened.size(), is(2));
+    }
+
+    @Test
+    public void rollbackOpenTransactionBeforePooling()
+            throws Exception
+    {
+        // a failed task closes the connection with its BEGIN TRANSACTION still open
+        borrow().close();
+        assertThat(opened.get(0).executed, is((Object) ImmutableList.of("IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION")));
+        assertThat(opened.get(0).closed, is(false));
+        assertThat(physical(borrow()), sameInstance(opened.get(0)));
+    }
+
+    @Test
+    public void discardConnectionsThatFailToRollback()
+            throws Exception
+    {
+        Connection connection = borrow();
+        opened.get(0).failing = true;
+        connection.close();
+        assertThat(opened.get(0).closed, is(true));
+        borrow();
+        assertThat(opened.size(), is(2));
+    }
+}
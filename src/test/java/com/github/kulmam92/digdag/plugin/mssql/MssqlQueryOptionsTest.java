@@ -0,0 +1,187 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.microsoft.sqlserver.jdbc.ISQLServerStatement;
+import io.digdag.client.config.ConfigException;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.kulmam92.digdag.plugin.mssql.ConfigUtils.newConfig;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class MssqlQueryOptionsTest
+{
+    @Test
+    public void defaults()
+    {
+        MssqlQueryOptions options = MssqlQueryOptions.configure(newConfig());
+        assertThat(options.fetchSize(), is(Optional.absent()));
+        assertThat(options.responseBuffering(), is("adaptive"));
+        assertThat(options.binaryFormat(), is("hex"));
+        assertThat(options.maxRows(), is(Optional.absent()));
+    }
+
+    @Test
+    public void configure()
+    {
+        MssqlQueryOptions options = MssqlQueryOptions.configure(newConfig()
+                .set("fetch_size", 500)
+                .set("response_buffering", "full")
+                .set("binary_format", "base64"));
+        assertThat(options.fetchSize(), is(Optional.of(500)));
+        assertThat(options.responseBuffering(), is("full"));
+        assertThat(options.binaryFormat(), is("base64"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectZeroFetchSize()
+    {
+        MssqlQueryOptions.configure(newConfig().set("fetch_size", 0));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectNegativeFetchSize()
+    {
+        MssqlQueryOptions.configure(newConfig().set("fetch_size", -1));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectUnknownResponseBuffering()
+    {
+        MssqlQueryOptions.configure(newConfig().set("response_buffering", "none"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rejectUnknownBinaryFormat()
+    {
+        MssqlQueryOptions.configure(newConfig().set("binary_format", "base32"));
+    }
+
+    @Test
+    public void maxRowsDoesNotOverflow()
+    {
+        assertThat(MssqlQueryOptions.defaults().withMaxRows(10L).maxRows(), is(Optional.of(10)));
+        assertThat(MssqlQueryOptions.defaults().withMaxRows(Long.MAX_VALUE).maxRows(), is(Optional.of(Integer.MAX_VALUE)));
+    }
+
+    // Records settings of statements of a JDBC connection whose queries return no rows
+    private static class RecordingConnection
+    {
+        private final List<Map<String, Object>> statements = new ArrayList<>();
+
+        Connection connection()
+        {
+            return (Connection) Proxy.newProxyInstance(
+                    RecordingConnection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                        case "createStatement":
+                            return statement(args == null ? ImmutableList.of() : ImmutableList.of(args[0], args[1]));
+                        case "prepareStatement":
+                            return statement(ImmutableList.of(args[1], args[2]));
+                        default:
+                            return null;
+                        }
+                    });
+        }
+
+        private Statement statement(List<Object> resultSetType)
+        {
+            Map<String, Object> settings = new LinkedHashMap<>();
+            settings.put("type", resultSetType);
+            statements.add(settings);
+            return (Statement) Proxy.newProxyInstance(
+                    RecordingConnection.class.getClassLoader(), new Class<?>[] {PreparedStatement.class, ISQLServerStatement.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                        case "setFetchSize":
+                        case "setMaxRows":
+                        case "setResponseBuffering":
+                            settings.put(method.getName(), args[0]);
+                            return null;
+                        case "unwrap":
+                            return proxy;
+                        case "executeQuery":
+                            return emptyResults();
+                        default:
+                            return null;
+                        }
+                    });
+        }
+
+        private static ResultSet emptyResults()
+        {
+            ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+                    RecordingConnection.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class},
+                    (proxy, method, args) -> method.getName().equals("getColumnCount") ? 0 : null);
+            return (ResultSet) Proxy.newProxyInstance(
+                    RecordingConnection.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                        case "getMetaData":
+                            return metaData;
+                        case "next":
+                            return false;
+                        default:
+                            return null;
+                        }
+                    });
+        }
+    }
+
+    @Test
+    public void applyOptionsToStatements()
+            throws Exception
+    {
+        RecordingConnection recording = new RecordingConnection();
+        MssqlConnection connection = new MssqlConnection(recording.connection());
+        MssqlQueryOptions options = MssqlQueryOptions.configure(newConfig()
+                .set("fetch_size", 500)
+                .set("response_buffering", "full"))
+            .withMaxRows(10);
+
+        connection.executeReadOnlyQuery("SELECT 1", options, (results) -> results.next());
+        connection.executeReadOnlyQuery("SELECT ?", ImmutableList.of(1), options, (results) -> results.next());
+
+        Map<String, Object> expected = ImmutableMap.of(
+                "type", ImmutableList.of(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY),
+                "setFetchSize", 500,
+                "setMaxRows", 10,
+                "setResponseBuffering", "full");
+        List<Map<String, Object>> queries = new ArrayList<>();
+        for (Map<String, Object> statement : recording.statements) {
+            if (!statement.get("type").equals(ImmutableList.of())) {
+                queries.add(statement);
+            }
+        }
+        assertThat(queries, is(ImmutableList.of(expected, expected)));
+    }
+
+    @Test
+    public void defaultsLeaveDriverSettings()
+            throws Exception
+    {
+        RecordingConnection recording = new RecordingConnection();
+        MssqlConnection connection = new MssqlConnection(recording.connection());
+        connection.executeReadOnlyQuery("SELECT 1", MssqlQueryOptions.defaults(), (results) -> results.next());
+
+        // fetch size and max rows are the driver's own unless they are set
+        Map<String, Object> query = recording.statements.get(recording.statements.size() - 1);
+        assertThat(query, is((Object) ImmutableMap.of(
+                        "type", ImmutableList.of(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY),
+                        "setResponseBuffering", "adaptive")));
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.standards.operator.jdbc.DatabaseException;
+import io.digdag.standards.operator.jdbc.JdbcResultSet;
+import io.digdag.util.Workspace;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.github.kulmam92.digdag.plugin.mssql.ConfigUtils.newConfig;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PartitionedDownloadTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<String> COLUMN_NAMES = ImmutableList.of("id", "name", "text");
+
+    private final FakeMssqlConnection connection = new FakeMssqlConnection();
+    private final List<FakeMssqlConnection> partitionConnections = Collections.synchronizedList(new ArrayList<>());
+
+    private static PartitionedDownload partitioned(String boundaries, int partitions, boolean merge)
+    {
+        return PartitionedDownload.configure(newConfig()
+                .set("column", "id")
+                .set("partitions", partitions)
+                .set("boundaries", boundaries)
+                .set("merge", merge));
+    }
+
+    private List<String> download(PartitionedDownload partitioned)
+            throws Exception
+    {
+        CsvDownload csvDownload = new CsvDownload(Optional.absent(), Optional.absent());
+        Workspace workspace = Workspace.ofDirectory(folder.getRoot().toPath());
+        return partitioned.download(connection, () -> {
+            FakeMssqlConnection partitionConnection = new FakeMssqlConnection();
+            partitionConnections.add(partitionConnection);
+            return partitionConnection;
+        }, MssqlQueryOptions.defaults(), csvDownload, workspace, "SELECT * FROM src", "out.csv");
+    }
+
+    private String read(String fileName)
+            throws IOException
+    {
+        return new String(Files.readAllBytes(folder.getRoot().toPath().resolve(fileName)), UTF_8);
+    }
+
+    @Test
+    public void buildPartitionQuery()
+    {
+        assertThat(PartitionedDownload.buildPartitionQuery("SELECT 1", "\"id\"", "?", 0, 1),
+                is("SELECT * FROM ( \nSELECT 1 \n) digdag_partition WHERE 1 = 1"));
+        assertThat(PartitionedDownload.buildPartitionQuery("SELECT 1", "\"id\"", "?", 0, 3),
+                is("SELECT * FROM ( \nSELECT 1 \n) digdag_partition WHERE (\"id\" <= ? OR \"id\" IS NULL)"));
+        assertThat(PartitionedDownload.buildPartitionQuery("SELECT 1", "\"id\"", "CONVERT(binary(8), ?, 2)", 1, 3),
+                is("SELECT * FROM ( \nSELECT 1 \n) digdag_partition WHERE \"id\" > CONVERT(binary(8), ?, 2) AND \"id\" <= CONVERT(binary(8), ?, 2)"));
+        assertThat(PartitionedDownload.buildPartitionQuery("SELECT 1", "\"id\"", "?", 2, 3),
+                is("SELECT * FROM ( \nSELECT 1 \n) digdag_partition WHERE \"id\" > ?"));
+    }
+
+    @Test
+    public void rangeBoundaries()
+            throws Exception
+    {
+        connection.addRows(ImmutableList.of("min", "max"), ImmutableList.of(ImmutableList.of(1L, 100L)));
+        download(partitioned("range", 4, false));
+
+        List<List<Object>> parameters = new ArrayList<>();
+        for (FakeMssqlConnection partitionConnection : partitionConnections) {
+            parameters.add(partitionConnection.parameters.get(0));
+        }
+        Collections.sort(parameters, (a, b) -> Long.compare((Long) a.get(0), (Long) b.get(0)));
+        assertThat(parameters, is(ImmutableList.of(
+                        ImmutableList.of(25L),
+                        ImmutableList.of(25L, 50L),
+                        ImmutableList.of(50L, 75L),
+                        ImmutableList.of(75L))));
+    }
+
+    @Test
+    public void ntileBoundariesOfBinaryColumn()
+            throws Exception
+    {
+        connection.addResults(FakeMssqlConnection.typedResults(ImmutableList.of("binary(8)"), ImmutableList.of(
+                        ImmutableList.of(new byte[] {0, 0, 0, 0, 0, 0, 0, 16}),
+                        ImmutableList.of(new byte[] {0, 0, 0, 0, 0, 0, 0, 32}),
+                        ImmutableList.of(new byte[] {0, 0, 0, 0, 0, 0, 0, 48}))));
+        download(partitioned("ntile", 3, false));
+
+        assertThat(partitionConnections.size(), is(3));
+        List<Object> parameters = new ArrayList<>();
+        for (FakeMssqlConnection partitionConnection : partitionConnections) {
+            String sql = partitionConnection.statements.get(0);
+            // bound as binary(8), not as nvarchar
+            assertThat(sql.contains("> ?") || sql.contains("<= ?"), is(false));
+            assertThat(sql.contains("CONVERT(binary(8), ?, 2)"), is(true));
+            parameters.addAll(partitionConnection.parameters.get(0));
+        }
+        Collections.sort(parameters, (a, b) -> ((String) a).compareTo((String) b));
+        assertThat(parameters, is(ImmutableList.of("0000000000000010", "0000000000000010", "0000000000000020", "0000000000000020")));
+    }
+
+    @Test
+    public void mergePartitionsInOrder()
+            throws Exception
+    {
+        connection.addRows(ImmutableList.of("min", "max"), ImmutableList.of(ImmutableList.of(1L, 12L)));
+        CsvDownload csvDownload = new CsvDownload(Optional.absent(), Optional.absent());
+        Workspace workspace = Workspace.ofDirectory(folder.getRoot().toPath());
+        List<String> files = partitioned("range", 12, true).download(connection, () -> new FakeMssqlConnection()
+            {
+                @Override
+                public void executeReadOnlyQuery(String sql, List<Object> parameters, MssqlQueryOptions options, Consumer<JdbcResultSet> resultHandler)
+                {
+                    // bounds are 1 to 11, so each partition has the id of its upper bound
+                    long number;
+                    if (sql.contains("IS NULL")) {
+                        number = (Long) parameters.get(0);
+                    }
+                    else if (parameters.size() == 2) {
+                        number = (Long) parameters.get(1);
+                    }
+                    else {
+                        number = (Long) parameters.get(0) + 1;
+                    }
+                    addRows(COLUMN_NAMES, ImmutableList.of(ImmutableList.of(number, "n", "t")));
+                    super.executeReadOnlyQuery(sql, parameters, options, resultHandler);
+                }
+            }, MssqlQueryOptions.defaults(), csvDownload, workspace, "SELECT * FROM src", "out.csv");
+
+        assertThat(files, is(ImmutableList.of("out.csv")));
+        StringBuilder expected = new StringBuilder("id,name,text\r\n");
+        for (int i = 1; i <= 12; i++) {
+            expected.append(i).append(",n,t\r\n");
+        }
+        assertThat(read("out.csv"), is(expected.toString()));
+        // parts are deleted after merged
+        assertThat(folder.getRoot().list(), is(new String[] {"out.csv"}));
+    }
+
+    @Test
+    public void deletePartFilesAfterAllPartitionsFinish()
+            throws Exception
+    {
+        connection.addRows(ImmutableList.of("min", "max"), ImmutableList.of(ImmutableList.of(1L, 2L)));
+        CountDownLatch failed = new CountDownLatch(1);
+        CsvDownload csvDownload = new CsvDownload(Optional.absent(), Optional.absent());
+        Workspace workspace = Workspace.ofDirectory(folder.getRoot().toPath());
+        try {
+            partitioned("range", 2, true).download(connection, () -> new FakeMssqlConnection()
+                {
+                    @Override
+                    public void executeReadOnlyQuery(String sql, List<Object> parameters, MssqlQueryOptions options, Consumer<JdbcResultSet> resultHandler)
+                    {
+                        if (sql.contains("IS NULL")) {
+                            failed.countDown();
+                            throw new DatabaseException("Failed to execute a query", new SQLException("injected failure"));
+                        }
+                        // the other partition is still writing its part when the first one fails
+                        try {
+                            failed.await(10, TimeUnit.SECONDS);
+                            Thread.sleep(200);
+                        }
+                        catch (InterruptedException ex) {
+                            // shutdownNow doesn't stop a thread that is writing
+                        }
+                        addRows(COLUMN_NAMES, CsvPipelineTest.rows(10));
+                        super.executeReadOnlyQuery(sql, parameters, options, resultHandler);
+                    }
+                }, MssqlQueryOptions.defaults(), csvDownload, workspace, "SELECT * FROM src", "out.csv");
+            throw new AssertionError("expected DatabaseException");
+        }
+        catch (DatabaseException ex) {
+            assertThat(ex.getCause().getMessage(), is("injected failure"));
+        }
+        assertThat(folder.getRoot().list(), is(new String[0]));
+    }
+}
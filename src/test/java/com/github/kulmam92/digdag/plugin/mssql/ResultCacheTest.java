@@ -0,0 +1,89 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+public class ResultCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ResultCache cache;
+
+    @Before
+    public void setUp()
+    {
+        cache = new ResultCache();
+        cache.configure(folder.getRoot().toPath().resolve("cache"), 1000);
+    }
+
+    private String read(Optional<Path> path)
+            throws IOException
+    {
+        return new String(Files.readAllBytes(path.get()), UTF_8);
+    }
+
+    @Test
+    public void keyDependsOnAllParts()
+    {
+        String key = ResultCache.key("SELECT 1", "conn", "download_file", "hex", null);
+        assertThat(ResultCache.key("SELECT 1", "conn", "download_file", "hex", null), is(key));
+        assertThat(ResultCache.key("SELECT 2", "conn", "download_file", "hex", null), is(not(key)));
+        assertThat(ResultCache.key("SELECT 1", "conn2", "download_file", "hex", null), is(not(key)));
+        assertThat(ResultCache.key("SELECT 1", "conn", "download_file", "hex", "gzip"), is(not(key)));
+    }
+
+    @Test
+    public void putAndLookup()
+            throws IOException
+    {
+        assertThat(cache.lookup("a", Duration.ofMinutes(1)).isPresent(), is(false));
+
+        cache.put("a", "{\"x\":1}");
+        assertThat(read(cache.lookup("a", Duration.ofMinutes(1))), is("{\"x\":1}"));
+
+        Path file = folder.newFile("download.csv").toPath();
+        Files.write(file, "id\r\n1\r\n".getBytes(UTF_8));
+        cache.put("b", file);
+        assertThat(read(cache.lookup("b", Duration.ofMinutes(1))), is("id\r\n1\r\n"));
+    }
+
+    @Test
+    public void expireByTtl()
+    {
+        cache.put("a", "{}");
+        assertThat(cache.lookup("a", Duration.ofSeconds(-1)).isPresent(), is(false));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed()
+            throws Exception
+    {
+        String value = Strings.repeat("x", 400);
+        cache.put("a", value);
+        Thread.sleep(1100);  // last modified times may have 1 second resolution
+        cache.put("b", value);
+        Thread.sleep(1100);
+        assertThat(cache.lookup("a", Duration.ofMinutes(1)).isPresent(), is(true));
+        Thread.sleep(1100);
+
+        cache.put("c", value);  // 1200 bytes > 1000. b is the least recently used
+        assertThat(cache.lookup("a", Duration.ofMinutes(1)).isPresent(), is(true));
+        assertThat(cache.lookup("b", Duration.ofMinutes(1)).isPresent(), is(false));
+        assertThat(cache.lookup("c", Duration.ofMinutes(1)).isPresent(), is(true));
+    }
+}
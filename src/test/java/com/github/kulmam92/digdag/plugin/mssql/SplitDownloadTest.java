@@ -0,0 +1,122 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import io.digdag.util.Workspace;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SplitDownloadTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<String> COLUMN_NAMES = ImmutableList.of("id", "name", "text");
+
+    private List<Map<String, Object>> download(SplitDownload split, List<List<Object>> rows)
+            throws IOException
+    {
+        CsvDownload csvDownload = new CsvDownload(Optional.absent(), Optional.absent());
+        Workspace workspace = Workspace.ofDirectory(folder.getRoot().toPath());
+        return split.writeResults(new CsvPipelineTest.ListResultSet(COLUMN_NAMES, rows), csvDownload, workspace, "out.csv");
+    }
+
+    private String read(String fileName)
+            throws IOException
+    {
+        return new String(Files.readAllBytes(folder.getRoot().toPath().resolve(fileName)), UTF_8);
+    }
+
+    @Test
+    public void splitByRows()
+            throws IOException
+    {
+        List<Map<String, Object>> files = download(new SplitDownload(4, Long.MAX_VALUE), CsvPipelineTest.rows(10));
+        assertThat(files.size(), is(3));
+        assertThat(files.get(0).get("file"), is("out-00001.csv"));
+        assertThat(files.get(0).get("rows"), is(4L));
+        assertThat(files.get(2).get("file"), is("out-00003.csv"));
+        assertThat(files.get(2).get("rows"), is(2L));
+        for (Map<String, Object> file : files) {
+            String content = read((String) file.get("file"));
+            assertThat(content.startsWith("id,name,text\r\n"), is(true));
+            assertThat(file.get("bytes"), is((long) content.getBytes(UTF_8).length));
+        }
+    }
+
+    @Test
+    public void splitByBytes()
+            throws IOException
+    {
+        List<List<Object>> rows = CsvPipelineTest.rows(1000);
+        long maxBytes = 1000;
+        List<Map<String, Object>> files = download(new SplitDownload(Long.MAX_VALUE, maxBytes), rows);
+        long total = 0;
+        for (int i = 0; i < files.size(); i++) {
+            long bytes = (Long) files.get(i).get("bytes");
+            if (i < files.size() - 1) {
+                // closed by the first row that reaches max_bytes
+                assertThat(bytes >= maxBytes, is(true));
+                assertThat(bytes < maxBytes + 40, is(true));
+            }
+            total += (Long) files.get(i).get("rows");
+        }
+        assertThat(total, is(1000L));
+    }
+
+    @Test
+    public void writeHeaderOfEmptyResults()
+            throws IOException
+    {
+        List<Map<String, Object>> files = download(new SplitDownload(4, Long.MAX_VALUE), ImmutableList.of());
+        assertThat(files.size(), is(1));
+        assertThat(files.get(0).get("rows"), is(0L));
+        assertThat(read("out-00001.csv"), is("id,name,text\r\n"));
+    }
+
+    @Test
+    public void noEmptyFileAtExactLimit()
+            throws IOException
+    {
+        List<Map<String, Object>> files = download(new SplitDownload(5, Long.MAX_VALUE), CsvPipelineTest.rows(10));
+        assertThat(files.size(), is(2));
+        assertThat(Files.exists(folder.getRoot().toPath().resolve("out-00003.csv")), is(false));
+    }
+
+    @Test
+    public void numberFilesBeforeCompressionSuffix()
+    {
+        CsvDownload plain = new CsvDownload(Optional.absent(), Optional.absent());
+        assertThat(plain.numberedFileName("out.csv", 1), is("out-00001.csv"));
+        assertThat(plain.numberedFileName("dir.v1/out", 2), is("dir.v1/out-00002"));
+
+        CsvDownload gzip = new CsvDownload(Optional.absent(), Optional.of("gzip"));
+        assertThat(gzip.numberedFileName("out.csv.gz", 1), is("out-00001.csv.gz"));
+        assertThat(gzip.numberedFileName("out.csv", 1), is("out-00001.csv.gz"));
+
+        CsvDownload deflate = new CsvDownload(Optional.absent(), Optional.of("deflate"));
+        assertThat(deflate.numberedFileName("out.csv", 3), is("out-00003.csv.deflate"));
+    }
+
+    @Test
+    public void deleteFilesOfLongerRun()
+            throws IOException
+    {
+        assertThat(download(new SplitDownload(2, Long.MAX_VALUE), CsvPipelineTest.rows(10)).size(), is(5));
+        List<Map<String, Object>> files = download(new SplitDownload(5, Long.MAX_VALUE), CsvPipelineTest.rows(10));
+        assertThat(files.size(), is(2));
+        for (int i = 3; i <= 5; i++) {
+            assertThat(Files.exists(folder.getRoot().toPath().resolve(String.format("out-%05d.csv", i))), is(false));
+        }
+    }
+}
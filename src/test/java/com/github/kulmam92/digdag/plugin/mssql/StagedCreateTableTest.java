@@ -0,0 +1,103 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.standards.operator.jdbc.DatabaseException;
+import io.digdag.standards.operator.jdbc.TableReference;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static com.github.kulmam92.digdag.plugin.mssql.ConfigUtils.newConfig;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class StagedCreateTableTest
+{
+    private static final UUID QUERY_ID = UUID.fromString("0123abcd-4567-89ef-0123-456789abcdef");
+
+    private final FakeMssqlConnection connection = new FakeMssqlConnection();
+
+    private static StagedCreateTable staged(Config params)
+    {
+        return StagedCreateTable.configure(params.set("create_table_staged", true), Optional.absent()).get();
+    }
+
+    @Test
+    public void notStaged()
+    {
+        assertThat(StagedCreateTable.configure(newConfig(), Optional.absent()).isPresent(), is(false));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void keepOldWithoutStaged()
+    {
+        StagedCreateTable.configure(newConfig().set("create_table_keep_old", "orders_old"), Optional.absent());
+    }
+
+    @Test
+    public void stagingTable()
+    {
+        TableReference staging = staged(newConfig()).stagingTable(TableReference.of("dbo", "orders"), QUERY_ID);
+        assertThat(staging.getSchema(), is(Optional.of("dbo")));
+        assertThat(staging.getName(), is("orders__digdag_staging_0123abcd4567"));
+    }
+
+    @Test
+    public void swapDropsOldTable()
+    {
+        assertThat(staged(newConfig()).buildSwapStatement(connection, TableReference.of("dbo", "orders__s"), TableReference.of("dbo", "orders")),
+                is("SET XACT_ABORT ON; \n" +
+                   "BEGIN TRANSACTION; \n" +
+                   "IF OBJECT_ID(N'\"dbo\".\"orders\"', N'U') IS NOT NULL DROP TABLE \"dbo\".\"orders\"; \n" +
+                   "EXEC sp_rename N'\"dbo\".\"orders__s\"', N'orders'; \n" +
+                   "COMMIT TRANSACTION;"));
+    }
+
+    @Test
+    public void swapKeepsOldTable()
+    {
+        assertThat(staged(newConfig().set("create_table_keep_old", "orders_old")).buildSwapStatement(connection,
+                    TableReference.of("dbo", "orders__s"), TableReference.of("dbo", "orders")),
+                is("SET XACT_ABORT ON; \n" +
+                   "BEGIN TRANSACTION; \n" +
+                   "IF OBJECT_ID(N'\"dbo\".\"orders_old\"', N'U') IS NOT NULL DROP TABLE \"dbo\".\"orders_old\"; \n" +
+                   "IF OBJECT_ID(N'\"dbo\".\"orders\"', N'U') IS NOT NULL EXEC sp_rename N'\"dbo\".\"orders\"', N'orders_old'; \n" +
+                   "EXEC sp_rename N'\"dbo\".\"orders__s\"', N'orders'; \n" +
+                   "COMMIT TRANSACTION;"));
+    }
+
+    @Test
+    public void swapQuotesNames()
+    {
+        // object names are escaped identifiers in N'' literals. new names of sp_rename
+        // aren't parsed, so they're only in literals
+        assertThat(staged(newConfig().set("create_table_keep_old", "it's \"old\"")).buildSwapStatement(connection,
+                    TableReference.of("it's \"new\""), TableReference.of("it's")),
+                is("SET XACT_ABORT ON; \n" +
+                   "BEGIN TRANSACTION; \n" +
+                   "IF OBJECT_ID(N'\"it''s \"\"old\"\"\"', N'U') IS NOT NULL DROP TABLE \"it's \"\"old\"\"\"; \n" +
+                   "IF OBJECT_ID(N'\"it''s\"', N'U') IS NOT NULL EXEC sp_rename N'\"it''s\"', N'it''s \"old\"'; \n" +
+                   "EXEC sp_rename N'\"it''s \"\"new\"\"\"', N'it''s'; \n" +
+                   "COMMIT TRANSACTION;"));
+    }
+
+    @Test
+    public void dropStagingTableOnFailure()
+    {
+        connection.failOn("sp_rename");
+        try {
+            staged(newConfig()).create(connection, "SELECT 1 AS a", TableReference.of("orders"), QUERY_ID);
+            throw new AssertionError("expected DatabaseException");
+        }
+        catch (DatabaseException ex) {
+            assertThat(ex.getCause().getMessage(), is("injected failure"));
+        }
+        assertThat(connection.statements.size(), is(3));
+        assertThat(connection.statements.get(0), containsString("SELECT * INTO \"orders__digdag_staging_0123abcd4567\""));
+        assertThat(connection.statements.get(2), is(
+                    "IF OBJECT_ID(N'\"orders__digdag_staging_0123abcd4567\"', N'U') IS NOT NULL DROP TABLE \"orders__digdag_staging_0123abcd4567\";"));
+    }
+}
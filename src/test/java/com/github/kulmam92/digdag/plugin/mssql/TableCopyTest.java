@@ -0,0 +1,130 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+import com.microsoft.sqlserver.jdbc.SQLServerConnection;
+import io.digdag.client.config.Config;
+import io.digdag.standards.operator.jdbc.DatabaseException;
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.github.kulmam92.digdag.plugin.mssql.ConfigUtils.newConfig;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class TableCopyTest
+{
+    // SQLServerConnection that isn't connected. The driver accepts it as the
+    // destination of a SQLServerBulkCopy without connecting.
+    static SQLServerConnection unconnectedConnection()
+            throws Exception
+    {
+        Constructor<SQLServerConnection> constructor = SQLServerConnection.class.getDeclaredConstructor(String.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance("test");
+    }
+
+    private static TableCopy tableCopy(Config copyTo)
+    {
+        Config params = newConfig()
+            .set("host", "foobar0.org")
+            .set("database", "database0")
+            .set("copy_to", copyTo.set("table", "dest"));
+        return TableCopy.configure(params, (key) -> Optional.absent());
+    }
+
+    @Test
+    public void bulkCopyOptionsAreAcceptedByDriver()
+            throws Exception
+    {
+        SQLServerBulkCopyOptions options = tableCopy(newConfig().set("batch_size", 500).set("table_lock", true)).bulkCopyOptions();
+        assertThat(options.getBatchSize(), is(500));
+        assertThat(options.isTableLock(), is(true));
+        assertThat(options.isUseInternalTransaction(), is(false));
+
+        try (SQLServerBulkCopy bulkCopy = new SQLServerBulkCopy(unconnectedConnection())) {
+            bulkCopy.setBulkCopyOptions(options);
+        }
+    }
+
+    @Test
+    public void physicalConnectionOfPooledConnection()
+            throws Exception
+    {
+        SQLServerConnection physical = unconnectedConnection();
+        Constructor<?> constructor = Class.forName("com.microsoft.sqlserver.jdbc.SQLServerConnectionPoolProxy")
+            .getDeclaredConstructor(SQLServerConnection.class);
+        constructor.setAccessible(true);
+        Connection proxy = (Connection) constructor.newInstance(physical);
+
+        assertThat(MssqlConnection.physicalConnection(proxy), sameInstance(physical));
+        assertThat(MssqlConnection.physicalConnection(physical), sameInstance(physical));
+    }
+
+    private final List<FakeMssqlConnection> destinations = Collections.synchronizedList(new ArrayList<>());
+
+    private FakeMssqlConnection destination(boolean failing)
+    {
+        FakeMssqlConnection destination = new FakeMssqlConnection();
+        if (failing) {
+            destination.failOn("INSERT BULK");
+        }
+        destinations.add(destination);
+        return destination;
+    }
+
+    private static FakeMssqlConnection source()
+    {
+        return new FakeMssqlConnection()
+            .addResults(FakeMssqlConnection.typedResults(ImmutableList.of("int"), ImmutableList.of(ImmutableList.of(1))));
+    }
+
+    @Test
+    public void copyInTransaction()
+            throws Exception
+    {
+        tableCopy(newConfig()).copy(source(), TableCopyTest::source, MssqlQueryOptions.defaults(), "SELECT * FROM src",
+                Optional.absent(), () -> destination(false));
+        assertThat(destinations.size(), is(1));
+        assertThat(destinations.get(0).statements, is(ImmutableList.of("BEGIN TRANSACTION", "INSERT BULK \"dest\"", "COMMIT TRANSACTION")));
+    }
+
+    @Test
+    public void failedPartitionCommitsNothing()
+            throws Exception
+    {
+        FakeMssqlConnection source = new FakeMssqlConnection()
+            .addRows(ImmutableList.of("min", "max"), ImmutableList.of(ImmutableList.of(1L, 3L)));
+        PartitionedDownload partitions = PartitionedDownload.configure(newConfig().set("column", "id").set("partitions", 3));
+        int[] opened = new int[1];
+        try {
+            tableCopy(newConfig()).copy(source, TableCopyTest::source, MssqlQueryOptions.defaults(), "SELECT * FROM src",
+                    Optional.of(partitions), () -> {
+                        synchronized (opened) {
+                            // the last partition to start fails
+                            return destination(++opened[0] == 3);
+                        }
+                    });
+            throw new AssertionError("expected DatabaseException");
+        }
+        catch (DatabaseException ex) {
+            assertThat(ex.getMessage(), is("Failed to execute an update statement"));
+        }
+        // the copies of other partitions stay uncommitted and are rolled back by closing
+        assertThat(destinations.size(), is(3));
+        for (FakeMssqlConnection destination : destinations) {
+            assertThat(destination.statements.get(0), is("BEGIN TRANSACTION"));
+            assertThat(destination.statements, everyItem(not("COMMIT TRANSACTION")));
+        }
+    }
+}
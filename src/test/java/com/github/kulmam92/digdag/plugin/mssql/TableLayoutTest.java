@@ -0,0 +1,96 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.standards.operator.jdbc.TableReference;
+import org.junit.Test;
+
+import static com.github.kulmam92.digdag.plugin.mssql.ConfigUtils.newConfig;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TableLayoutTest
+{
+    private static final String QUERY = "SELECT * FROM src";
+
+    private final MssqlConnection connection = new FakeMssqlConnection();
+
+    private String buildCreateStatement(Config layout)
+    {
+        return TableLayout.configure(layout).buildCreateStatement(connection, QUERY,
+                TableReference.of("dbo", "orders__staged"), TableReference.of("dbo", "orders"));
+    }
+
+    private static String create(String index)
+    {
+        return "SELECT TOP 0 t.* INTO \"dbo\".\"orders__staged\" \n" +
+            "FROM ( \n" +
+            "SELECT * FROM src \n" +
+            ") t CROSS JOIN (SELECT 1 AS digdag_join) digdag_join; \n" +
+            index +
+            "INSERT INTO \"dbo\".\"orders__staged\" WITH (TABLOCK) \n" +
+            "SELECT * FROM ( \n" +
+            "SELECT * FROM src \n" +
+            ") t ";
+    }
+
+    @Test
+    public void heap()
+    {
+        assertThat(buildCreateStatement(newConfig()), is(create("")));
+    }
+
+    @Test
+    public void compressedHeap()
+    {
+        assertThat(buildCreateStatement(newConfig().set("compression", "PAGE")),
+                is(create("ALTER TABLE \"dbo\".\"orders__staged\" REBUILD WITH (DATA_COMPRESSION = PAGE); \n")));
+    }
+
+    @Test
+    public void clusteredIndexOnFilegroup()
+    {
+        assertThat(buildCreateStatement(newConfig().set("key", ImmutableList.of("day", "id")).set("compression", "row").set("on", "fg_archive")),
+                is(create("CREATE CLUSTERED INDEX \"cx_orders\" ON \"dbo\".\"orders__staged\" (\"day\", \"id\") " +
+                        "WITH (DATA_COMPRESSION = ROW) ON \"fg_archive\"; \n")));
+    }
+
+    @Test
+    public void columnstoreOnPartitionScheme()
+    {
+        assertThat(buildCreateStatement(newConfig().set("columnstore", true).set("compression", "columnstore_archive").set("on", " ps_orders ( order_date ) ")),
+                is(create("CREATE CLUSTERED COLUMNSTORE INDEX \"cx_orders\" ON \"dbo\".\"orders__staged\" " +
+                        "WITH (DATA_COMPRESSION = COLUMNSTORE_ARCHIVE) ON \"ps_orders\"(\"order_date\"); \n")));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void columnstoreWithKey()
+    {
+        TableLayout.configure(newConfig().set("columnstore", true).set("key", ImmutableList.of("id")));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void columnstoreCompressionOfRowstore()
+    {
+        TableLayout.configure(newConfig().set("key", ImmutableList.of("id")).set("compression", "columnstore"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void rowstoreCompressionOfColumnstore()
+    {
+        TableLayout.configure(newConfig().set("columnstore", true).set("compression", "page"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void onWithoutIndex()
+    {
+        TableLayout.configure(newConfig().set("on", "fg_archive"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void onIsNotAnIdentifier()
+    {
+        TableLayout.configure(newConfig().set("key", ImmutableList.of("id")).set("on", "fg; DROP TABLE t"));
+    }
+}
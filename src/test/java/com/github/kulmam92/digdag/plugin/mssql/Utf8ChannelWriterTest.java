@@ -0,0 +1,75 @@
+package com.github.kulmam92.digdag.plugin.mssql;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class Utf8ChannelWriterTest
+{
+    private static byte[] encode(String s, int bufferSize, int chunkSize)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Utf8ChannelWriter writer = new Utf8ChannelWriter(Channels.newChannel(out), bufferSize)) {
+            char[] chars = s.toCharArray();
+            for (int i = 0; i < chars.length; i += chunkSize) {
+                writer.write(chars, i, Math.min(chunkSize, chars.length - i));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void encodeAscii()
+            throws IOException
+    {
+        assertThat(encode("id,name\r\n1,abc\r\n", 16, 3), is("id,name\r\n1,abc\r\n".getBytes(UTF_8)));
+    }
+
+    @Test
+    public void encodeMultiByteCharacters()
+            throws IOException
+    {
+        String s = "café,日本語,😀 ok";
+        for (int chunkSize = 1; chunkSize < 8; chunkSize++) {
+            assertThat(encode(s, 16, chunkSize), is(s.getBytes(UTF_8)));
+        }
+    }
+
+    @Test
+    public void replaceUnpairedSurrogates()
+            throws IOException
+    {
+        String s = "a\ud83db\ude00c\ud83d";
+        assertThat(encode(s, 16, 1), is(s.getBytes(UTF_8)));
+    }
+
+    @Test
+    public void encodeRandomStrings()
+            throws IOException
+    {
+        Random random = new Random(0);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            int r = random.nextInt(10);
+            if (r < 6) {
+                sb.append((char) (0x20 + random.nextInt(0x5f)));
+            }
+            else if (r < 8) {
+                sb.append((char) (0x80 + random.nextInt(0xd700)));
+            }
+            else {
+                sb.appendCodePoint(0x10000 + random.nextInt(0x10000));
+            }
+        }
+        String s = sb.toString();
+        assertThat(encode(s, 1024, 777), is(s.getBytes(UTF_8)));
+    }
+}